@@ -0,0 +1,53 @@
+package javanator.test.speedtestwidget;
+
+import android.os.Debug;
+import android.os.Process;
+
+import javanator.test.speedtestwidget.engine.ResourceProbe;
+
+/**
+ * Reads the cpu, allocations and garbage collections of the app through
+ * {@link Debug}. Allocations and collections only get counted while a test
+ * runs, since counting them slows every allocation down a little.
+ *
+ * The platform tells the time garbage collection held the app up only from
+ * API 23 on, so the pause time stays unknown.
+ */
+public class AndroidResourceProbe implements ResourceProbe {
+
+    @Override
+    public void start() {
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    public void stop() {
+        Debug.stopAllocCounting();
+    }
+
+    @Override
+    public long getThreadCpuTimeNs() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    @Override
+    public long getProcessCpuTimeNs() {
+        return Process.getElapsedCpuTime() * 1000000L;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        // An int counter, read as unsigned to go up to 4 GB.
+        return Debug.getGlobalAllocSize() & 0xffffffffL;
+    }
+
+    @Override
+    public long getGcCount() {
+        return Debug.getGlobalGcInvocationCount();
+    }
+
+    @Override
+    public long getGcPauseTimeMs() {
+        return -1;
+    }
+}
@@ -2,14 +2,25 @@ package javanator.test.speedtestwidget;
 
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
 
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 
+import javanator.test.speedtestwidget.engine.Transport;
+import javanator.test.speedtestwidget.engine.UploadPayload;
+
 public class CustomMultiPartEntity extends MultipartEntity {
 
+    /*
+     * Bytes written between two progress reports, at most. A chunk of the
+     * upload payload, so that every chunk write gets reported.
+     */
+    public static final int DEFAULT_REPORT_BYTES = UploadPayload.CHUNK_SIZE;
+
     private final ProgressListener listener;
 
     public CustomMultiPartEntity(final ProgressListener listener) {
@@ -27,42 +38,194 @@ public class CustomMultiPartEntity extends MultipartEntity {
         this.listener = listener;
     }
 
+    /**
+     * Counts everything written, the multipart boundaries and headers
+     * included, unless the listener is null.
+     */
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        super.writeTo(new CountingOutputStream(outstream, this.listener));
+        if (this.listener == null) {
+            super.writeTo(outstream);
+            return;
+        }
+
+        CountingOutputStream countingStream = new CountingOutputStream(outstream, this.listener);
+        super.writeTo(countingStream);
+        countingStream.report();
     }
 
     public interface ProgressListener {
+        /**
+         * @param num Bytes written so far.
+         * @param timeElapsed Nanoseconds since the first write.
+         */
         void transferred(long num, long timeElapsed);
     }
 
+    /**
+     * Counts the bytes written through it and reports them in batches, once
+     * per byte quantum and on flush and close. The clock only gets read for
+     * a report and on the first bulk write, so writes in between cost no
+     * more than a counter update.
+     */
     public static class CountingOutputStream extends FilterOutputStream {
 
         private final ProgressListener listener;
 
+        private final long reportBytes;
+
         private long transferred = 0;
 
         private long uploadStartTime = 0;
 
+        // Count the listener got last.
+        private long reportedTransferred = 0;
+
         public CountingOutputStream(final OutputStream out, final ProgressListener listener) {
+            this(out, listener, DEFAULT_REPORT_BYTES);
+        }
+
+        public CountingOutputStream(final OutputStream out,
+                                    final ProgressListener listener,
+                                    final long reportBytes) {
             super(out);
             this.listener = listener;
-            this.transferred = 0;
+            this.reportBytes = reportBytes;
         }
 
+        @Override
         public void write(byte[] b, int off, int len) throws IOException {
-
-            if(uploadStartTime == 0) uploadStartTime = System.nanoTime();
+            // Straight through, FilterOutputStream would go byte by byte.
             out.write(b, off, len);
+
+            if (uploadStartTime == 0) {
+                uploadStartTime = System.nanoTime();
+            }
             this.transferred += len;
-            this.listener.transferred(this.transferred, System.nanoTime() - uploadStartTime);
+
+            if (this.transferred - reportedTransferred >= reportBytes) {
+                report();
+            }
         }
 
+        @Override
         public void write(int b) throws IOException {
-            if(uploadStartTime == 0) uploadStartTime = System.nanoTime();
             out.write(b);
             this.transferred++;
-            this.listener.transferred(this.transferred, System.nanoTime() - uploadStartTime);
+
+            if (this.transferred - reportedTransferred >= reportBytes) {
+                report();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            super.flush();
+            report();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                report();
+            }
         }
+
+        /**
+         * Hands the bytes written since the last report to the listener.
+         */
+        public void report() {
+            if (this.transferred != reportedTransferred) {
+                report(System.nanoTime());
+            }
+        }
+
+        private void report(long now) {
+            if (uploadStartTime == 0) {
+                uploadStartTime = now;
+            }
+            reportedTransferred = this.transferred;
+            this.listener.transferred(this.transferred, now - uploadStartTime);
+        }
+    }
+
+    /**
+     * File part generated on the fly out of the shared {@link UploadPayload},
+     * written chunk by chunk till the stream it belongs to stops, so there
+     * is neither a file on disk nor a copy of the payload. Its length is
+     * unknown, the entity has to go out chunked.
+     *
+     * Counts the payload bytes it writes, without the multipart boundaries
+     * and headers around them.
+     */
+    public static class PayloadBody extends AbstractContentBody {
+
+        private final UploadPayload payload;
+
+        private final Transport.StreamContext context;
+
+        private final ProgressListener listener;
+
+        public PayloadBody(final UploadPayload payload,
+                           final Transport.StreamContext context,
+                           final ProgressListener listener) {
+            super("application/octet-stream");
+            this.payload = payload;
+            this.context = context;
+            this.listener = listener;
+        }
+
+        @Override
+        public String getFilename() {
+            return UploadPayload.FILE_NAME;
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            // Not closed, that would close the entity's stream.
+            CountingOutputStream countingStream = new CountingOutputStream(out, this.listener);
+            byte[] bytes = this.payload.getPayload();
+
+            int offset = 0;
+            while (this.context.isRunning()) {
+                countingStream.write(bytes, offset, UploadPayload.CHUNK_SIZE);
+
+                offset += UploadPayload.CHUNK_SIZE;
+                if (offset == bytes.length) {
+                    offset = 0;
+                }
+            }
+            countingStream.report();
+        }
+
+        @Override
+        public String getCharset() {
+            return null;
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return "binary";
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+
+    /**
+     * Entity of one upload request: the generated payload as its only part,
+     * the listener hearing about the payload bytes only.
+     */
+    public static CustomMultiPartEntity newUploadEntity(final UploadPayload payload,
+                                                        final Transport.StreamContext context,
+                                                        final ProgressListener listener) {
+        CustomMultiPartEntity entity = new CustomMultiPartEntity(HttpMultipartMode.BROWSER_COMPATIBLE, null);
+        ContentBody body = new PayloadBody(payload, context, listener);
+        entity.addPart("uploaded_file", body);
+        return entity;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,21 @@
+package javanator.test.speedtestwidget;
+
+/**
+ * Maps a speed to a position along the gauge's arc.
+ *
+ * Implementations are built once and then map every published speed in
+ * constant time, without allocating, as that happens every few ms.
+ */
+public interface GaugeScale {
+
+    /**
+     * @return Position of the speed along the arc, from 0 at its start to 1
+     * at its end. Speeds outside of the scale are clamped to its ends.
+     */
+    float getPosition(float speedInMbps);
+
+    /**
+     * Speeds labelled along the arc, ascending.
+     */
+    int[] getSpeedIndicatingValuesInMb();
+}
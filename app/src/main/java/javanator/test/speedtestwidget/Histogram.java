@@ -0,0 +1,141 @@
+package javanator.test.speedtestwidget;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counts of values in fixed buckets, plus their mean and maximum. Recording
+ * takes no allocation, so it can run on every frame. Not thread safe, see
+ * {@link RenderStats} for how it gets shared.
+ */
+public class Histogram {
+
+    // Inclusive upper bound of each bucket but the last, which takes the rest.
+    private final float[] mUpperBounds;
+
+    private final long[] mCounts;
+
+    private long mCount;
+
+    private double mSum;
+
+    private float mMax;
+
+    /**
+     * @param upperBounds Inclusive upper bound of each bucket, ascending.
+     * Values past the last bound go to an overflow bucket of their own.
+     */
+    public Histogram(float... upperBounds) {
+        for (int i = 1; i < upperBounds.length; i++) {
+            if (upperBounds[i] <= upperBounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds not ascending " + Arrays.toString(upperBounds));
+            }
+        }
+
+        mUpperBounds = upperBounds.clone();
+        mCounts = new long[upperBounds.length + 1];
+    }
+
+    /**
+     * Copy of the histogram as it is now.
+     */
+    public Histogram(Histogram histogram) {
+        mUpperBounds = histogram.mUpperBounds;
+        mCounts = histogram.mCounts.clone();
+        mCount = histogram.mCount;
+        mSum = histogram.mSum;
+        mMax = histogram.mMax;
+    }
+
+    public void record(float value) {
+        int bucket = 0;
+        while (bucket < mUpperBounds.length && value > mUpperBounds[bucket]) {
+            bucket++;
+        }
+
+        mCounts[bucket]++;
+        mCount++;
+        mSum += value;
+        if (mCount == 1 || value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Buckets, the overflow bucket included.
+     */
+    public int getBucketCount() {
+        return mCounts.length;
+    }
+
+    /**
+     * Inclusive upper bound of the bucket at the given index, infinity for
+     * the overflow bucket.
+     */
+    public float getUpperBound(int bucket) {
+        return bucket < mUpperBounds.length ? mUpperBounds[bucket] : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Values recorded in the bucket at the given index.
+     */
+    public long getCount(int bucket) {
+        return mCounts[bucket];
+    }
+
+    /**
+     * Values recorded in all the buckets.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * NaN if nothing got recorded.
+     */
+    public float getMean() {
+        return mCount > 0 ? (float) (mSum / mCount) : Float.NaN;
+    }
+
+    /**
+     * NaN if nothing got recorded.
+     */
+    public float getMax() {
+        return mCount > 0 ? mMax : Float.NaN;
+    }
+
+    /**
+     * Upper bound of the bucket the given percentile falls in, or the
+     * largest value recorded if that is lower. NaN if nothing got recorded.
+     *
+     * @param percentile From 0 to 100.
+     */
+    public float getPercentile(float percentile) {
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        long seen = 0;
+        for (int bucket = 0; bucket < mUpperBounds.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(mUpperBounds[bucket], mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n %d, mean %.2f, p50 %.2f, p95 %.2f, max %.2f",
+                mCount, getMean(), getPercentile(50), getPercentile(95), getMax());
+    }
+}
@@ -0,0 +1,32 @@
+package javanator.test.speedtestwidget;
+
+/**
+ * Spreads the speeds evenly over the arc, from 0 up to the highest speed
+ * indicating value.
+ */
+public class LinearGaugeScale implements GaugeScale {
+
+    private final int[] mSpeedIndicatingValuesInMb;
+
+    private final float mPositionPerMbps;
+
+    public LinearGaugeScale(int[] speedIndicatingValuesInMb) {
+        PiecewiseGaugeScale.checkSpeedIndicatingValues(speedIndicatingValuesInMb);
+
+        mSpeedIndicatingValuesInMb = speedIndicatingValuesInMb.clone();
+        mPositionPerMbps = 1f / speedIndicatingValuesInMb[speedIndicatingValuesInMb.length - 1];
+    }
+
+    @Override
+    public float getPosition(float speedInMbps) {
+        if (!(speedInMbps > 0)) {
+            return 0;
+        }
+        return Math.min(1f, speedInMbps * mPositionPerMbps);
+    }
+
+    @Override
+    public int[] getSpeedIndicatingValuesInMb() {
+        return mSpeedIndicatingValuesInMb;
+    }
+}
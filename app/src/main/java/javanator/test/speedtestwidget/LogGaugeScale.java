@@ -0,0 +1,34 @@
+package javanator.test.speedtestwidget;
+
+/**
+ * Places speeds by the logarithm of 1 + speed, so that every tenfold
+ * increase takes about the same share of the arc. Suits gauges going up to
+ * multi gigabit speeds, where a linear scale squeezes the common speeds
+ * into its first few degrees.
+ */
+public class LogGaugeScale implements GaugeScale {
+
+    private final int[] mSpeedIndicatingValuesInMb;
+
+    private final double mPositionPerLog;
+
+    public LogGaugeScale(int[] speedIndicatingValuesInMb) {
+        PiecewiseGaugeScale.checkSpeedIndicatingValues(speedIndicatingValuesInMb);
+
+        mSpeedIndicatingValuesInMb = speedIndicatingValuesInMb.clone();
+        mPositionPerLog = 1 / Math.log1p(speedIndicatingValuesInMb[speedIndicatingValuesInMb.length - 1]);
+    }
+
+    @Override
+    public float getPosition(float speedInMbps) {
+        if (!(speedInMbps > 0)) {
+            return 0;
+        }
+        return (float) Math.min(1, Math.log1p(speedInMbps) * mPositionPerLog);
+    }
+
+    @Override
+    public int[] getSpeedIndicatingValuesInMb() {
+        return mSpeedIndicatingValuesInMb;
+    }
+}
@@ -0,0 +1,49 @@
+package javanator.test.speedtestwidget;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javanator.test.speedtestwidget.engine.HttpUrlConnectionTransport;
+import javanator.test.speedtestwidget.engine.UploadPayload;
+
+/**
+ * Http transport posting the upload as a streaming {@link CustomMultiPartEntity},
+ * counting the payload bytes through its batched progress listener.
+ *
+ * Every batch counts as one write in the engine's io calls. Batches come
+ * a payload chunk apart, so they match the chunk writes; the writes the
+ * platform makes out of them, chunk framing included, go uncounted.
+ */
+public class MultiPartEntityTransport extends HttpUrlConnectionTransport {
+
+    @Override
+    public void upload(URL url, UploadPayload payload, final StreamContext context) throws IOException {
+
+        CustomMultiPartEntity entity = CustomMultiPartEntity.newUploadEntity(payload, context,
+                new CustomMultiPartEntity.ProgressListener() {
+
+                    private long counted = 0;
+
+                    @Override
+                    public void transferred(long num, long timeElapsed) {
+                        context.countBytes((int) (num - counted));
+                        counted = num;
+                    }
+                });
+
+        HttpURLConnection conn = openUploadConnection(url, entity.getContentType().getValue(), context);
+
+        OutputStream os = conn.getOutputStream();
+        entity.writeTo(os);
+
+        // Stopped mid body, see the super class.
+        if (!context.isRunning()) {
+            return;
+        }
+
+        os.close();
+        conn.getResponseCode();
+    }
+}
@@ -0,0 +1,83 @@
+package javanator.test.speedtestwidget;
+
+/**
+ * Gives every section between two speed indicating values an equal share
+ * of the arc, and is linear within a section. That keeps the low speeds
+ * readable while still showing the high ones.
+ */
+public class PiecewiseGaugeScale implements GaugeScale {
+
+    private final int[] mSpeedIndicatingValuesInMb;
+
+    private final float mMaxSpeedInMbps;
+
+    private final float mSectionLength;
+
+    // Section holding the speeds from i up to i + 1 Mbps, for each whole Mbps.
+    // The values are whole Mbps, so no section starts or ends inside of one.
+    private final byte[] mSectionOfMbps;
+
+    // Share of the arc every Mbps takes in each section.
+    private final float[] mPositionPerMbps;
+
+    public PiecewiseGaugeScale(int[] speedIndicatingValuesInMb) {
+        checkSpeedIndicatingValues(speedIndicatingValuesInMb);
+
+        mSpeedIndicatingValuesInMb = speedIndicatingValuesInMb.clone();
+        int sectionCount = speedIndicatingValuesInMb.length - 1;
+        int maxSpeedInMb = speedIndicatingValuesInMb[sectionCount];
+
+        mMaxSpeedInMbps = maxSpeedInMb;
+        mSectionLength = 1f / sectionCount;
+
+        mPositionPerMbps = new float[sectionCount];
+        mSectionOfMbps = new byte[maxSpeedInMb];
+        for (int i = 0; i < sectionCount; i++) {
+            int from = speedIndicatingValuesInMb[i];
+            int to = speedIndicatingValuesInMb[i + 1];
+            mPositionPerMbps[i] = mSectionLength / (to - from);
+            for (int mbps = from; mbps < to; mbps++) {
+                mSectionOfMbps[mbps] = (byte) i;
+            }
+        }
+    }
+
+    @Override
+    public float getPosition(float speedInMbps) {
+        if (!(speedInMbps > mSpeedIndicatingValuesInMb[0])) {
+            return 0;
+        }
+        if (speedInMbps >= mMaxSpeedInMbps) {
+            return 1;
+        }
+
+        int section = mSectionOfMbps[(int) speedInMbps];
+        return section * mSectionLength +
+                (speedInMbps - mSpeedIndicatingValuesInMb[section]) * mPositionPerMbps[section];
+    }
+
+    @Override
+    public int[] getSpeedIndicatingValuesInMb() {
+        return mSpeedIndicatingValuesInMb;
+    }
+
+    /**
+     * @throws IllegalArgumentException Unless there are at least two values,
+     * ascending from 0 or more.
+     */
+    static void checkSpeedIndicatingValues(int[] speedIndicatingValuesInMb) {
+        if (speedIndicatingValuesInMb == null || speedIndicatingValuesInMb.length < 2 ||
+                speedIndicatingValuesInMb[0] < 0) {
+            throw new IllegalArgumentException("Need at least two speed indicating values from 0 up");
+        }
+        // Sections are looked up by a byte.
+        if (speedIndicatingValuesInMb.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many speed indicating values");
+        }
+        for (int i = 1; i < speedIndicatingValuesInMb.length; i++) {
+            if (speedIndicatingValuesInMb[i] <= speedIndicatingValuesInMb[i - 1]) {
+                throw new IllegalArgumentException("Speed indicating values must ascend");
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package javanator.test.speedtestwidget;
+
+import java.util.Locale;
+
+/**
+ * How the widget's rendering thread keeps up: how long each frame waited
+ * for the canvas and took to draw, how far apart frames came, how many
+ * were late or dropped, and how far the arcs trailed the newest speed.
+ *
+ * The rendering thread records a frame at a time; any thread may read.
+ * Readers get copies of the histograms, so they never hold the renderer up
+ * for longer than the copy takes.
+ */
+public class RenderStats {
+
+    /*
+     * Bucket bounds of the lockCanvas wait and doDraw times, in ms.
+     */
+    private static final float[] WORK_TIME_BOUNDS_IN_MS = {0.25f, 0.5f, 1, 2, 4, 8, 12, 16, 25, 33, 50, 100};
+
+    /*
+     * Bucket bounds of the time between consecutive frames of an
+     * animation, in ms.
+     */
+    private static final float[] FRAME_INTERVAL_BOUNDS_IN_MS = {8, 12, 17, 20, 25, 34, 50, 67, 100, 200};
+
+    /*
+     * Bucket bounds of how far an arc trailed its target, in degrees.
+     */
+    private static final float[] ANGLE_LAG_BOUNDS_IN_DEGREES = {0.5f, 1, 2, 5, 10, 20, 45, 90, 180};
+
+    /*
+     * Frame interval, in vsync periods, from which on the vsyncs in between
+     * count as dropped frames.
+     */
+    private static final float DROPPED_FRAME_THRESHOLD = 1.5f;
+
+    private final Histogram mLockCanvasTime = new Histogram(WORK_TIME_BOUNDS_IN_MS);
+
+    private final Histogram mDrawTime = new Histogram(WORK_TIME_BOUNDS_IN_MS);
+
+    private final Histogram mFrameInterval = new Histogram(FRAME_INTERVAL_BOUNDS_IN_MS);
+
+    private final Histogram mAngleLag = new Histogram(ANGLE_LAG_BOUNDS_IN_DEGREES);
+
+    private long mFrameCount;
+
+    private long mLateFrameCount;
+
+    private long mDroppedFrameCount;
+
+    /**
+     * Records a frame drawn on the rendering thread.
+     *
+     * @param lockCanvasNs Time lockCanvas waited for a buffer.
+     * @param drawNs Time doDraw took.
+     * @param frameIntervalNs Time since the frame before, 0 for the first
+     * frame of an animation.
+     * @param latenessNs Time from the vsync the frame started on till it
+     * got posted.
+     * @param vsyncPeriodNs Refresh period of the display.
+     * @param angleLagInDegrees How far the arcs trailed their targets.
+     */
+    public synchronized void recordFrame(long lockCanvasNs,
+                                         long drawNs,
+                                         long frameIntervalNs,
+                                         long latenessNs,
+                                         long vsyncPeriodNs,
+                                         float angleLagInDegrees) {
+
+        mFrameCount++;
+        mLockCanvasTime.record(lockCanvasNs / 1000000f);
+        mDrawTime.record(drawNs / 1000000f);
+        mAngleLag.record(angleLagInDegrees);
+
+        // Posted past the next vsync, so shown a refresh later than it could.
+        if (latenessNs > vsyncPeriodNs) {
+            mLateFrameCount++;
+        }
+
+        if (frameIntervalNs > 0) {
+            mFrameInterval.record(frameIntervalNs / 1000000f);
+
+            float periods = (float) frameIntervalNs / vsyncPeriodNs;
+            if (periods >= DROPPED_FRAME_THRESHOLD) {
+                mDroppedFrameCount += Math.round(periods) - 1;
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        mLockCanvasTime.reset();
+        mDrawTime.reset();
+        mFrameInterval.reset();
+        mAngleLag.reset();
+        mFrameCount = 0;
+        mLateFrameCount = 0;
+        mDroppedFrameCount = 0;
+    }
+
+    /**
+     * Time lockCanvas waited for a buffer, in ms.
+     */
+    public synchronized Histogram getLockCanvasTime() {
+        return new Histogram(mLockCanvasTime);
+    }
+
+    /**
+     * Time doDraw took, in ms.
+     */
+    public synchronized Histogram getDrawTime() {
+        return new Histogram(mDrawTime);
+    }
+
+    /**
+     * Time between consecutive frames of an animation, in ms.
+     */
+    public synchronized Histogram getFrameInterval() {
+        return new Histogram(mFrameInterval);
+    }
+
+    /**
+     * How far the arcs trailed the newest speed published when each frame
+     * got drawn, in degrees.
+     */
+    public synchronized Histogram getAngleLag() {
+        return new Histogram(mAngleLag);
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Frames posted after the vsync following the one they started on.
+     */
+    public synchronized long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    /**
+     * Vsyncs skipped in the middle of animations.
+     */
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Frame rate while animating, NaN before the second frame of an
+     * animation.
+     */
+    public synchronized float getFramesPerSecond() {
+        float meanIntervalInMs = mFrameInterval.getMean();
+        return 1000 / meanIntervalInMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d frames at %.1f fps, %d late, %d dropped; lockCanvas ms %s; " +
+                        "doDraw ms %s; interval ms %s; angle lag %s",
+                mFrameCount, getFramesPerSecond(), mLateFrameCount, mDroppedFrameCount,
+                mLockCanvasTime, mDrawTime, mFrameInterval, mAngleLag);
+    }
+}
@@ -0,0 +1,34 @@
+package javanator.test.speedtestwidget;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * Hands the alarm of a scheduled test, or a change of network, to the
+ * {@link ScheduledTestService} while holding a wake lock, and re-arms the
+ * alarm after a reboot.
+ */
+public class ScheduledTestReceiver extends WakefulBroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!TestScheduler.isEnabled(context)) {
+            return;
+        }
+
+        String action = intent.getAction();
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            // Alarms do not survive a reboot.
+            TestScheduler.scheduleNext(context,
+                    ScheduledTestService.POLICY.getNextDelayInMs(TestScheduler.getConsecutiveFailures(context)));
+            return;
+        }
+
+        Intent serviceIntent = new Intent(context, ScheduledTestService.class);
+        serviceIntent.putExtra(ScheduledTestService.EXTRA_NETWORK_CHANGE,
+                ConnectivityManager.CONNECTIVITY_ACTION.equals(action));
+        startWakefulService(context, serviceIntent);
+    }
+}
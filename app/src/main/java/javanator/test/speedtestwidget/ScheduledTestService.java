@@ -0,0 +1,125 @@
+package javanator.test.speedtestwidget;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.Log;
+
+import java.io.IOException;
+
+import javanator.test.speedtestwidget.engine.ResultRecord;
+import javanator.test.speedtestwidget.engine.ResultStore;
+import javanator.test.speedtestwidget.engine.SpeedTestEngine;
+import javanator.test.speedtestwidget.engine.SpeedTestResult;
+import javanator.test.speedtestwidget.engine.TestSchedulePolicy;
+
+/**
+ * Runs an unattended test, without any ui, if the {@link TestSchedulePolicy}
+ * allows it, saves its result to the store for a later upload and arms
+ * the alarm of the next one.
+ */
+public class ScheduledTestService extends IntentService {
+
+    private static final String TAG = ScheduledTestService.class.getSimpleName();
+
+    /*
+     * True if a network change rather than the alarm started the service.
+     */
+    static final String EXTRA_NETWORK_CHANGE = "network_change";
+
+    static final TestSchedulePolicy POLICY = TestSchedulePolicy.DEFAULT_POLICY;
+
+    public ScheduledTestService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            boolean networkChange = intent.getBooleanExtra(EXTRA_NETWORK_CHANGE, false);
+            runTestIfAllowed(networkChange);
+
+            // Network changes come on top of the alarm, which stays armed.
+            if (!networkChange) {
+                TestScheduler.scheduleNext(this, POLICY.getNextDelayInMs(TestScheduler.getConsecutiveFailures(this)));
+            }
+        } finally {
+            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+        }
+    }
+
+    private void runTestIfAllowed(boolean networkChange) {
+        ResultStore store = SpeedTestSetup.getResultStore(this);
+        if (store == null) {
+            Log.w(TAG, "No result store, skipping the test");
+            return;
+        }
+
+        TestSchedulePolicy.DeviceState state;
+        try {
+            state = getDeviceState(store);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read today's data use, skipping the test", e);
+            return;
+        }
+
+        TestSchedulePolicy.Verdict verdict = POLICY.decide(state, networkChange);
+        Log.i(TAG, "Scheduled test " + verdict + ", " + state);
+        if (verdict != TestSchedulePolicy.Verdict.RUN) {
+            return;
+        }
+
+        // Never past the day's cap, the policy only checked it is not used
+        // up. A plain limit, so the test measures as the user's would.
+        long bytesLeftToday = POLICY.getDailyByteCap() - state.getBytesToday();
+        SpeedTestEngine engine = SpeedTestSetup.newEngine(this);
+        engine.setDataBudget(SpeedTestSetup.getDataBudget(this));
+        engine.setByteLimit(bytesLeftToday);
+
+        SpeedTestResult result = SpeedTestSetup.runScheduledTest(engine);
+        if (result == null) {
+            Log.i(TAG, "Skipping the scheduled test, the user runs one");
+            return;
+        }
+        store.append(ResultRecord.fromResult(result, SpeedTestSetup.getNetworkType(this)));
+        TestScheduler.recordTest(this, result.getStartTimeMs(), TestSchedulePolicy.isFailure(result));
+
+        Log.i(TAG, "Scheduled test result " + result);
+    }
+
+    private TestSchedulePolicy.DeviceState getDeviceState(ResultStore store) throws IOException {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+
+        // Sticky, so no receiver is needed to read it.
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        float batteryLevel = 1;
+        boolean charging = false;
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                batteryLevel = (float) level / scale;
+            }
+            int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            charging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                    status == BatteryManager.BATTERY_STATUS_FULL;
+        }
+
+        long nowMs = System.currentTimeMillis();
+        long lastTestTimeMs = TestScheduler.getLastTestTimeMs(this);
+
+        return new TestSchedulePolicy.DeviceState(connected,
+                connectivityManager.isActiveNetworkMetered(),
+                connected && networkInfo.isRoaming(),
+                batteryLevel,
+                charging,
+                store.getBytesTransferred(store.getDayStartMs(nowMs), Long.MAX_VALUE),
+                lastTestTimeMs > 0 ? nowMs - lastTestTimeMs : Long.MAX_VALUE);
+    }
+}
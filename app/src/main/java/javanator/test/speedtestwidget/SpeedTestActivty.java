@@ -10,6 +10,8 @@ public class SpeedTestActivty extends ActionBarActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_speed_test_activty);
+
+        TestScheduler.setEnabled(this, getResources().getBoolean(R.bool.scheduled_tests_enabled));
     }
 
 }
@@ -1,5 +1,6 @@
 package javanator.test.speedtestwidget;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
@@ -7,6 +8,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.util.List;
+
+import javanator.test.speedtestwidget.engine.LatencyResult;
+import javanator.test.speedtestwidget.engine.PhaseResult;
+import javanator.test.speedtestwidget.engine.ResultRecord;
+import javanator.test.speedtestwidget.engine.ResultStore;
+import javanator.test.speedtestwidget.engine.ServerLatency;
+import javanator.test.speedtestwidget.engine.SpeedTestResult;
+
 
 /**
  * A placeholder fragment containing a simple view.
@@ -15,12 +25,16 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
 
     private SpeedTestWidget speedTestWidget;
 
+    private TextView tvLatency;
+
     private TextView tvDownloadSpeed;
 
     private TextView tvUploadSpeed;
 
     private TextView tvStatusMessage;
 
+    private Context appContext;
+
     public SpeedTestActivtyFragment() {
     }
 
@@ -35,11 +49,14 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
         super.onViewCreated(view, savedInstanceState);
 
         speedTestWidget = (SpeedTestWidget) view.findViewById(R.id.speed_test_widget);
+        tvLatency = (TextView) view.findViewById(R.id.tv_latency);
         tvDownloadSpeed = (TextView) view.findViewById(R.id.tv_download_speed);
         tvUploadSpeed = (TextView) view.findViewById(R.id.tv_upload_speed);
         tvStatusMessage = (TextView) view.findViewById(R.id.tv_status_message);
 
         speedTestWidget.setProgressListener(this);
+
+        appContext = getActivity().getApplicationContext();
     }
 
     @Override
@@ -47,7 +64,14 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
         tvStatusMessage.post(new Runnable() {
             @Override
             public void run() {
-                tvStatusMessage.setText(R.string.preparing_download);
+                tvStatusMessage.setText(R.string.preparing_latency);
+            }
+        });
+
+        tvLatency.post(new Runnable() {
+            @Override
+            public void run() {
+                tvLatency.setText("0");
             }
         });
 
@@ -66,6 +90,53 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
         });
     }
 
+    @Override
+    public void onServerSelectionCompleted(final List<ServerLatency> selected) {
+        if (selected.isEmpty()) {
+            return;
+        }
+
+        tvStatusMessage.post(new Runnable() {
+            @Override
+            public void run() {
+                tvStatusMessage.setText(getString(R.string.preparing_latency_to_server,
+                        selected.get(0).getServer().getName()));
+            }
+        });
+    }
+
+    @Override
+    public void onLatencyProgress(final float rttInMs) {
+        tvLatency.post(new Runnable() {
+            @Override
+            public void run() {
+                tvLatency.setText(getString(R.string.latency_value, Math.round(rttInMs)));
+            }
+        });
+    }
+
+    @Override
+    public void onLatencyCompleted(final LatencyResult result) {
+        tvLatency.post(new Runnable() {
+            @Override
+            public void run() {
+                // No median if every probe got lost.
+                if (result.getSampleCount() > 0) {
+                    tvLatency.setText(getString(R.string.latency_value, Math.round(result.getMedianInMs())));
+                } else {
+                    tvLatency.setText("");
+                }
+            }
+        });
+
+        tvStatusMessage.post(new Runnable() {
+            @Override
+            public void run() {
+                tvStatusMessage.setText(R.string.preparing_download);
+            }
+        });
+    }
+
     @Override
     public void onDownloadProgress(final float downloadSpeedInMbps) {
         tvDownloadSpeed.post(new Runnable() {
@@ -77,7 +148,7 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
     }
 
     @Override
-    public void onDownloadCompleted() {
+    public void onDownloadCompleted(PhaseResult result) {
         // Doing nothing for now
         tvStatusMessage.post(new Runnable() {
             @Override
@@ -98,9 +169,18 @@ public class SpeedTestActivtyFragment extends Fragment implements SpeedTestWidge
     }
 
     @Override
-    public void onUploadCompleted() {
-        // Doing nothing for now
+    public void onUploadCompleted(PhaseResult result) {
         // Doing nothing for now
+    }
+
+    @Override
+    public void onTestCompleted(SpeedTestResult result) {
+        // Written on the store's own thread.
+        ResultStore store = SpeedTestSetup.getResultStore(appContext);
+        if (store != null) {
+            store.append(ResultRecord.fromResult(result, SpeedTestSetup.getNetworkType(appContext)));
+        }
+
         tvStatusMessage.post(new Runnable() {
             @Override
             public void run() {
@@ -0,0 +1,173 @@
+package javanator.test.speedtestwidget;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javanator.test.speedtestwidget.engine.DataBudget;
+import javanator.test.speedtestwidget.engine.ResultRecord;
+import javanator.test.speedtestwidget.engine.ResultStore;
+import javanator.test.speedtestwidget.engine.ServerRegistry;
+import javanator.test.speedtestwidget.engine.ServerSelector;
+import javanator.test.speedtestwidget.engine.SpeedTestEngine;
+import javanator.test.speedtestwidget.engine.SpeedTestResult;
+
+/**
+ * What the widget and the scheduled tests share: how an engine gets set
+ * up, the one result store of the process, so that only one writer ever
+ * appends to the file, and which test may run, so that a scheduled test
+ * never competes with one the user started for the same link.
+ */
+public final class SpeedTestSetup {
+
+    private static final String TAG = SpeedTestSetup.class.getSimpleName();
+
+    /*
+     * File in the app's files dir keeping the results of every test.
+     */
+    private static final String RESULT_STORE_FILE_NAME = "results.bin";
+
+    /*
+     * Closest servers of the registry a test keeps.
+     */
+    private static final int SELECTED_SERVER_COUNT = 1;
+
+    // Opened on first use, for the life of the process.
+    private static ResultStore sResultStore;
+
+    // Engines the ui started a test on, gone with their widget.
+    private static final Set<SpeedTestEngine> sForegroundEngines =
+            Collections.newSetFromMap(new WeakHashMap<SpeedTestEngine, Boolean>());
+
+    // Engine of the scheduled test in progress, null if none.
+    private static SpeedTestEngine sScheduledEngine;
+
+    private SpeedTestSetup() {
+    }
+
+    /**
+     * Engine picking its servers from the app's test server config,
+     * uploading through a streaming {@link CustomMultiPartEntity} and
+     * recording what the app spends on every phase.
+     */
+    public static SpeedTestEngine newEngine(Context context) {
+        SpeedTestEngine engine = new SpeedTestEngine();
+        engine.setServerRegistry(loadServerRegistry(context),
+                SELECTED_SERVER_COUNT,
+                ServerSelector.DEFAULT_BUDGET_IN_MS);
+        engine.setTransport(new MultiPartEntityTransport());
+        engine.setResourceProbe(new AndroidResourceProbe());
+        return engine;
+    }
+
+    // Null, so the engine sticks to its default server, if the config is unreadable.
+    private static ServerRegistry loadServerRegistry(Context context) {
+        try {
+            return ServerRegistry.load(context.getResources().openRawResource(R.raw.test_servers));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot load the test servers", e);
+            return null;
+        }
+    }
+
+    /**
+     * Budget of a test on the active network, null for a full test if it
+     * is not metered.
+     */
+    public static DataBudget getDataBudget(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (!connectivityManager.isActiveNetworkMetered()) {
+            return null;
+        }
+
+        return new DataBudget(context.getResources().getInteger(R.integer.lite_test_budget_mb) * 1000L * 1000);
+    }
+
+    /**
+     * Starts a test the user asked for, cancelling a scheduled one in
+     * progress, which would share the link with it.
+     *
+     * @throws IllegalStateException If the engine runs a test already.
+     */
+    public static synchronized void startForegroundTest(SpeedTestEngine engine) {
+        if (sScheduledEngine != null) {
+            Log.i(TAG, "Cancelling the scheduled test for one started by the user");
+            sScheduledEngine.cancel();
+        }
+
+        sForegroundEngines.add(engine);
+        engine.start();
+    }
+
+    /**
+     * Runs a scheduled test on the calling thread, unless the user has one
+     * in progress.
+     *
+     * @return Null if the test got skipped.
+     */
+    public static SpeedTestResult runScheduledTest(SpeedTestEngine engine) {
+        synchronized (SpeedTestSetup.class) {
+            for (SpeedTestEngine foregroundEngine : sForegroundEngines) {
+                if (foregroundEngine.isRunning()) {
+                    return null;
+                }
+            }
+            sScheduledEngine = engine;
+        }
+
+        try {
+            return engine.run();
+        } finally {
+            synchronized (SpeedTestSetup.class) {
+                sScheduledEngine = null;
+            }
+        }
+    }
+
+    /**
+     * The store results go to, null if it cannot be opened. Does disk io
+     * on first use, so keep it off the ui thread.
+     */
+    public static synchronized ResultStore getResultStore(Context context) {
+        if (sResultStore == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), RESULT_STORE_FILE_NAME);
+            try {
+                sResultStore = new ResultStore(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot open the result store", e);
+            }
+        }
+        return sResultStore;
+    }
+
+    /**
+     * One of the ResultRecord.NETWORK_ constants for the active network.
+     */
+    public static int getNetworkType(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return ResultRecord.NETWORK_UNKNOWN;
+        }
+
+        switch (networkInfo.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                return ResultRecord.NETWORK_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return ResultRecord.NETWORK_CELLULAR;
+            case ConnectivityManager.TYPE_ETHERNET:
+                return ResultRecord.NETWORK_ETHERNET;
+            default:
+                return ResultRecord.NETWORK_OTHER;
+        }
+    }
+}
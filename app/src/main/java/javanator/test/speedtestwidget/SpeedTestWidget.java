@@ -1,6 +1,8 @@
 package javanator.test.speedtestwidget;
 
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -10,19 +12,25 @@ import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.LinkedList;
-import java.util.Queue;
+import javanator.test.speedtestwidget.engine.LatencyResult;
+import javanator.test.speedtestwidget.engine.PhaseResult;
+import javanator.test.speedtestwidget.engine.ServerLatency;
+import javanator.test.speedtestwidget.engine.SpeedTestEngine;
+import javanator.test.speedtestwidget.engine.SpeedTestResult;
+
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 
 /**
@@ -76,6 +84,37 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
      */
     private static final float CENTER_TEXT_SIZE = 60f;
 
+    /*
+     * Text size of latency text drawn below the center text.
+     */
+    private static final float LATENCY_TEXT_SIZE = 28f;
+
+    /*
+     * Delay of the sweep the download arc does once the widget shows up.
+     */
+    private static final long START_ANIMATION_DELAY_IN_MS = 1000;
+
+    /*
+     * Time the arc of the start animation takes to fill up before it
+     * sweeps back.
+     */
+    private static final long START_ANIMATION_SWEEP_TIME_IN_MS = 600;
+
+    /*
+     * Text size of the render stats overlay.
+     */
+    private static final float RENDER_STATS_TEXT_SIZE = 22f;
+
+    /*
+     * How often the render stats overlay gets its text anew.
+     */
+    private static final long RENDER_STATS_REFRESH_INTERVAL_IN_NS = 500 * 1000000L;
+
+    /*
+     * Refresh rate assumed when the display does not tell.
+     */
+    private static final float DEFAULT_REFRESH_RATE = 60f;
+
     /*
      * Context associated with the view.
      */
@@ -84,43 +123,58 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
     /*
      * Background thread performing the ui drawing of the widget.
      */
-    private RenderingThread renderingThread;
+    private volatile RenderingThread renderingThread;
 
     /*
-     * Background thread performing the download operation and publishing results.
+     * Engine running the latency, download and upload phases on its own
+     * thread. The widget only renders what it reports.
      */
-    private CalculateDownloadSpeedThread calculateDownloadSpeedThread;
+    private SpeedTestEngine speedTestEngine;
 
-    /*
-     * Background thread performing the upload operation and publishing results.
-     */
-    private CalculateUploadSpeedThread calculateUploadSpeedThread;
+    // Where the arcs, the center button and the labels go at the current
+    // size. Laid out by the rendering thread and swapped in whole, as
+    // touch events read the center button on the ui thread.
+    private volatile GaugeGeometry geometry;
 
     // Components for outer download arc
-    private RectF rectForDownloadArc;
     private Paint paintForDownloadArc;
 
     // Components for inner upload arc
-    private RectF rectForUploadArc;
     private Paint paintForUploadArc;
 
     // Component for outer speed indicating values.
     private Paint paintForSpeedIndicatingValues;
-    private Path pathForSpeedIndicatingValues;
     private float verticalOffSetOfSpeedIndicatingValuesOnPath = -45.0f;
     private float speedIndicatingValuesTextSize = 40.0f;
 
     // Component for eraser paint
     private Paint eraserPaint;
-    private RectF rectForEraserPaint;
 
     // Component for center button
     private Paint paintForCenterButton;
-    private RectF rectForCenterButton;
 
     // Component for center text
     private Paint paintForCenterText;
-    private String centerText;
+    private volatile String centerText;
+
+    // Component for latency text below center text
+    private Paint paintForLatencyText;
+    private volatile String latencyText = "";
+
+    // Labels, background arcs and center button, drawn once into a bitmap
+    // and blitted every frame. Rebuilt on the rendering thread once marked
+    // dirty by a size or scale change.
+    private Bitmap staticLayer;
+    private Paint paintForStaticLayer;
+    private volatile boolean staticLayerDirty = true;
+
+    // Frame times of whichever rendering thread is up, and whether to draw
+    // them over the widget.
+    private final RenderStats renderStats = new RenderStats();
+    private volatile boolean renderStatsOverlayEnabled = false;
+    private Paint paintForRenderStats;
+    private String[] renderStatsLines = new String[0];
+    private long renderStatsLinesTimeNs;
 
     // Flag indicating the touch down event received on Center button.
     // It will start off the start operation if touch up event is also
@@ -130,6 +184,16 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
 
     private ProgressListener progressListener;
 
+    private final EngineListener engineListener = new EngineListener();
+
+    // Hands the angles over to whichever rendering thread is up, without
+    // the engine's thread ever waiting on it.
+    private final SweepAngleSlots sweepAngleSlots = new SweepAngleSlots();
+
+    // Maps the published speeds to the arcs. Built once, used for every
+    // publish.
+    private GaugeScale gaugeScale = new PiecewiseGaugeScale(SPEED_INDICATING_VALUES_IN_MB);
+
     public SpeedTestWidget(Context context) {
         super(context);
         init(context);
@@ -157,67 +221,104 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
         SurfaceHolder holder = getHolder();
         holder.addCallback(this);
         holder.setFormat(PixelFormat.TRANSLUCENT);
+
+        // No app resources in the layout editor.
+        speedTestEngine = isInEditMode() ? new SpeedTestEngine() : SpeedTestSetup.newEngine(context);
+        speedTestEngine.setListener(engineListener);
+        renderStatsOverlayEnabled = !isInEditMode() &&
+                context.getResources().getBoolean(R.bool.render_stats_overlay_enabled);
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
 
+        // A new surface starts without the layer of the last one.
+        staticLayerDirty = true;
+
         // Start the rendering thread.
-        renderingThread = new RenderingThread(holder, this);
-        renderingThread.setRunning(true);
-        renderingThread.start();
+        RenderingThread thread = new RenderingThread(holder, this);
+        thread.start();
+        renderingThread = thread;
 
         initStartAnimation();
     }
 
+    // Left out if the surface is gone by then.
     private void initStartAnimation() {
+        final RenderingThread thread = renderingThread;
         postDelayed(new Runnable() {
             @Override
             public void run() {
-                renderingThread.showDownloadSweepingAngle(270);
-                renderingThread.showDownloadSweepingAngle(0);
+                if (renderingThread == thread) {
+                    thread.showDownloadSweepingAngle(ARC_BACKGROUND_SWEEP_ANGLE);
+                }
             }
-        }, 1000);
+        }, START_ANIMATION_DELAY_IN_MS);
+
+        // Only the latest angle gets shown, so sweep back once the arc is full.
+        postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (renderingThread == thread) {
+                    thread.showDownloadSweepingAngle(0);
+                }
+            }
+        }, START_ANIMATION_DELAY_IN_MS + START_ANIMATION_SWEEP_TIME_IN_MS);
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
 
+        // Everything gets laid out for the new size on the next frame.
+        staticLayerDirty = true;
+        requestRender();
     }
 
     @Override
-    public void surfaceDestroyed(SurfaceHolder holder) {
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
 
-        // Stop the rendering thread.
-        renderingThread.setRunning(false);
+        // Density, font scale or locale may have changed the labels.
+        staticLayerDirty = true;
+        requestRender();
+    }
 
-        // Stop the downloading thread. if any
-        if(calculateDownloadSpeedThread != null) {
-            calculateDownloadSpeedThread.setRunning(false);
-        }
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
 
-        // Stop the Uploading thread. if any
-        if(calculateUploadSpeedThread != null) {
-            calculateUploadSpeedThread.setRunning(false);
+        // Stop the rendering thread. Reports from here on wait in the slots.
+        RenderingThread thread = renderingThread;
+        renderingThread = null;
+        if (thread != null) {
+            thread.quit();
         }
 
+        // Stop the running test. if any
+        speedTestEngine.cancel();
+
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
 
+        // Not laid out before the first frame.
+        GaugeGeometry geometry = this.geometry;
+        if (geometry == null) {
+            return true;
+        }
+
         int touchX = (int) event.getX();
         int touchY = (int) event.getY();
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                if (rectForCenterButton.contains(touchX, touchY)) {
+                if (geometry.centerButton.contains(touchX, touchY)) {
                     centerButtonPressed = true;
                 }
                 break;
             case MotionEvent.ACTION_UP:
-                if (rectForCenterButton.contains(touchX, touchY) &&
+                if (geometry.centerButton.contains(touchX, touchY) &&
                     centerButtonPressed &&
-                    centerText.equals(mContext.getString(R.string.start))) {
+                    !speedTestEngine.isRunning()) {
 
                     startButtonPressed();
                 }
@@ -228,82 +329,156 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
         return true;
     }
 
-    private void startButtonPressed() {
-        centerText = mContext.getString(R.string.wait);
-        renderingThread.setRunning(true);
+    // No rendering thread while the surface is gone. The slots and the
+    // text fields keep what got reported for the next one's first frame.
+    private void showDownloadSweepingAngle(float downloadSweepAngle) {
+        RenderingThread thread = renderingThread;
+        if (thread != null) {
+            thread.showDownloadSweepingAngle(downloadSweepAngle);
+        } else {
+            sweepAngleSlots.setDownloadSweepAngle(downloadSweepAngle);
+        }
+    }
 
-        if(progressListener != null) {
-            progressListener.onTestStarted();
+    private void showUploadSweepingAngle(float uploadSweepAngle) {
+        RenderingThread thread = renderingThread;
+        if (thread != null) {
+            thread.showUploadSweepingAngle(uploadSweepAngle);
+        } else {
+            sweepAngleSlots.setUploadSweepAngle(uploadSweepAngle);
         }
+    }
+
+    private void requestRender() {
+        RenderingThread thread = renderingThread;
+        if (thread != null) {
+            thread.requestRender();
+        }
+    }
+
+    private void startButtonPressed() {
+        centerText = mContext.getString(R.string.wait);
 
         // Reset previous counters
-        renderingThread.showDownloadSweepingAngle(0);
-        renderingThread.showUploadSweepingAngle(0);
+        latencyText = "";
+        showDownloadSweepingAngle(0);
+        showUploadSweepingAngle(0);
 
-        calculateDownloadSpeedThread = new CalculateDownloadSpeedThread(this);
-        calculateDownloadSpeedThread.setRunning(true);
-        calculateDownloadSpeedThread.start();
+        // Lite test on metered networks, decided anew on every start.
+        speedTestEngine.setDataBudget(SpeedTestSetup.getDataBudget(mContext));
+        SpeedTestSetup.startForegroundTest(speedTestEngine);
     }
 
     public void setProgressListener(ProgressListener progressListener) {
         this.progressListener = progressListener;
     }
 
+    /**
+     * Engine the widget renders. Configure it through here, e.g. to pick
+     * the transport or the stream counts.
+     */
+    public SpeedTestEngine getSpeedTestEngine() {
+        return speedTestEngine;
+    }
+
+    /**
+     * Replaces the engine the widget renders, e.g. with one shared with a
+     * background service. Must not be called while a test runs.
+     */
+    public void setSpeedTestEngine(SpeedTestEngine speedTestEngine) {
+        if (this.speedTestEngine.isRunning()) {
+            throw new IllegalStateException("Cannot replace the engine while a test runs");
+        }
+
+        this.speedTestEngine.setListener(null);
+        this.speedTestEngine = speedTestEngine;
+        this.speedTestEngine.setListener(engineListener);
+    }
+
+    /**
+     * Counters of the hand-off of the angles to the rendering thread.
+     */
+    public SweepAngleSlots getSweepAngleSlots() {
+        return sweepAngleSlots;
+    }
+
+    /**
+     * Frame times and jank of the rendering, for tuning it on slow devices.
+     */
+    public RenderStats getRenderStats() {
+        return renderStats;
+    }
+
+    /**
+     * Draws the render stats over the widget, e.g. from a debug menu.
+     */
+    public void setRenderStatsOverlayEnabled(boolean enabled) {
+        renderStatsOverlayEnabled = enabled;
+        requestRender();
+    }
+
+    public GaugeScale getGaugeScale() {
+        return gaugeScale;
+    }
+
+    /**
+     * Sets how speeds map to the arcs, e.g. a {@link LogGaugeScale} for
+     * multi gigabit links. The scale's speed indicating values get drawn as
+     * labels along the arc.
+     */
+    public void setGaugeScale(GaugeScale gaugeScale) {
+        if (gaugeScale == null) {
+            throw new IllegalArgumentException("Gauge scale cannot be null");
+        }
+
+        this.gaugeScale = gaugeScale;
+
+        // The labels live in the static layer.
+        staticLayerDirty = true;
+        requestRender();
+    }
+
     protected void doDraw(Canvas canvas,
-                          int downloadArcForegroundSweepAngle,
-                          int uploadArcForegroundSweepAngle ) {
+                          float downloadArcForegroundSweepAngle,
+                          float uploadArcForegroundSweepAngle ) {
 
-        initRequiredRectAndPaint();
+        if (staticLayerDirty) {
+            staticLayerDirty = false;
+            initRequiredPaint();
 
-        // Draw the text pointers
-        drawSpeedIndicatingValues(canvas);
+            GaugeGeometry newGeometry = new GaugeGeometry(getWidth(), getHeight());
+            buildStaticLayer(newGeometry);
+            geometry = newGeometry;
+        }
+        GaugeGeometry geometry = this.geometry;
 
-        // Draw the background of download arc
-        paintForDownloadArc.setColor(Color.DKGRAY);
-        canvas.drawArc(rectForDownloadArc,
-                ARC_START_ANGLE,
-                ARC_BACKGROUND_SWEEP_ANGLE,
-                true,
-                paintForDownloadArc);
+        // Replaces whatever the last frame left, transparent parts included.
+        canvas.drawBitmap(staticLayer, 0, 0, paintForStaticLayer);
 
-        // Draw the download arc on the basis of speed obtained.
+        // Draw the download arc on the basis of speed obtained. Without the
+        // lines to the center, so that it stays on its background arc.
         paintForDownloadArc.setColor(Color.GRAY);
 
         if(downloadArcForegroundSweepAngle > 0) {
-            canvas.drawArc(rectForDownloadArc,
+            canvas.drawArc(geometry.downloadArc,
                     ARC_START_ANGLE,
                     downloadArcForegroundSweepAngle,
-                    true,
+                    false,
                     paintForDownloadArc);
         }
 
-        // Draw the background of upload arc
-        paintForUploadArc.setColor(Color.BLUE);
-        canvas.drawArc(rectForUploadArc,
-                ARC_START_ANGLE,
-                ARC_BACKGROUND_SWEEP_ANGLE,
-                true,
-                paintForUploadArc);
-
         // Draw the upload arc on the basis of speed obtained.
         paintForUploadArc.setColor(Color.GREEN);
         if(uploadArcForegroundSweepAngle > 0) {
-            canvas.drawArc(rectForUploadArc,
+            canvas.drawArc(geometry.uploadArc,
                     ARC_START_ANGLE,
                     uploadArcForegroundSweepAngle,
-                    true,
+                    false,
                     paintForUploadArc);
         }
 
-
-        // Clear the inner arc lines with eraser
-        canvas.drawArc(rectForEraserPaint, 0, 360, true, eraserPaint);
-
-        // Draw the center button
-        canvas.drawArc(rectForCenterButton, 0, 360, true, paintForCenterButton);
-
-        float xPos = rectForCenterButton.centerX();
-        float yPos = (int) (rectForCenterButton.centerY() - (
+        float xPos = geometry.centerButton.centerX();
+        float yPos = (int) (geometry.centerButton.centerY() - (
                 (paintForCenterText.descent() +
                         paintForCenterText.ascent()) / 2));
 
@@ -312,22 +487,69 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
                 xPos,
                 yPos,
                 paintForCenterText);
+
+        // Draw the latency text below it
+        canvas.drawText(latencyText, 0, latencyText.length(),
+                xPos,
+                yPos + CENTER_TEXT_SIZE,
+                paintForLatencyText);
     }
 
-    private void drawSpeedIndicatingValues(Canvas canvas) {
-        PathMeasure measure = new PathMeasure(pathForSpeedIndicatingValues, false);
+    // Called by the rendering thread, only with the overlay enabled. Draws
+    // the text of the latest refresh, so that the frame costs no more than
+    // a few more lines of text.
+    private void drawRenderStats(Canvas canvas) {
+        if (paintForRenderStats == null) {
+            paintForRenderStats = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paintForRenderStats.setTextSize(RENDER_STATS_TEXT_SIZE);
+            paintForRenderStats.setColor(Color.RED);
+        }
+
+        String[] lines = renderStatsLines;
+        for (int i = 0; i < lines.length; i++) {
+            canvas.drawText(lines[i], 0, (i + 1) * RENDER_STATS_TEXT_SIZE, paintForRenderStats);
+        }
+    }
 
-        float originalDistance = 0;
+    // Called by the rendering thread once a frame is recorded, so that the
+    // formatting and the copies of the histograms stay out of its times.
+    private void refreshRenderStats(long nowNs) {
+        if (renderStatsLines.length > 0 &&
+                nowNs - renderStatsLinesTimeNs < RENDER_STATS_REFRESH_INTERVAL_IN_NS) {
+            return;
+        }
+        renderStatsLinesTimeNs = nowNs;
+
+        Histogram lockCanvasTime = renderStats.getLockCanvasTime();
+        Histogram drawTime = renderStats.getDrawTime();
+        Histogram angleLag = renderStats.getAngleLag();
+
+        renderStatsLines = new String[] {
+                String.format(Locale.US, "%.1f fps, %d late, %d dropped of %d",
+                        renderStats.getFramesPerSecond(), renderStats.getLateFrameCount(),
+                        renderStats.getDroppedFrameCount(), renderStats.getFrameCount()),
+                String.format(Locale.US, "lockCanvas p50 %.2f p95 %.2f ms",
+                        lockCanvasTime.getPercentile(50), lockCanvasTime.getPercentile(95)),
+                String.format(Locale.US, "doDraw p50 %.2f p95 %.2f ms",
+                        drawTime.getPercentile(50), drawTime.getPercentile(95)),
+                String.format(Locale.US, "angle lag p50 %.1f p95 %.1f deg",
+                        angleLag.getPercentile(50), angleLag.getPercentile(95))
+        };
+    }
+
+    private void drawSpeedIndicatingValues(Canvas canvas, Path pathForSpeedIndicatingValues) {
+        PathMeasure measure = new PathMeasure(pathForSpeedIndicatingValues, false);
 
-        int numberOfTextPointers = SPEED_INDICATING_VALUES_IN_MB.length;
+        int[] speedIndicatingValues = gaugeScale.getSpeedIndicatingValuesInMb();
+        int numberOfTextPointers = speedIndicatingValues.length;
 
         for (int i = 0; i < numberOfTextPointers; i++) {
 
-            int value = SPEED_INDICATING_VALUES_IN_MB[i];
+            int value = speedIndicatingValues[i];
             String pointerValue = value + SPEED_INDICATING_VALUE_POSTFIX;
 
             float pointerWidth = paintForSpeedIndicatingValues.measureText(pointerValue);
-            float hOffSet = originalDistance;
+            float hOffSet = measure.getLength() * gaugeScale.getPosition(value);
             if (i != 0 && i != (numberOfTextPointers - 1)) {
                 hOffSet -= (pointerWidth / 2);
             } else if (i == (numberOfTextPointers - 1)) {
@@ -340,19 +562,56 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
                     hOffSet,
                     verticalOffSetOfSpeedIndicatingValuesOnPath,
                     paintForSpeedIndicatingValues);
+        }
+    }
 
-            originalDistance += measure.getLength() / (numberOfTextPointers - 1);
+    private void buildStaticLayer(GaugeGeometry geometry) {
+        if (staticLayer != null) {
+            staticLayer.recycle();
         }
+        staticLayer = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(staticLayer);
+
+        // Draw the text pointers
+        drawSpeedIndicatingValues(canvas, geometry.speedIndicatingValues);
+
+        // Draw the background of download arc
+        paintForDownloadArc.setColor(Color.DKGRAY);
+        canvas.drawArc(geometry.downloadArc,
+                ARC_START_ANGLE,
+                ARC_BACKGROUND_SWEEP_ANGLE,
+                true,
+                paintForDownloadArc);
+
+        // Draw the background of upload arc
+        paintForUploadArc.setColor(Color.BLUE);
+        canvas.drawArc(geometry.uploadArc,
+                ARC_START_ANGLE,
+                ARC_BACKGROUND_SWEEP_ANGLE,
+                true,
+                paintForUploadArc);
+
+        // Clear the inner arc lines with eraser
+        canvas.drawArc(geometry.eraser, 0, 360, true, eraserPaint);
+
+        // Draw the center button
+        canvas.drawArc(geometry.centerButton, 0, 360, true, paintForCenterButton);
     }
 
-    private void initRequiredRectAndPaint() {
+    // Paints do not depend on the size, they get made once.
+    private void initRequiredPaint() {
 
-        initRectAndPaintForDownloadArc();
-        initRectAndPaintForUploadArc();
+        initPaintForDownloadArc();
+        initPaintForUploadArc();
         initPaintForSpeedIndicatingValues();
-        initRectAndPaintForEraser();
-        initRectAndPaintForCenterButton();
+        initPaintForEraser();
+        initPaintForCenterButton();
         initPaintForCenterText();
+
+        if (paintForStaticLayer == null) {
+            paintForStaticLayer = new Paint();
+            paintForStaticLayer.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
     }
 
     private void initPaintForCenterText() {
@@ -370,22 +629,20 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
         if (centerText == null) {
             centerText = mContext.getString(R.string.start);
         }
-    }
 
-    private void initRectAndPaintForCenterButton() {
+        if (paintForLatencyText == null) {
 
-        if (rectForCenterButton == null || paintForCenterButton == null) {
+            paintForLatencyText = new Paint();
+            paintForLatencyText.setAntiAlias(true);
+            paintForLatencyText.setColor(Color.WHITE);
+            paintForLatencyText.setTextAlign(Paint.Align.CENTER);
+            paintForLatencyText.setTextSize(LATENCY_TEXT_SIZE);
+        }
+    }
 
-            rectForCenterButton = new RectF();
-            int left = 0;
-            int width = getWidth();
-            int height = getHeight();
-            int top = 0;
+    private void initPaintForCenterButton() {
 
-            rectForCenterButton.set(left + OUTER_ARC_PADDING + (3 * ARC_STROKE_WIDTH),
-                    top + OUTER_ARC_PADDING + (3 * ARC_STROKE_WIDTH),
-                    left + width - OUTER_ARC_PADDING - (3 * ARC_STROKE_WIDTH),
-                    top + height - OUTER_ARC_PADDING - (3 * ARC_STROKE_WIDTH));
+        if (paintForCenterButton == null) {
 
             paintForCenterButton = new Paint();
             paintForCenterButton.setStyle(Paint.Style.FILL_AND_STROKE);
@@ -397,20 +654,9 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
     }
 
 
-    private void initRectAndPaintForEraser() {
-
-        if (rectForEraserPaint == null || eraserPaint == null) {
-
-            rectForEraserPaint = new RectF();
-            int left = 0;
-            int width = getWidth();
-            int height = getHeight();
-            int top = 0;
+    private void initPaintForEraser() {
 
-            rectForEraserPaint.set(left + OUTER_ARC_PADDING + (2 * ARC_STROKE_WIDTH),
-                    top + OUTER_ARC_PADDING + (2 * ARC_STROKE_WIDTH),
-                    left + width - OUTER_ARC_PADDING - (2 * ARC_STROKE_WIDTH),
-                    top + height - OUTER_ARC_PADDING - (2 * ARC_STROKE_WIDTH));
+        if (eraserPaint == null) {
 
             eraserPaint = new Paint();
             eraserPaint.setStyle(Paint.Style.FILL_AND_STROKE);
@@ -422,20 +668,8 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
         }
     }
 
-    private void initRectAndPaintForDownloadArc() {
-        // Check for rectForDownloadArc is initialized or not.
-        if (rectForDownloadArc == null || paintForDownloadArc == null) {
-            rectForDownloadArc = new RectF();
-            int left = 0;
-            int width = getWidth();
-            int height = getHeight();
-            int top = 0;
-
-            rectForDownloadArc.set(left + OUTER_ARC_PADDING,
-                    top + OUTER_ARC_PADDING,
-                    left + width - OUTER_ARC_PADDING,
-                    top + height - OUTER_ARC_PADDING);
-
+    private void initPaintForDownloadArc() {
+        if (paintForDownloadArc == null) {
             paintForDownloadArc = new Paint();
             paintForDownloadArc.setStyle(Paint.Style.STROKE);
             paintForDownloadArc.setAntiAlias(true);
@@ -443,20 +677,8 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
         }
     }
 
-    private void initRectAndPaintForUploadArc() {
-        // Check for rectForUploadArc is initialized or not.
-        if (rectForUploadArc == null || paintForUploadArc == null) {
-            rectForUploadArc = new RectF();
-            int left = 0;
-            int width = getWidth();
-            int height = getHeight();
-            int top = 0;
-
-            rectForUploadArc.set(left + OUTER_ARC_PADDING + ARC_STROKE_WIDTH,
-                    top + OUTER_ARC_PADDING + ARC_STROKE_WIDTH,
-                    left + width - OUTER_ARC_PADDING - ARC_STROKE_WIDTH,
-                    top + height - OUTER_ARC_PADDING - ARC_STROKE_WIDTH);
-
+    private void initPaintForUploadArc() {
+        if (paintForUploadArc == null) {
             paintForUploadArc = new Paint();
             paintForUploadArc.setStyle(Paint.Style.STROKE);
             paintForUploadArc.setAntiAlias(true);
@@ -465,132 +687,75 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
     }
 
     private void initPaintForSpeedIndicatingValues() {
-        // Check for rectForDownloadArc is initialized or not.
         if (paintForSpeedIndicatingValues == null) {
 
             paintForSpeedIndicatingValues = new Paint();
             paintForSpeedIndicatingValues.setTextSize(speedIndicatingValuesTextSize);
             paintForSpeedIndicatingValues.setColor(Color.BLACK);
-
-            pathForSpeedIndicatingValues = new Path();
-            pathForSpeedIndicatingValues.addArc(rectForDownloadArc,
-                    ARC_START_ANGLE,
-                    ARC_BACKGROUND_SWEEP_ANGLE);
-        }
-    }
-
-    public void setDownloadSpeed(float speedInMbps) {
-        renderingThread.showDownloadSweepingAngle(calculateSweepAngleOnSpeedBasis(speedInMbps));
-
-        if(progressListener != null) {
-            progressListener.onDownloadProgress(speedInMbps);
         }
     }
 
-    public void setDownloadCompleted() {
-        centerText = mContext.getString(R.string.wait);
-        renderingThread.setRunning(true);
-
-        // Start the upload thread.
-        calculateUploadSpeedThread = new CalculateUploadSpeedThread(this);
-        calculateUploadSpeedThread.setRunning(true);
-        calculateUploadSpeedThread.start();
-
-        if(progressListener != null) {
-            progressListener.onDownloadCompleted();
-        }
+    private float calculateSweepAngleOnSpeedBasis(float speedInMbps) {
+        return gaugeScale.getPosition(speedInMbps) * ARC_BACKGROUND_SWEEP_ANGLE;
     }
 
-    public void setUploadCompleted() {
-        centerText = mContext.getString(R.string.start);
-        renderingThread.setRunning(true);
-        if(progressListener != null) {
-            progressListener.onUploadCompleted();
-        }
-    }
+    // Rects of the arcs and the center button, and the path the labels
+    // follow, for one size of the widget. Never changed once built.
+    private static class GaugeGeometry {
 
+        final RectF downloadArc;
+        final RectF uploadArc;
+        final RectF eraser;
+        final RectF centerButton;
+        final Path speedIndicatingValues;
 
-    public void setUploadSpeed(float speedInMbps) {
-        renderingThread.showUploadSweepingAngle(calculateSweepAngleOnSpeedBasis(speedInMbps));
-        if(progressListener != null) {
-            progressListener.onUploadProgress(speedInMbps);
-        }
-    }
+        GaugeGeometry(int width, int height) {
+            downloadArc = newInsetRect(width, height, 0);
+            uploadArc = newInsetRect(width, height, ARC_STROKE_WIDTH);
+            eraser = newInsetRect(width, height, 2 * ARC_STROKE_WIDTH);
+            centerButton = newInsetRect(width, height, 3 * ARC_STROKE_WIDTH);
 
-    private int calculateSweepAngleOnSpeedBasis(float speedInMbps) {
-
-        int sweepingAngle = 0;
-
-        // Start with the first index.
-        int i = 1;
-        while (i < SPEED_INDICATING_VALUES_IN_MB.length) {
-            if (speedInMbps <= SPEED_INDICATING_VALUES_IN_MB[i]) {
-                break;
-            }
-            i++;
-        }
-
-        if (i >= SPEED_INDICATING_VALUES_IN_MB.length) {
-            return ARC_BACKGROUND_SWEEP_ANGLE;
+            speedIndicatingValues = new Path();
+            speedIndicatingValues.addArc(downloadArc,
+                    ARC_START_ANGLE,
+                    ARC_BACKGROUND_SWEEP_ANGLE);
         }
 
-        int numberOfDegreeInEachSection = ARC_BACKGROUND_SWEEP_ANGLE / (SPEED_INDICATING_VALUES_IN_MB.length - 1);
-        sweepingAngle = (i - 1) * numberOfDegreeInEachSection;
-
-        // We have calculated the floor text pointer sweepingAngle.
-        // Calculate the rest increase as well.
-        // Lets calculate the difference of speed in the section where our speed is
-        // residing.
-        float diffOfSpeedInResidingSection = SPEED_INDICATING_VALUES_IN_MB[i] - SPEED_INDICATING_VALUES_IN_MB[i - 1];
-        float perDegreeMbIncreaseInResidingSection = diffOfSpeedInResidingSection / numberOfDegreeInEachSection;
-        float speedInMppsLeftToBeConsideredInSweepingAngle = speedInMbps - SPEED_INDICATING_VALUES_IN_MB[i - 1];
-
-        // Prepare the array for binary search to find the nearest index where speed belongs
-        float[] arrayOfSpeedValues = new float[numberOfDegreeInEachSection];
-        for (int y = 0; y < numberOfDegreeInEachSection; y++) {
-            arrayOfSpeedValues[y] = y * perDegreeMbIncreaseInResidingSection;
+        // Rect of the widget less the outer padding and the given inset.
+        private static RectF newInsetRect(int width, int height, float inset) {
+            RectF rect = new RectF();
+            rect.set(OUTER_ARC_PADDING + inset,
+                    OUTER_ARC_PADDING + inset,
+                    width - OUTER_ARC_PADDING - inset,
+                    height - OUTER_ARC_PADDING - inset);
+            return rect;
         }
-
-        int nearestIndex = getClosestIndex(arrayOfSpeedValues, speedInMppsLeftToBeConsideredInSweepingAngle);
-        sweepingAngle += nearestIndex;
-
-        return sweepingAngle;
     }
 
-    /**
-     * Use binary search to find closest index.
-     *
-     * @param a
-     * @param x
-     * @return
-     */
-    public static int getClosestIndex(float[] a, float x) {
+    // Thread doing the ui rendering of SpeedTestWidget. Frames are paced by
+    // the choreographer, and only drawn while the arcs are still moving or
+    // something asked for a redraw.
+    private class RenderingThread extends Thread implements Choreographer.FrameCallback {
 
-        int low = 0;
-        int high = a.length - 1;
+        /*
+         * Time in which an arc covers about two thirds of the way to its
+         * target, whatever the frame rate.
+         */
+        private static final long ANIMATION_TIME_CONSTANT_IN_NS = 100 * 1000000L;
 
-        if (high < 0)
-            throw new IllegalArgumentException("The array cannot be empty");
+        /*
+         * Frame time assumed for the first frame of an animation.
+         */
+        private static final long DEFAULT_FRAME_TIME_IN_NS = 16 * 1000000L;
 
-        while (low < high) {
-            int mid = (low + high) / 2;
-            float d1 = Math.abs(a[mid] - x);
-            float d2 = Math.abs(a[mid + 1] - x);
-            if (d2 <= d1) {
-                low = mid + 1;
-            } else {
-                high = mid;
-            }
-        }
-        return high;
-    }
+        /*
+         * Arcs closer to their target than this are done animating.
+         */
+        private static final float SETTLED_SWEEP_ANGLE_DIFFERENCE = 0.1f;
 
-    // Thread doing the ui rendering of SpeedTestWidget.
-    private class RenderingThread extends Thread {
+        private final long mVsyncPeriodNs;
 
-        private final Integer INCREMENT_IN_PROGRESS = 4;
-
-        private boolean mRunning;
+        private volatile boolean mRunning;
 
         private Canvas mCanvas;
 
@@ -598,375 +763,285 @@ public class SpeedTestWidget extends SurfaceView implements SurfaceHolder.Callba
 
         private SpeedTestWidget mSpeedTestWidget;
 
-        private int startingDownloadSweepAngle = 0;
+        // Handler of the thread's looper, null till the thread has started.
+        private volatile Handler mHandler;
+
+        // Only touched on the rendering thread from here on.
+        private Choreographer mChoreographer;
 
-        private int startingUploadSweepAngle = 0;
+        private boolean mFrameScheduled = false;
 
-        private int targetDownloadSweepAngle = 0;
+        private long mLastFrameTimeNs = 0;
 
-        private int targetUploadSweepAngle = 0;
+        private float currentDownloadSweepAngle = 0;
 
-        private Queue<Integer> downloadValuesToBeDisplayed = new LinkedList<>();
+        private float currentUploadSweepAngle = 0;
 
-        private Queue<Integer> uploadValuesToBeDisplayed = new LinkedList<>();
+        private final Runnable scheduleFrameRunnable = new Runnable() {
+            @Override
+            public void run() {
+                scheduleFrame();
+            }
+        };
 
         public RenderingThread(SurfaceHolder surfaceHolder,
                                SpeedTestWidget speedTestWidget) {
 
             mSurfaceHolder = surfaceHolder;
-            mRunning = false;
+            mRunning = true;
             mSpeedTestWidget = speedTestWidget;
 
+            float refreshRate = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay().getRefreshRate();
+            mVsyncPeriodNs = (long) (1000000000L / (refreshRate > 0 ? refreshRate : DEFAULT_REFRESH_RATE));
+
             // Set name of the thread.
             setName(RenderingThread.class.getSimpleName());
         }
 
-        public void showDownloadSweepingAngle(Integer downloadSweepAngle) {
-            synchronized (mSpeedTestWidget) {
-                downloadValuesToBeDisplayed.add(downloadSweepAngle);
-                mSpeedTestWidget.notify();
-            }
-        }
-
-        public void showUploadSweepingAngle(Integer uploadSweepAngle) {
-            synchronized (mSpeedTestWidget) {
-                uploadValuesToBeDisplayed.add(uploadSweepAngle);
-                mSpeedTestWidget.notify();
+        public void showDownloadSweepingAngle(float downloadSweepAngle) {
+            if (sweepAngleSlots.setDownloadSweepAngle(downloadSweepAngle)) {
+                wakeUp();
             }
         }
 
-        private Integer getDownloadSweepAngleToDisplay() {
-            Integer top;
-            synchronized (mSpeedTestWidget) {
-                if(downloadValuesToBeDisplayed.isEmpty()) {
-                    top = null;
-                }
-                else {
-                    top  = downloadValuesToBeDisplayed.remove();
-                }
+        public void showUploadSweepingAngle(float uploadSweepAngle) {
+            if (sweepAngleSlots.setUploadSweepAngle(uploadSweepAngle)) {
+                wakeUp();
             }
-
-            return top;
         }
 
-        private Integer getUploadSweepAngleToDisplay() {
-            Integer top;
-            synchronized (mSpeedTestWidget) {
-                if(uploadValuesToBeDisplayed.isEmpty()) {
-                    top = null;
-                } else {
-                    top  = uploadValuesToBeDisplayed.remove();
-                }
+        /**
+         * Draws a frame soon, e.g. after the texts have changed. Safe to call
+         * from any thread.
+         */
+        public void requestRender() {
+            if (sweepAngleSlots.requestRender()) {
+                wakeUp();
             }
-
-            return top;
         }
 
-        public void setRunning(boolean running) {
-            mRunning = running;
-            synchronized (mSpeedTestWidget) {
-                mSpeedTestWidget.notify();
+        // At most once per frame, the slots coalesce everything in between.
+        // Before the thread is up its first frame picks up the angles.
+        private void wakeUp() {
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.post(scheduleFrameRunnable);
             }
         }
 
-        private void pauseDrawing() {
-            synchronized (mSpeedTestWidget) {
-                // After drawing once put your self on hold.
-                try {
-                    mSpeedTestWidget.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, e.getMessage(), e);
-                }
+        public void quit() {
+            mRunning = false;
+            Log.d(TAG, "Sweep angle hand-off: " + sweepAngleSlots);
+            Log.d(TAG, "Render stats: " + renderStats);
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.getLooper().quit();
             }
         }
 
         @Override
         public void run() {
             super.run();
-            while (mRunning) {
 
-                Integer tempTargetDownloadSweepAngle = getDownloadSweepAngleToDisplay();
-                Integer tempTargetUploadSweepAnngle = getUploadSweepAngleToDisplay();
-
-                if (tempTargetDownloadSweepAngle == null && tempTargetUploadSweepAnngle == null) {
-                    drawOnCanvas();
-                    pauseDrawing();
-                    continue;
-                }
-
-                if (tempTargetDownloadSweepAngle != null) {
-                    targetDownloadSweepAngle = tempTargetDownloadSweepAngle;
-                }
-
-                if (tempTargetUploadSweepAnngle != null) {
-                    targetUploadSweepAngle = tempTargetUploadSweepAnngle;
-                }
-
-                showProgressAnimation();
-
-                startingDownloadSweepAngle = targetDownloadSweepAngle;
-                startingUploadSweepAngle = targetUploadSweepAngle;
-
-                drawOnCanvas();
+            Looper.prepare();
+            mChoreographer = Choreographer.getInstance();
+            mHandler = new Handler();
 
+            // Quit before the handler was there to quit the looper with.
+            if (!mRunning) {
+                return;
             }
-        }
-
-        private void showProgressAnimation() {
-            while (Math.abs(startingDownloadSweepAngle - targetDownloadSweepAngle) > INCREMENT_IN_PROGRESS ||
-                    Math.abs(startingUploadSweepAngle - targetUploadSweepAngle) > INCREMENT_IN_PROGRESS) {
-
-                if (startingDownloadSweepAngle < targetDownloadSweepAngle) {
-                    startingDownloadSweepAngle += INCREMENT_IN_PROGRESS;
-                } else if (startingDownloadSweepAngle > targetDownloadSweepAngle) {
-                    startingDownloadSweepAngle -= INCREMENT_IN_PROGRESS;
-                }
-
-                if (startingUploadSweepAngle < targetUploadSweepAngle) {
-                    startingUploadSweepAngle += INCREMENT_IN_PROGRESS;
-                } else if (startingUploadSweepAngle > targetUploadSweepAngle) {
-                    startingUploadSweepAngle -= INCREMENT_IN_PROGRESS;
-                }
 
-                drawOnCanvas();
-            }
+            // Picks up whatever got shown before the thread was up.
+            scheduleFrame();
+            Looper.loop();
         }
 
-        private void drawOnCanvas() {
-            mCanvas = mSurfaceHolder.lockCanvas();
-            if (mCanvas != null) {
-                mSpeedTestWidget.doDraw(mCanvas, startingDownloadSweepAngle, startingUploadSweepAngle);
-                mSurfaceHolder.unlockCanvasAndPost(mCanvas);
+        private void scheduleFrame() {
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback(this);
             }
         }
 
-    }
-
-
-    private class CalculateDownloadSpeedThread extends Thread {
-
-        // Better set it from gradle settings for build types
-        private final String DOWNLOAD_URL = "http://static.rawtooth.com/test.500mb";
-
-        private final Double MAX_TIME_FOR_DOWNLOAD_PROCESS_IN_NS = 10000 * 1000000.0D;
-
-        private final Double TIME_FOR_PUBLISHING_RESULTS_IN_NS = 50 * 1000000.0D;
-
-        private final Double ONE_SECOND_IN_NS_UNIT = 1000000000D;
-
-        private boolean mRunning = false;
-
-        private SpeedTestWidget mSpeedTestWidget;
-
-        public CalculateDownloadSpeedThread(SpeedTestWidget speedTestWidget) {
-            mSpeedTestWidget = speedTestWidget;
-        }
-
-        public void setRunning(boolean running) {
-            mRunning = running;
-        }
-
         @Override
-        public void run() {
-            super.run();
-
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
             if (!mRunning) {
                 return;
             }
 
-            try{
+            long startCpuTimeNs = Debug.threadCpuTimeNanos();
+            sweepAngleSlots.beginConsume();
 
-                // Prepare the connection to download file
-                URL url = new URL(DOWNLOAD_URL);
-                HttpURLConnection c = (HttpURLConnection) url.openConnection();
-                c.setRequestMethod("GET");
-                c.setConnectTimeout(20000);
-                c.setDoOutput(true);
-                c.connect();
+            long frameIntervalNs = mLastFrameTimeNs == 0 ? 0 : frameTimeNanos - mLastFrameTimeNs;
+            long frameTimeNs = frameIntervalNs == 0 ? DEFAULT_FRAME_TIME_IN_NS : frameIntervalNs;
+            mLastFrameTimeNs = frameTimeNanos;
 
-                InputStream is = c.getInputStream();
+            // Ease towards the targets by how much time has passed, so the
+            // arcs move at the same pace at any frame rate.
+            float progress = (float) (1 - Math.exp(-(double) frameTimeNs / ANIMATION_TIME_CONSTANT_IN_NS));
+            currentDownloadSweepAngle = animate(currentDownloadSweepAngle,
+                    sweepAngleSlots.getDownloadSweepAngle(), progress);
+            currentUploadSweepAngle = animate(currentUploadSweepAngle,
+                    sweepAngleSlots.getUploadSweepAngle(), progress);
 
-                byte[] buffer = new byte[4096];
+            drawOnCanvas(frameTimeNanos, frameIntervalNs);
+            sweepAngleSlots.endConsume();
 
-                int len1 = 0;
-                long timeElapsedNs = 0;
-                long bytesWritten = 0;
-                long lastResultPublishTimeNs = 0;
-                long startTimeNs = System.nanoTime();
+            // Accounted to the phase in progress, if there is one.
+            speedTestEngine.addUiCpuTimeNs(Debug.threadCpuTimeNanos() - startCpuTimeNs);
 
-                while ((len1 = is.read(buffer)) != -1) {
-                    timeElapsedNs = System.nanoTime() - startTimeNs;
-                    bytesWritten += len1;
+            if (currentDownloadSweepAngle != sweepAngleSlots.getDownloadSweepAngle() ||
+                    currentUploadSweepAngle != sweepAngleSlots.getUploadSweepAngle()) {
+                scheduleFrame();
+            } else {
+                // Settled, the next animation starts afresh.
+                mLastFrameTimeNs = 0;
+            }
+        }
 
-                    // Wait for 1 Seconds before publishing results
-                    if(timeElapsedNs < ONE_SECOND_IN_NS_UNIT) {
-                        continue;
-                    }
+        private float animate(float current, float target, float progress) {
+            float next = current + (target - current) * progress;
+            if (Math.abs(target - next) < SETTLED_SWEEP_ANGLE_DIFFERENCE) {
+                return target;
+            }
+            return next;
+        }
 
-                    // Calculate the mega bits downloaded.
-                    float bitsDownloaded = bytesWritten * 8;
+        /**
+         * @param vsyncTimeNs Time of the vsync the frame started on.
+         * @param frameIntervalNs Time since the frame before, 0 for the first
+         * frame of an animation.
+         */
+        private void drawOnCanvas(long vsyncTimeNs, long frameIntervalNs) {
+            long startNs = System.nanoTime();
+            mCanvas = mSurfaceHolder.lockCanvas();
+            long lockedNs = System.nanoTime();
 
-                    // Check for recent publishing time and avoid frequent update.
-                    if(lastResultPublishTimeNs == 0 ||
-                      (timeElapsedNs - lastResultPublishTimeNs) > TIME_FOR_PUBLISHING_RESULTS_IN_NS) {
+            if (mCanvas != null) {
+                mSpeedTestWidget.doDraw(mCanvas, currentDownloadSweepAngle, currentUploadSweepAngle);
+                long drawnNs = System.nanoTime();
 
-                        lastResultPublishTimeNs = timeElapsedNs;
+                if (renderStatsOverlayEnabled) {
+                    mSpeedTestWidget.drawRenderStats(mCanvas);
+                }
+                mSurfaceHolder.unlockCanvasAndPost(mCanvas);
 
-                        float downloadSpeedInMbPS = (bitsDownloaded * 1000.0F)  / timeElapsedNs;
+                // How far behind the newest published speeds the arcs are.
+                float angleLag = Math.max(
+                        Math.abs(sweepAngleSlots.getDownloadSweepAngle() - currentDownloadSweepAngle),
+                        Math.abs(sweepAngleSlots.getUploadSweepAngle() - currentUploadSweepAngle));
 
-                        Log.d(TAG, "Download speed is " + downloadSpeedInMbPS + "Mbps");
-                        setDownloadSpeed(downloadSpeedInMbPS);
-                    }
+                renderStats.recordFrame(lockedNs - startNs,
+                        drawnNs - lockedNs,
+                        frameIntervalNs,
+                        System.nanoTime() - vsyncTimeNs,
+                        mVsyncPeriodNs,
+                        angleLag);
 
-                    if(timeElapsedNs >= MAX_TIME_FOR_DOWNLOAD_PROCESS_IN_NS) {
-                        break;
-                    }
+                if (renderStatsOverlayEnabled) {
+                    mSpeedTestWidget.refreshRenderStats(System.nanoTime());
                 }
-
-                is.close();
-
-            } catch(Exception e){
-                Log.e(TAG, e.getMessage(), e);
             }
-
-            setDownloadCompleted();
         }
 
     }
 
-    private class CalculateUploadSpeedThread extends Thread {
-
-        // Better set it from gradle settings for build types
-        private final String UPLOAD_URL = "http://test.rawtooth.com/FileStore?";
-
-        private boolean mRunning = false;
 
-        private final Double MAX_TIME_FOR_UPLOAD_PROCESS_IN_NS = 15000 * 1000000.0D;
+    // Renders what the engine reports and passes it on to the progress listener.
+    private class EngineListener implements SpeedTestEngine.Listener {
 
-        private final Double TIME_FOR_PUBLISHING_RESULTS_IN_NS = 10 * 1000000.0D;
-
-        private final Double ONE_SECOND_IN_NS_UNIT = 1000000000D;
-
-        SpeedTestWidget mSpeedTestWidget;
-
-        public CalculateUploadSpeedThread(SpeedTestWidget speedTestWidget) {
-            mSpeedTestWidget = speedTestWidget;
+        @Override
+        public void onTestStarted() {
+            if(progressListener != null) {
+                progressListener.onTestStarted();
+            }
         }
 
-        public void setRunning(boolean running) {
-            mRunning = running;
+        @Override
+        public void onServerSelectionCompleted(List<ServerLatency> selected) {
+            if(progressListener != null) {
+                progressListener.onServerSelectionCompleted(selected);
+            }
         }
 
         @Override
-        public void run() {
-            super.run();
+        public void onLatencyProgress(float rttInMs) {
+            latencyText = mContext.getString(R.string.latency_value, Math.round(rttInMs));
+            requestRender();
 
-            if (!mRunning) {
-                return;
+            if(progressListener != null) {
+                progressListener.onLatencyProgress(rttInMs);
             }
+        }
 
-            int serverResponseCode = 0;
-            String fileName = "speed.test";
-            String lineEnd = "\r\n";
-            String twoHyphens = "--";
-            String boundary = "*****";
-
-            byte[] buffer = new byte[4 * 1024];;
-
-            try {
-
-                // open a URL connection to the Servlet
-                URL url = new URL(UPLOAD_URL);
-
-                // Open a HTTP  connection to  the URL
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setDoInput(true); // Allow Inputs
-                conn.setDoOutput(true); // Allow Outputs
-                conn.setUseCaches(false); // Don't use a Cached Copy
-                conn.setConnectTimeout(20000);
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Connection", "Keep-Alive");
-                conn.setRequestProperty("ENCTYPE", "multipart/form-data");
-                conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
-                conn.setRequestProperty("uploaded_file", fileName);
-                conn.setRequestProperty("fileName", fileName);
-                conn.setChunkedStreamingMode(buffer.length);
-
-                DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
-                dos.writeBytes(twoHyphens + boundary + lineEnd);
-                dos.writeBytes("Content-Disposition: post-data; name=uploaded_file;filename=" +
-                                fileName + "" +
-                                lineEnd);
-
-                dos.writeBytes(lineEnd);
-
-                long timeElapsedNs = 0;
-                long bytesWritten = 0;
-                long lastResultPublishTimeNs = 0;
-                long startTimeNs = System.nanoTime();
-
-                while (timeElapsedNs <= MAX_TIME_FOR_UPLOAD_PROCESS_IN_NS) {
-
-                    dos.write(buffer, 0, buffer.length);
-                    timeElapsedNs = System.nanoTime() - startTimeNs;
-                    bytesWritten += buffer.length;
-
-                    // Wait for 1 Seconds before publishing results
-                    if(timeElapsedNs < ONE_SECOND_IN_NS_UNIT) {
-                        continue;
-                    }
-
-                    // Calculate the mega bits downloaded.
-                    float bitsUploaded = bytesWritten * 8 ;
-
-                    // Check for recent publishing time and avoid frequent update.
-                    if(lastResultPublishTimeNs == 0 ||
-                            (timeElapsedNs - lastResultPublishTimeNs) > TIME_FOR_PUBLISHING_RESULTS_IN_NS) {
-
-                        lastResultPublishTimeNs = timeElapsedNs;
-
-                        float uploadSpeedInMbPS = (bitsUploaded * 1000.0f) / timeElapsedNs;
+        @Override
+        public void onLatencyCompleted(LatencyResult result) {
+            if (result.getSampleCount() > 0) {
+                latencyText = mContext.getString(R.string.latency_summary,
+                        Math.round(result.getMedianInMs()),
+                        Math.round(result.getJitterInMs()),
+                        Math.round(result.getLoss() * 100));
+            } else {
+                latencyText = "";
+            }
+            requestRender();
 
-                        Log.d(TAG, "Upload speed is " + uploadSpeedInMbPS + "Mbps");
-                        setUploadSpeed(uploadSpeedInMbPS);
-                    }
+            if(progressListener != null) {
+                progressListener.onLatencyCompleted(result);
+            }
+        }
 
-                }
+        @Override
+        public void onDownloadProgress(float downloadSpeedInMbps) {
+            showDownloadSweepingAngle(calculateSweepAngleOnSpeedBasis(downloadSpeedInMbps));
 
-                // send multipart form data necesssary after file data...
-                dos.writeBytes(lineEnd);
-                dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
+            if(progressListener != null) {
+                progressListener.onDownloadProgress(downloadSpeedInMbps);
+            }
+        }
 
-                // Responses from the server (code and message)
-                serverResponseCode = conn.getResponseCode();
-                String serverResponseMessage = conn.getResponseMessage();
+        @Override
+        public void onDownloadCompleted(PhaseResult result) {
+            if(progressListener != null) {
+                progressListener.onDownloadCompleted(result);
+            }
+        }
 
-                Log.i("uploadFile", "HTTP Response is : "
-                        + serverResponseMessage + ": " + serverResponseCode);
+        @Override
+        public void onUploadProgress(float uploadSpeedInMbps) {
+            showUploadSweepingAngle(calculateSweepAngleOnSpeedBasis(uploadSpeedInMbps));
 
-                dos.flush();
-                dos.close();
+            if(progressListener != null) {
+                progressListener.onUploadProgress(uploadSpeedInMbps);
+            }
+        }
 
-            } catch (MalformedURLException ex) {
+        @Override
+        public void onUploadCompleted(PhaseResult result) {
+            if(progressListener != null) {
+                progressListener.onUploadCompleted(result);
+            }
+        }
 
-                Log.e(TAG, "error: " + ex.getMessage(), ex);
-            } catch (Exception e) {
+        @Override
+        public void onTestCompleted(SpeedTestResult result) {
+            centerText = mContext.getString(R.string.start);
+            requestRender();
 
-                Log.e(TAG, "error : " + e.getMessage(), e);
+            if(progressListener != null) {
+                progressListener.onTestCompleted(result);
             }
-
-            setUploadCompleted();
         }
     }
 
-    public interface ProgressListener {
-
-        void onTestStarted();
-        void onDownloadProgress(float downloadSpeedInMbps);
-        void onDownloadCompleted();
-
-        void onUploadProgress(float uploadSpeedInMbps);
-        void onUploadCompleted();
+    /**
+     * Hears about the progress of the test the widget runs, on the engine's
+     * thread.
+     */
+    public interface ProgressListener extends SpeedTestEngine.Listener {
     }
 
     /**
@@ -0,0 +1,130 @@
+package javanator.test.speedtestwidget;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest sweep angle of each arc, on its way from the engine's thread to
+ * the rendering thread. A new angle replaces the one before it, whether it
+ * got rendered or not, so the renderer always heads for the current speed
+ * however fast the engine publishes.
+ *
+ * Lock free: producers never wait for the renderer. A single pending
+ * signal stands for any number of angles set since the renderer last
+ * took them, so it has to be woken at most once per frame.
+ *
+ * Plain java, so that it can be benchmarked off the device.
+ */
+public class SweepAngleSlots {
+
+    private volatile float mDownloadSweepAngle;
+
+    private volatile float mUploadSweepAngle;
+
+    // Set by the first angle after the renderer took them, until it takes
+    // them again.
+    private final AtomicBoolean mSignalPending = new AtomicBoolean();
+
+    // Set by the renderer while it draws with the angles it took.
+    private volatile boolean mConsumerBusy;
+
+    private final AtomicLong mPublishCount = new AtomicLong();
+
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    private final AtomicLong mContendedCount = new AtomicLong();
+
+    /**
+     * @return True if the renderer needs waking up, false if a wake up is
+     * pending already.
+     */
+    public boolean setDownloadSweepAngle(float downloadSweepAngle) {
+        mDownloadSweepAngle = downloadSweepAngle;
+        return signal();
+    }
+
+    /**
+     * @return True if the renderer needs waking up, false if a wake up is
+     * pending already.
+     */
+    public boolean setUploadSweepAngle(float uploadSweepAngle) {
+        mUploadSweepAngle = uploadSweepAngle;
+        return signal();
+    }
+
+    /**
+     * Asks for a redraw without a new angle, e.g. after the texts have
+     * changed.
+     *
+     * @return True if the renderer needs waking up.
+     */
+    public boolean requestRender() {
+        return mSignalPending.compareAndSet(false, true);
+    }
+
+    private boolean signal() {
+        mPublishCount.incrementAndGet();
+
+        // A lock would have made the producer wait here.
+        if (mConsumerBusy) {
+            mContendedCount.incrementAndGet();
+        }
+
+        if (mSignalPending.compareAndSet(false, true)) {
+            return true;
+        }
+
+        // The renderer will pick this one up instead of the angle before.
+        mCoalescedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Called by the renderer before it reads the angles. Angles set from
+     * here on signal again.
+     */
+    public void beginConsume() {
+        mConsumerBusy = true;
+        mSignalPending.set(false);
+    }
+
+    public void endConsume() {
+        mConsumerBusy = false;
+    }
+
+    public float getDownloadSweepAngle() {
+        return mDownloadSweepAngle;
+    }
+
+    public float getUploadSweepAngle() {
+        return mUploadSweepAngle;
+    }
+
+    /**
+     * Angles set so far.
+     */
+    public long getPublishCount() {
+        return mPublishCount.get();
+    }
+
+    /**
+     * Angles replaced by a newer one before the renderer woke up for them.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Angles set while the renderer was drawing, each of which a lock
+     * shared with the renderer would have blocked.
+     */
+    public long getContendedCount() {
+        return mContendedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Published " + getPublishCount() + ", coalesced " + getCoalescedCount() +
+                ", contended " + getContendedCount();
+    }
+}
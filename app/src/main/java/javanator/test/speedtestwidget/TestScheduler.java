@@ -0,0 +1,96 @@
+package javanator.test.speedtestwidget;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Arms the alarm of the next unattended test and keeps what the schedule
+ * remembers between tests: whether it is on, when the last test ran and
+ * how many in a row failed.
+ */
+public final class TestScheduler {
+
+    public static final String ACTION_RUN_SCHEDULED_TEST = "javanator.test.speedtestwidget.RUN_SCHEDULED_TEST";
+
+    private static final String PREFERENCES_NAME = "scheduled_tests";
+
+    private static final String KEY_ENABLED = "enabled";
+
+    private static final String KEY_LAST_TEST_TIME_MS = "last_test_time_ms";
+
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+
+    private TestScheduler() {
+    }
+
+    /**
+     * Turns the scheduled tests on or off. Turning them on again leaves an
+     * armed alarm alone, so that opening the app does not push the next
+     * test back.
+     */
+    public static void setEnabled(Context context, boolean enabled) {
+        getPreferences(context).edit().putBoolean(KEY_ENABLED, enabled).apply();
+
+        if (!enabled) {
+            PendingIntent pendingIntent = getPendingIntent(context, PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                getAlarmManager(context).cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+        } else if (getPendingIntent(context, PendingIntent.FLAG_NO_CREATE) == null) {
+            scheduleNext(context, ScheduledTestService.POLICY.getNextDelayInMs(getConsecutiveFailures(context)));
+        }
+    }
+
+    public static boolean isEnabled(Context context) {
+        return getPreferences(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    /**
+     * Arms the alarm for the next test, replacing the one armed before.
+     * Inexact, so the system can batch it with other wake ups.
+     */
+    public static void scheduleNext(Context context, long delayInMs) {
+        getAlarmManager(context).set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delayInMs,
+                getPendingIntent(context, PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * Wall clock time of the last test, 0 if none ran yet.
+     */
+    static long getLastTestTimeMs(Context context) {
+        return getPreferences(context).getLong(KEY_LAST_TEST_TIME_MS, 0);
+    }
+
+    static int getConsecutiveFailures(Context context) {
+        return getPreferences(context).getInt(KEY_CONSECUTIVE_FAILURES, 0);
+    }
+
+    static void recordTest(Context context, long startTimeMs, boolean failed) {
+        SharedPreferences preferences = getPreferences(context);
+        preferences.edit()
+                .putLong(KEY_LAST_TEST_TIME_MS, startTimeMs)
+                .putInt(KEY_CONSECUTIVE_FAILURES,
+                        failed ? preferences.getInt(KEY_CONSECUTIVE_FAILURES, 0) + 1 : 0)
+                .apply();
+    }
+
+    private static PendingIntent getPendingIntent(Context context, int flags) {
+        Intent intent = new Intent(context, ScheduledTestReceiver.class);
+        intent.setAction(ACTION_RUN_SCHEDULED_TEST);
+        return PendingIntent.getBroadcast(context, 0, intent, flags);
+    }
+
+    private static AlarmManager getAlarmManager(Context context) {
+        return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,77 @@
+package javanator.test.speedtestwidget;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GaugeScaleTest {
+
+    private static final int[] VALUES = {0, 5, 10, 50, 100};
+
+    @Test
+    public void linearSpreadsEvenly() {
+        GaugeScale scale = new LinearGaugeScale(VALUES);
+
+        assertEquals(0, scale.getPosition(0), 0);
+        assertEquals(0.25f, scale.getPosition(25), 0.0001f);
+        assertEquals(1, scale.getPosition(100), 0);
+    }
+
+    @Test
+    public void logGivesEveryTenfoldAboutTheSameShare() {
+        GaugeScale scale = new LogGaugeScale(new int[]{0, 1000});
+
+        float toTen = scale.getPosition(10);
+        float toHundred = scale.getPosition(100) - toTen;
+        assertEquals(toTen, toHundred, 0.05f);
+        assertEquals(1, scale.getPosition(1000), 0.0001f);
+    }
+
+    @Test
+    public void piecewiseGivesEverySectionAnEqualShare() {
+        GaugeScale scale = new PiecewiseGaugeScale(VALUES);
+
+        assertEquals(0.25f, scale.getPosition(5), 0.0001f);
+        assertEquals(0.5f, scale.getPosition(10), 0.0001f);
+        assertEquals(0.625f, scale.getPosition(30), 0.0001f);
+        assertEquals(0.875f, scale.getPosition(75), 0.0001f);
+    }
+
+    @Test
+    public void speedsOutsideOfTheScaleAreClamped() {
+        GaugeScale[] scales = {
+                new LinearGaugeScale(VALUES), new LogGaugeScale(VALUES), new PiecewiseGaugeScale(VALUES)};
+
+        for (GaugeScale scale : scales) {
+            assertEquals(0, scale.getPosition(-1), 0);
+            assertEquals(0, scale.getPosition(Float.NaN), 0);
+            assertEquals(1, scale.getPosition(1000), 0);
+        }
+    }
+
+    @Test
+    public void positionsAscendWithTheSpeed() {
+        GaugeScale[] scales = {
+                new LinearGaugeScale(VALUES), new LogGaugeScale(VALUES), new PiecewiseGaugeScale(VALUES)};
+
+        for (GaugeScale scale : scales) {
+            float lastPosition = 0;
+            for (float speedInMbps = 0.1f; speedInMbps < 100; speedInMbps += 0.1f) {
+                float position = scale.getPosition(speedInMbps);
+                assertTrue(position >= lastPosition);
+                lastPosition = position;
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValuesNotAscending() {
+        new PiecewiseGaugeScale(new int[]{0, 10, 10});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSingleValue() {
+        new LinearGaugeScale(new int[]{100});
+    }
+}
@@ -0,0 +1,568 @@
+package javanator.test.speedtestwidget.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cleartext HTTP/2 side of the {@link LocalTestServer}, taking over a
+ * connection which opened with the HTTP/2 preface. Serves the same
+ * endpoints, one request per stream: a thread per stream sends the
+ * responses, while the reader throttles and drops the upload bodies.
+ *
+ * Only as much HPACK as the engine's requests need: no huffman coding and
+ * no dynamic table.
+ */
+class Http2ServerSession {
+
+    private static final int FRAME_HEADER_SIZE = 9;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /*
+     * Window the server grants every upload stream and the connection.
+     */
+    private static final int RECEIVE_WINDOW_SIZE = 1024 * 1024;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+
+    // Static table of RFC 7541 appendix A, header names from index 1 on.
+    private static final String[] STATIC_NAMES = {
+            ":authority", ":method", ":method", ":path", ":path", ":scheme", ":scheme",
+            ":status", ":status", ":status", ":status", ":status", ":status", ":status",
+            "accept-charset", "accept-encoding", "accept-language", "accept-ranges", "accept",
+            "access-control-allow-origin", "age", "allow", "authorization", "cache-control",
+            "content-disposition", "content-encoding", "content-language", "content-length",
+            "content-location", "content-range", "content-type", "cookie", "date", "etag", "expect",
+            "expires", "from", "host", "if-match", "if-modified-since", "if-none-match", "if-range",
+            "if-unmodified-since", "last-modified", "link", "location", "max-forwards",
+            "proxy-authenticate", "proxy-authorization", "range", "referer", "refresh",
+            "retry-after", "server", "set-cookie", "strict-transport-security",
+            "transfer-encoding", "user-agent", "vary", "via", "www-authenticate"};
+
+    // Values of the static entries the engine sends indexed, by index.
+    private static final String[] STATIC_VALUES = {
+            "", "", "GET", "POST", "/", "/index.html", "http", "https"};
+
+    private static final int INDEX_STATUS_200 = 8;
+    private static final int INDEX_STATUS_206 = 10;
+    private static final int INDEX_STATUS_404 = 13;
+    private static final int INDEX_CONTENT_LENGTH = 28;
+
+    private final LocalTestServer mServer;
+
+    private final DataInputStream mIn;
+
+    private final byte[] mReadBuffer = new byte[LocalTestServer.IO_CHUNK_SIZE];
+
+    // Guarded by mWriteLock.
+    private final OutputStream mOut;
+    private final byte[] mFrameHeader = new byte[FRAME_HEADER_SIZE];
+
+    private final Object mWriteLock = new Object();
+
+    private final Map<Integer, ServerStream> mStreams = new ConcurrentHashMap<>();
+
+    private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    // Reader thread only.
+    private int mConnectionBytesToAcknowledge = 0;
+
+    // Guarded by this.
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+    private int mInitialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int mMaxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean mClosed = false;
+
+    /**
+     * @param in Input positioned right after the connection preface.
+     */
+    Http2ServerSession(LocalTestServer server, InputStream in, OutputStream out) {
+        mServer = server;
+        mIn = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+        mOut = new BufferedOutputStream(out, LocalTestServer.IO_CHUNK_SIZE + FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * Serves the connection till the client goes away.
+     */
+    void serve() throws IOException, InterruptedException {
+        try {
+            synchronized (mWriteLock) {
+                writeFrameHeader(2 * 6, TYPE_SETTINGS, 0, 0);
+                writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+                writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+                writeWindowUpdate(0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+                mOut.flush();
+            }
+
+            while (mServer.isRunning() && readFrame()) {
+                // One frame at a time.
+            }
+        } finally {
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    // False once the client said goodbye.
+    private boolean readFrame() throws IOException, InterruptedException {
+
+        int length = (mIn.readUnsignedShort() << 8) | mIn.readUnsignedByte();
+        int type = mIn.readUnsignedByte();
+        int flags = mIn.readUnsignedByte();
+        int streamId = mIn.readInt() & 0x7fffffff;
+
+        switch (type) {
+            case TYPE_DATA:
+                readData(length, flags, streamId);
+                break;
+            case TYPE_HEADERS:
+                readHeaders(length, flags, streamId);
+                break;
+            case TYPE_RST_STREAM:
+                mIn.readInt();
+                cancel(streamId);
+                break;
+            case TYPE_SETTINGS:
+                readSettings(length, flags);
+                break;
+            case TYPE_PING:
+                byte[] payload = new byte[length];
+                mIn.readFully(payload);
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (mWriteLock) {
+                        writeFrameHeader(length, TYPE_PING, FLAG_ACK, 0);
+                        mOut.write(payload);
+                        mOut.flush();
+                    }
+                }
+                break;
+            case TYPE_GOAWAY:
+                skip(length);
+                return false;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, mIn.readInt() & 0x7fffffff);
+                break;
+            default:
+                skip(length);
+                break;
+        }
+        return true;
+    }
+
+    // Upload bodies, read at the upload rate and dropped.
+    private void readData(int length, int flags, int streamId) throws IOException, InterruptedException {
+
+        int padLength = (flags & FLAG_PADDED) != 0 ? mIn.readUnsignedByte() : 0;
+        int bodyLength = length - ((flags & FLAG_PADDED) != 0 ? 1 : 0) - padLength;
+
+        while (bodyLength > 0) {
+            int chunkLength = Math.min(bodyLength, mReadBuffer.length);
+            mServer.getUploadThrottle().acquire(chunkLength);
+            mIn.readFully(mReadBuffer, 0, chunkLength);
+            bodyLength -= chunkLength;
+        }
+        skip(padLength);
+
+        mConnectionBytesToAcknowledge += length;
+        if (mConnectionBytesToAcknowledge >= RECEIVE_WINDOW_SIZE / 2) {
+            sendWindowUpdate(0, mConnectionBytesToAcknowledge);
+            mConnectionBytesToAcknowledge = 0;
+        }
+
+        ServerStream stream = mStreams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            respond(stream);
+            return;
+        }
+
+        stream.mBytesToAcknowledge += length;
+        if (stream.mBytesToAcknowledge >= RECEIVE_WINDOW_SIZE / 2) {
+            sendWindowUpdate(streamId, stream.mBytesToAcknowledge);
+            stream.mBytesToAcknowledge = 0;
+        }
+    }
+
+    private void readHeaders(int length, int flags, int streamId) throws IOException {
+
+        int padLength = (flags & FLAG_PADDED) != 0 ? mIn.readUnsignedByte() : 0;
+        int blockLength = length - ((flags & FLAG_PADDED) != 0 ? 1 : 0) - padLength;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            skip(5);
+            blockLength -= 5;
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(blockLength);
+        copy(blockLength, block);
+        skip(padLength);
+
+        int headerFlags = flags;
+        while ((headerFlags & FLAG_END_HEADERS) == 0) {
+            int continuationLength = (mIn.readUnsignedShort() << 8) | mIn.readUnsignedByte();
+            if (mIn.readUnsignedByte() != TYPE_CONTINUATION) {
+                throw new IOException("Expected CONTINUATION");
+            }
+            headerFlags = mIn.readUnsignedByte();
+            mIn.readInt();
+            copy(continuationLength, block);
+        }
+
+        ServerStream stream = new ServerStream(streamId, decodeHeaders(block.toByteArray()));
+        synchronized (this) {
+            stream.mSendWindow = mInitialSendWindow;
+        }
+        mStreams.put(streamId, stream);
+
+        // Requests with a body get answered once it is over.
+        if ((flags & FLAG_END_STREAM) != 0) {
+            respond(stream);
+        }
+    }
+
+    private void readSettings(int length, int flags) throws IOException {
+
+        if ((flags & FLAG_ACK) != 0) {
+            skip(length);
+            return;
+        }
+
+        for (int i = 0; i < length / 6; i++) {
+            int id = mIn.readUnsignedShort();
+            int value = mIn.readInt();
+
+            synchronized (this) {
+                if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    int delta = value - mInitialSendWindow;
+                    mInitialSendWindow = value;
+                    for (ServerStream stream : mStreams.values()) {
+                        stream.mSendWindow += delta;
+                    }
+                    notifyAll();
+                } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                    mMaxSendFrameSize = value;
+                }
+            }
+        }
+        skip(length % 6);
+
+        synchronized (mWriteLock) {
+            writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+            mOut.flush();
+        }
+    }
+
+    private synchronized void onWindowUpdate(int streamId, int increment) {
+        if (streamId == 0) {
+            mSendWindow += increment;
+        } else {
+            ServerStream stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.mSendWindow += increment;
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void cancel(int streamId) {
+        ServerStream stream = mStreams.remove(streamId);
+        if (stream != null) {
+            stream.mCancelled = true;
+            notifyAll();
+        }
+    }
+
+    // Answers on a thread of its own, held back by the latency like over http/1.1.
+    private void respond(final ServerStream stream) {
+        Thread responder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startCpuTimeNs = mThreadMXBean.getCurrentThreadCpuTime();
+                try {
+                    if (mServer.getLatencyInMs() > 0) {
+                        Thread.sleep(mServer.getLatencyInMs());
+                    }
+                    serveRequest(stream);
+                } catch (IOException e) {
+                    // Client went away, the reader finds out too.
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mStreams.remove(stream.mId);
+                    mServer.addCpuTimeNs(mThreadMXBean.getCurrentThreadCpuTime() - startCpuTimeNs);
+                }
+            }
+        });
+        responder.setName(Http2ServerSession.class.getSimpleName() + "-" + stream.mId);
+        responder.setDaemon(true);
+        responder.start();
+    }
+
+    private void serveRequest(ServerStream stream) throws IOException, InterruptedException {
+
+        String method = stream.mHeaders.get(":method");
+        String path = stream.mHeaders.get(":path");
+        if (path == null) {
+            path = "/";
+        }
+
+        if ("HEAD".equals(method)) {
+            writeHeaders(stream.mId, INDEX_STATUS_200, 0, true);
+        } else if ("GET".equals(method) && path.startsWith(LocalTestServer.DOWNLOAD_PATH)) {
+            serveDownload(stream);
+        } else if ("POST".equals(method) && path.startsWith(LocalTestServer.UPLOAD_PATH)) {
+            writeHeaders(stream.mId, INDEX_STATUS_200, 0, true);
+        } else {
+            writeHeaders(stream.mId, INDEX_STATUS_404, 0, true);
+        }
+    }
+
+    private void serveDownload(ServerStream stream) throws IOException, InterruptedException {
+
+        long objectSizeInBytes = mServer.getObjectSizeInBytes();
+        long first = 0;
+        long last = objectSizeInBytes - 1;
+        int statusIndex = INDEX_STATUS_200;
+
+        String range = stream.mHeaders.get("range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            first = Long.parseLong(bounds[0].trim());
+            if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+                last = Math.min(last, Long.parseLong(bounds[1].trim()));
+            }
+            statusIndex = INDEX_STATUS_206;
+        }
+
+        long remaining = last - first + 1;
+        writeHeaders(stream.mId, statusIndex, remaining, remaining == 0);
+
+        while (remaining > 0) {
+            int length = reserveSendWindow(stream, (int) Math.min(remaining, LocalTestServer.BODY_BYTES.length));
+            if (length == 0) {
+                return;
+            }
+            mServer.getDownloadThrottle().acquire(length);
+            remaining -= length;
+
+            synchronized (mWriteLock) {
+                writeFrameHeader(length, TYPE_DATA, remaining == 0 ? FLAG_END_STREAM : 0, stream.mId);
+                mOut.write(LocalTestServer.BODY_BYTES, 0, length);
+                mOut.flush();
+            }
+        }
+    }
+
+    // Bytes the windows let go, 0 once the stream or the connection is gone.
+    private synchronized int reserveSendWindow(ServerStream stream, int length) throws InterruptedException {
+        while (!stream.mCancelled && !mClosed) {
+            long available = Math.min(mSendWindow, stream.mSendWindow);
+            if (available > 0) {
+                int reserved = (int) Math.min(Math.min(available, length), mMaxSendFrameSize);
+                mSendWindow -= reserved;
+                stream.mSendWindow -= reserved;
+                return reserved;
+            }
+            wait();
+        }
+        return 0;
+    }
+
+    private void writeHeaders(int streamId, int statusIndex, long contentLength, boolean endStream)
+            throws IOException {
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(16);
+        block.write(0x80 | statusIndex);
+        // Literal without indexing, content-length by its static index.
+        block.write(0x0f);
+        block.write(INDEX_CONTENT_LENGTH - 0x0f);
+        byte[] value = Long.toString(contentLength).getBytes("ISO-8859-1");
+        block.write(value.length);
+        block.write(value);
+
+        synchronized (mWriteLock) {
+            writeFrameHeader(block.size(), TYPE_HEADERS,
+                    FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId);
+            block.writeTo(mOut);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Header block of a request, names lower cased by the protocol already.
+     */
+    private static Map<String, String> decodeHeaders(byte[] block) throws IOException {
+
+        Map<String, String> headers = new HashMap<>();
+        int[] position = {0};
+
+        while (position[0] < block.length) {
+            int b = block[position[0]] & 0xff;
+
+            if ((b & 0x80) != 0) {
+                int index = readInteger(block, position, 7);
+                headers.put(getStaticName(index), index < STATIC_VALUES.length ? STATIC_VALUES[index] : "");
+            } else if ((b & 0xe0) == 0x20) {
+                readInteger(block, position, 5);
+            } else {
+                int nameIndex = readInteger(block, position, (b & 0xc0) == 0x40 ? 6 : 4);
+                String name = nameIndex == 0 ? readString(block, position) : getStaticName(nameIndex);
+                headers.put(name, readString(block, position));
+            }
+        }
+
+        return headers;
+    }
+
+    private static String getStaticName(int index) throws IOException {
+        if (index < 1 || index > STATIC_NAMES.length) {
+            throw new IOException("No dynamic table, index " + index);
+        }
+        return STATIC_NAMES[index - 1];
+    }
+
+    private static int readInteger(byte[] block, int[] position, int prefixBits) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] >= block.length) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readString(byte[] block, int[] position) throws IOException {
+        if ((block[position[0]] & 0x80) != 0) {
+            throw new IOException("Huffman coded strings are not supported");
+        }
+        int length = readInteger(block, position, 7);
+        if (position[0] + length > block.length) {
+            throw new IOException("Truncated HPACK string");
+        }
+        String value = new String(block, position[0], length, "ISO-8859-1");
+        position[0] += length;
+        return value;
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (mWriteLock) {
+            writeWindowUpdate(streamId, increment);
+            mOut.flush();
+        }
+    }
+
+    // Callers hold mWriteLock for the following.
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        mFrameHeader[0] = (byte) (length >>> 16);
+        mFrameHeader[1] = (byte) (length >>> 8);
+        mFrameHeader[2] = (byte) length;
+        mFrameHeader[3] = (byte) type;
+        mFrameHeader[4] = (byte) flags;
+        mFrameHeader[5] = (byte) (streamId >>> 24);
+        mFrameHeader[6] = (byte) (streamId >>> 16);
+        mFrameHeader[7] = (byte) (streamId >>> 8);
+        mFrameHeader[8] = (byte) streamId;
+        mOut.write(mFrameHeader);
+    }
+
+    private void writeSetting(int id, int value) throws IOException {
+        mOut.write(id >>> 8);
+        mOut.write(id);
+        writeInt(value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+        writeInt(increment);
+    }
+
+    private void writeInt(int value) throws IOException {
+        mOut.write(value >>> 24);
+        mOut.write(value >>> 16);
+        mOut.write(value >>> 8);
+        mOut.write(value);
+    }
+
+    private void copy(int count, ByteArrayOutputStream out) throws IOException {
+        while (count > 0) {
+            int length = Math.min(count, mReadBuffer.length);
+            mIn.readFully(mReadBuffer, 0, length);
+            out.write(mReadBuffer, 0, length);
+            count -= length;
+        }
+    }
+
+    private void skip(int count) throws IOException {
+        while (count > 0) {
+            int length = Math.min(count, mReadBuffer.length);
+            mIn.readFully(mReadBuffer, 0, length);
+            count -= length;
+        }
+    }
+
+    private static class ServerStream {
+
+        private final int mId;
+
+        private final Map<String, String> mHeaders;
+
+        // Reader thread only.
+        private int mBytesToAcknowledge = 0;
+
+        // Guarded by the session.
+        private long mSendWindow;
+        private boolean mCancelled = false;
+
+        ServerStream(int id, Map<String, String> headers) {
+            mId = id;
+            mHeaders = headers;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package javanator.test.speedtestwidget.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+import javanator.test.speedtestwidget.engine.ResourceProbe;
+
+/**
+ * Resource probe of the jvm the benchmark runs in, the server's threads
+ * included. Allocations of a thread which ended stay in at what they were
+ * when last read, and the pause time is what the collectors report,
+ * concurrent work and all.
+ */
+public class JvmResourceProbe implements ResourceProbe {
+
+    private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    // Allocations of every thread when last read, by thread id.
+    private final Map<Long, Long> mThreadAllocatedBytes = new HashMap<>();
+
+    // Allocations of the threads gone since.
+    private long mEndedThreadAllocatedBytes = 0;
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public long getThreadCpuTimeNs() {
+        return mThreadMXBean.getCurrentThreadCpuTime();
+    }
+
+    @Override
+    public long getProcessCpuTimeNs() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (!(bean instanceof com.sun.management.OperatingSystemMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        if (!(mThreadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        long[] threadIds = mThreadMXBean.getAllThreadIds();
+        long[] allocatedBytes = ((com.sun.management.ThreadMXBean) mThreadMXBean).getThreadAllocatedBytes(threadIds);
+
+        Map<Long, Long> threadAllocatedBytes = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            // -1 for threads which ended in between.
+            if (allocatedBytes[i] >= 0) {
+                threadAllocatedBytes.put(threadIds[i], allocatedBytes[i]);
+            }
+        }
+
+        for (Map.Entry<Long, Long> entry : mThreadAllocatedBytes.entrySet()) {
+            if (!threadAllocatedBytes.containsKey(entry.getKey())) {
+                mEndedThreadAllocatedBytes += entry.getValue();
+            }
+        }
+        mThreadAllocatedBytes.clear();
+        mThreadAllocatedBytes.putAll(threadAllocatedBytes);
+
+        long totalAllocatedBytes = mEndedThreadAllocatedBytes;
+        for (long bytes : threadAllocatedBytes.values()) {
+            totalAllocatedBytes += bytes;
+        }
+        return totalAllocatedBytes;
+    }
+
+    @Override
+    public long getGcCount() {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(bean.getCollectionCount(), 0);
+        }
+        return gcCount;
+    }
+
+    @Override
+    public long getGcPauseTimeMs() {
+        long gcTimeMs = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTimeMs += Math.max(bean.getCollectionTime(), 0);
+        }
+        return gcTimeMs;
+    }
+}
@@ -0,0 +1,407 @@
+package javanator.test.speedtestwidget.bench;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP/1.1 test server on the loopback interface.
+ *
+ * Serves the endpoints the engine talks to:
+ * HEAD on any path answers the latency probes, GET {@link #DOWNLOAD_PATH}
+ * serves byte ranges of a generated object of the configured size and
+ * POST {@link #UPLOAD_PATH} takes and drops a chunked or sized body.
+ *
+ * Download and upload bodies go through a {@link Throttle} each, and every
+ * response is held back by the configured latency, to mimic a link of
+ * known shape. Connections are kept alive unless the client asks not to.
+ *
+ * A connection which opens with the HTTP/2 preface gets served as
+ * cleartext HTTP/2 by an {@link Http2ServerSession} instead.
+ */
+public class LocalTestServer {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(LocalTestServer.class.getSimpleName());
+
+    public static final String DOWNLOAD_PATH = "/download";
+
+    public static final String UPLOAD_PATH = "/upload";
+
+    /*
+     * Bytes moved through the throttle at a time.
+     */
+    static final int IO_CHUNK_SIZE = 16 * 1024;
+
+    private static final String LINE_END = "\r\n";
+
+    // Request line of the HTTP/2 connection preface and what follows it.
+    private static final String HTTP2_PREFACE_LINE = "PRI * HTTP/2.0";
+    private static final String HTTP2_PREFACE_REST = "\r\nSM\r\n\r\n";
+
+    static final byte[] BODY_BYTES = new byte[IO_CHUNK_SIZE];
+
+    static {
+        new Random().nextBytes(BODY_BYTES);
+    }
+
+    private final ServerSocket mServerSocket;
+
+    private final long mObjectSizeInBytes;
+
+    private final Throttle mDownloadThrottle;
+
+    private final Throttle mUploadThrottle;
+
+    private final long mLatencyInMs;
+
+    private final List<Socket> mClientSockets = new CopyOnWriteArrayList<>();
+
+    // Only the accept thread writes it.
+    private volatile int mConnectionCount = 0;
+
+    // Cpu time spent by the connection threads of the server.
+    private final AtomicLong mCpuTimeNs = new AtomicLong();
+
+    private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    private volatile boolean mRunning = false;
+
+    /**
+     * @param objectSizeInBytes Size of the download object.
+     * @param downloadRateInMbps Download rate of the link, 0 for no limit.
+     * @param uploadRateInMbps Upload rate of the link, 0 for no limit.
+     * @param latencyInMs Time every response gets held back by.
+     */
+    public LocalTestServer(long objectSizeInBytes,
+                           float downloadRateInMbps,
+                           float uploadRateInMbps,
+                           long latencyInMs) throws IOException {
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mObjectSizeInBytes = objectSizeInBytes;
+        mDownloadThrottle = new Throttle(downloadRateInMbps);
+        mUploadThrottle = new Throttle(uploadRateInMbps);
+        mLatencyInMs = latencyInMs;
+    }
+
+    public String getPingUrl() {
+        return getBaseUrl() + "/";
+    }
+
+    public String getDownloadUrl() {
+        return getBaseUrl() + DOWNLOAD_PATH;
+    }
+
+    public String getUploadUrl() {
+        return getBaseUrl() + UPLOAD_PATH;
+    }
+
+    public long getObjectSizeInBytes() {
+        return mObjectSizeInBytes;
+    }
+
+    private String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Cpu time the server has spent on the requests it has answered.
+     */
+    public long getCpuTimeNs() {
+        return mCpuTimeNs.get();
+    }
+
+    /**
+     * Connections accepted so far, each one a client had to set up.
+     */
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    Throttle getDownloadThrottle() {
+        return mDownloadThrottle;
+    }
+
+    Throttle getUploadThrottle() {
+        return mUploadThrottle;
+    }
+
+    long getLatencyInMs() {
+        return mLatencyInMs;
+    }
+
+    /**
+     * Accounts cpu time spent on threads of the server besides the
+     * connection threads.
+     */
+    void addCpuTimeNs(long cpuTimeNs) {
+        mCpuTimeNs.addAndGet(cpuTimeNs);
+    }
+
+    public void start() {
+        mRunning = true;
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        acceptThread.setName(LocalTestServer.class.getSimpleName());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        mRunning = false;
+        closeQuietly(mServerSocket);
+        for (Socket socket : mClientSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptConnections() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mClientSockets.add(socket);
+
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                connectionThread.setName(LocalTestServer.class.getSimpleName() + "-" + mConnectionCount);
+                mConnectionCount++;
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+
+            } catch (IOException e) {
+                if (mRunning) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        long startCpuTimeNs = mThreadMXBean.getCurrentThreadCpuTime();
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), IO_CHUNK_SIZE);
+            OutputStream out = socket.getOutputStream();
+
+            // One request after another till the client closes or asks to.
+            boolean keepAlive = true;
+            while (mRunning && keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (HTTP2_PREFACE_LINE.equals(requestLine)) {
+                    serveHttp2(in, out);
+                    break;
+                }
+                Map<String, String> headers = readHeaders(in);
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+
+                String[] parts = requestLine.split(" ");
+                String method = parts[0];
+                String path = parts.length > 1 ? parts[1] : "/";
+
+                if (mLatencyInMs > 0) {
+                    Thread.sleep(mLatencyInMs);
+                }
+
+                if ("HEAD".equals(method)) {
+                    writeHead(out, "200 OK", 0, null);
+                } else if ("GET".equals(method) && path.startsWith(DOWNLOAD_PATH)) {
+                    serveDownload(out, headers.get("range"));
+                } else if ("POST".equals(method) && path.startsWith(UPLOAD_PATH)) {
+                    serveUpload(in, out, headers);
+                } else {
+                    writeHead(out, "404 Not Found", 0, null);
+                }
+                out.flush();
+
+                // Account per request, long lived connections would hide their cpu otherwise.
+                long cpuTimeNs = mThreadMXBean.getCurrentThreadCpuTime();
+                mCpuTimeNs.addAndGet(cpuTimeNs - startCpuTimeNs);
+                startCpuTimeNs = cpuTimeNs;
+            }
+
+        } catch (SocketException | EOFException e) {
+            // Client went away, nothing to worry about.
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(socket);
+            mClientSockets.remove(socket);
+            mCpuTimeNs.addAndGet(mThreadMXBean.getCurrentThreadCpuTime() - startCpuTimeNs);
+        }
+    }
+
+    private void serveHttp2(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        byte[] rest = new byte[HTTP2_PREFACE_REST.length()];
+        new DataInputStream(in).readFully(rest);
+        if (!HTTP2_PREFACE_REST.equals(new String(rest, "ISO-8859-1"))) {
+            throw new IOException("Invalid HTTP/2 connection preface");
+        }
+        new Http2ServerSession(this, in, out).serve();
+    }
+
+    private void serveDownload(OutputStream out, String range) throws IOException, InterruptedException {
+
+        long first = 0;
+        long last = mObjectSizeInBytes - 1;
+        String status = "200 OK";
+        String contentRange = null;
+
+        // Only single "bytes=first-last" ranges, that is what the engine asks for.
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            first = Long.parseLong(bounds[0].trim());
+            if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+                last = Math.min(last, Long.parseLong(bounds[1].trim()));
+            }
+            status = "206 Partial Content";
+            contentRange = "bytes " + first + "-" + last + "/" + mObjectSizeInBytes;
+        }
+
+        long remaining = last - first + 1;
+        writeHead(out, status, remaining, contentRange);
+
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, BODY_BYTES.length);
+            mDownloadThrottle.acquire(length);
+            out.write(BODY_BYTES, 0, length);
+            remaining -= length;
+        }
+    }
+
+    private void serveUpload(InputStream in, OutputStream out, Map<String, String> headers)
+            throws IOException, InterruptedException {
+
+        byte[] buffer = new byte[IO_CHUNK_SIZE];
+
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            long chunkSize;
+            while ((chunkSize = Long.parseLong(readBodyLine(in).split(";")[0].trim(), 16)) > 0) {
+                skip(in, chunkSize, buffer);
+                readBodyLine(in);
+            }
+            // Trailers, if any, end with a blank line.
+            readHeaders(in);
+        } else if (headers.containsKey("content-length")) {
+            skip(in, Long.parseLong(headers.get("content-length")), buffer);
+        }
+
+        byte[] body = "OK".getBytes();
+        writeHead(out, "200 OK", body.length, null);
+        out.write(body);
+    }
+
+    // Reads and drops count bytes of body at the upload rate.
+    private void skip(InputStream in, long count, byte[] buffer) throws IOException, InterruptedException {
+        while (count > 0) {
+            int length = (int) Math.min(count, buffer.length);
+            mUploadThrottle.acquire(length);
+            int read = in.read(buffer, 0, length);
+            if (read == -1) {
+                throw new EOFException("Connection closed inside the request body");
+            }
+            count -= read;
+        }
+    }
+
+    private static void writeHead(OutputStream out,
+                                  String status,
+                                  long contentLength,
+                                  String contentRange) throws IOException {
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(LINE_END);
+        head.append("Content-Length: ").append(contentLength).append(LINE_END);
+        if (contentRange != null) {
+            head.append("Content-Range: ").append(contentRange).append(LINE_END);
+        }
+        head.append("Content-Type: application/octet-stream").append(LINE_END);
+        head.append(LINE_END);
+        out.write(head.toString().getBytes("ISO-8859-1"));
+    }
+
+    // Header names lower cased.
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    // Line without its line end, null at the end of the stream.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static String readBodyLine(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            throw new EOFException("Connection closed inside the request body");
+        }
+        return line;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+}
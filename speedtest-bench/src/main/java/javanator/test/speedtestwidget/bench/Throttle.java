@@ -0,0 +1,50 @@
+package javanator.test.speedtestwidget.bench;
+
+/**
+ * Token bucket shared by every connection going one direction, so that all
+ * of them together never go faster than the configured rate.
+ */
+public class Throttle {
+
+    /*
+     * Idle time the bucket may save up and spend as a burst later.
+     */
+    private static final long MAX_BURST_IN_NS = 10 * 1000000L;
+
+    private final double mNsPerByte;
+
+    // Instant from which the next bytes may go out.
+    private long mNextFreeNs = System.nanoTime();
+
+    /**
+     * @param rateInMbps Rate to hold all the connections to, 0 for no limit.
+     */
+    public Throttle(float rateInMbps) {
+        mNsPerByte = rateInMbps > 0 ? 8 * 1000 / (double) rateInMbps : 0;
+    }
+
+    /**
+     * Blocks till the given bytes fit in the rate.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (mNsPerByte == 0) {
+            return;
+        }
+
+        long waitNs = reserve(bytes);
+        if (waitNs > 0) {
+            Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+        }
+    }
+
+    private synchronized long reserve(int bytes) {
+        long nowNs = System.nanoTime();
+        if (mNextFreeNs < nowNs - MAX_BURST_IN_NS) {
+            mNextFreeNs = nowNs - MAX_BURST_IN_NS;
+        }
+
+        long waitNs = mNextFreeNs - nowNs;
+        mNextFreeNs += (long) (bytes * mNsPerByte);
+        return waitNs;
+    }
+}
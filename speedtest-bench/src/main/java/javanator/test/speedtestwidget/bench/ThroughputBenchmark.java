@@ -0,0 +1,390 @@
+package javanator.test.speedtestwidget.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javanator.test.speedtestwidget.engine.ClientLoad;
+import javanator.test.speedtestwidget.engine.DataBudget;
+import javanator.test.speedtestwidget.engine.Http2Transport;
+import javanator.test.speedtestwidget.engine.HttpUrlConnectionTransport;
+import javanator.test.speedtestwidget.engine.LatencyResult;
+import javanator.test.speedtestwidget.engine.NioSocketTransport;
+import javanator.test.speedtestwidget.engine.PhaseResult;
+import javanator.test.speedtestwidget.engine.ServerLatency;
+import javanator.test.speedtestwidget.engine.ServerRegistry;
+import javanator.test.speedtestwidget.engine.ServerSelector;
+import javanator.test.speedtestwidget.engine.ServerThroughput;
+import javanator.test.speedtestwidget.engine.SpeedTestEngine;
+import javanator.test.speedtestwidget.engine.SpeedTestResult;
+import javanator.test.speedtestwidget.engine.TestServer;
+import javanator.test.speedtestwidget.engine.Transport;
+
+/**
+ * Runs the engine against a {@link LocalTestServer} at a set of throttled
+ * rates and prints the measured rate next to the configured one, along
+ * with the cpu the client spent per MB moved.
+ *
+ * With --servers n the rate gets split over n servers, which the engine
+ * spreads its streams over, and the share of each gets printed under the
+ * phase. With --timeline dir the per stream timeline of every phase gets
+ * written there as csv. With --budget MB the test runs in lite mode on that
+ * data budget, the dev column shows the confidence band each phase reached.
+ * Under every phase goes what the engine itself recorded of the client's
+ * cpu, allocations, garbage collections and reads or writes.
+ *
+ * Usage: ThroughputBenchmark [--rates 10,50,100] [--latency ms]
+ * [--transport http|nio|h2] [--runs n] [--size bytes] [--servers n]
+ * [--timeline dir] [--budget MB]
+ */
+public class ThroughputBenchmark {
+
+    private static final String DEFAULT_RATES = "10,50,100";
+
+    private static final long DEFAULT_LATENCY_IN_MS = 20;
+
+    private static final int DEFAULT_RUNS = 1;
+
+    private static final int DEFAULT_SERVER_COUNT = 1;
+
+    private static final long DEFAULT_OBJECT_SIZE_IN_BYTES = 500L * 1000 * 1000;
+
+    private static final String ROW_FORMAT = "%-8s %9s %9s %8s %7s %-16s %11s %8s %8s%n";
+
+    private float[] mRatesInMbps;
+
+    private long mLatencyInMs = DEFAULT_LATENCY_IN_MS;
+
+    private String mTransportName = "http";
+
+    private int mRuns = DEFAULT_RUNS;
+
+    private long mObjectSizeInBytes = DEFAULT_OBJECT_SIZE_IN_BYTES;
+
+    private int mServerCount = DEFAULT_SERVER_COUNT;
+
+    // Null to not export the timelines.
+    private File mTimelineDir;
+
+    // Null for a full test.
+    private DataBudget mDataBudget;
+
+    public static void main(String[] args) throws IOException {
+        ThroughputBenchmark benchmark = new ThroughputBenchmark();
+        try {
+            benchmark.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ThroughputBenchmark [--rates 10,50,100] [--latency ms] " +
+                    "[--transport http|nio|h2] [--runs n] [--size bytes] [--servers n] [--timeline dir] " +
+                    "[--budget MB]");
+            System.exit(1);
+        }
+        benchmark.run();
+    }
+
+    private void parseArguments(String[] args) {
+        String rates = DEFAULT_RATES;
+
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--rates":
+                    rates = value;
+                    break;
+                case "--latency":
+                    mLatencyInMs = Long.parseLong(value);
+                    break;
+                case "--transport":
+                    if (!"http".equals(value) && !"nio".equals(value) && !"h2".equals(value)) {
+                        throw new IllegalArgumentException("Unknown transport " + value);
+                    }
+                    mTransportName = value;
+                    break;
+                case "--runs":
+                    mRuns = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    mObjectSizeInBytes = Long.parseLong(value);
+                    break;
+                case "--servers":
+                    mServerCount = Integer.parseInt(value);
+                    if (mServerCount < 1) {
+                        throw new IllegalArgumentException("Invalid server count " + value);
+                    }
+                    break;
+                case "--timeline":
+                    mTimelineDir = new File(value);
+                    break;
+                case "--budget":
+                    mDataBudget = new DataBudget((long) (Float.parseFloat(value) * 1000 * 1000));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+
+        String[] parts = rates.split(",");
+        mRatesInMbps = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            mRatesInMbps[i] = Float.parseFloat(parts[i].trim());
+        }
+    }
+
+    private void run() throws IOException {
+        System.out.printf(Locale.US, "Transport %s, latency %d ms, %d server(s), %d run(s) per rate, budget %s%n",
+                mTransportName, mLatencyInMs, mServerCount, mRuns, mDataBudget != null ? mDataBudget : "none");
+        System.out.printf(Locale.US, ROW_FORMAT,
+                "phase", "set Mbps", "got Mbps", "error", "dev", "stop", "MB", "cpu ms", "ms/MB");
+
+        if (mTimelineDir != null && !mTimelineDir.isDirectory() && !mTimelineDir.mkdirs()) {
+            throw new IOException("Cannot create " + mTimelineDir);
+        }
+
+        for (float rateInMbps : mRatesInMbps) {
+            for (int run = 0; run < mRuns; run++) {
+                runOnce(rateInMbps, run);
+            }
+        }
+    }
+
+    private void runOnce(float rateInMbps, int run) throws IOException {
+        List<LocalTestServer> servers = new ArrayList<>();
+        List<TestServer> testServers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < mServerCount; i++) {
+                LocalTestServer server = new LocalTestServer(mObjectSizeInBytes,
+                        rateInMbps / mServerCount, rateInMbps / mServerCount, mLatencyInMs);
+                server.start();
+                servers.add(server);
+                testServers.add(new TestServer("local-" + i,
+                        server.getPingUrl(),
+                        server.getDownloadUrl(),
+                        server.getObjectSizeInBytes(),
+                        server.getUploadUrl()));
+            }
+
+            SpeedTestEngine engine = new SpeedTestEngine();
+            if (mServerCount == 1) {
+                engine.setServer(testServers.get(0));
+            } else {
+                engine.setServerRegistry(new ServerRegistry(testServers),
+                        mServerCount, ServerSelector.DEFAULT_BUDGET_IN_MS);
+            }
+            engine.setTransport(newTransport());
+            engine.setDataBudget(mDataBudget);
+            engine.setResourceProbe(new JvmResourceProbe());
+
+            CpuListener listener = new CpuListener(servers);
+            engine.setListener(listener);
+
+            SpeedTestResult result = engine.run();
+
+            // Let the server threads wind down so their cpu is in.
+            stopAll(servers);
+            sleepQuietly(200);
+
+            printRow("download", rateInMbps, result.getDownload(), listener.mDownloadCpuNs);
+            printRow("upload", rateInMbps, result.getUpload(), listener.mUploadCpuNs);
+            System.out.printf(Locale.US, "  idle latency %s%n", result.getIdleLatency());
+            System.out.printf(Locale.US, "  connection %s, %d connection(s) accepted%n",
+                    result.getConnectionTimings(), getConnectionCount(servers));
+
+            writeTimeline("download", rateInMbps, run, result.getDownload());
+            writeTimeline("upload", rateInMbps, run, result.getUpload());
+        } finally {
+            stopAll(servers);
+        }
+    }
+
+    private void writeTimeline(String phase, float rateInMbps, int run, PhaseResult result) throws IOException {
+        if (mTimelineDir == null || result == null) {
+            return;
+        }
+
+        File file = new File(mTimelineDir,
+                String.format(Locale.US, "%s-%s-%.0fmbps-%d.csv", phase, mTransportName, rateInMbps, run));
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            result.getTimeline().writeCsv(out);
+        } finally {
+            out.close();
+        }
+        System.out.printf(Locale.US, "  %s timeline %s: %s%n", phase, file, result.getTimeline());
+    }
+
+    private static int getConnectionCount(List<LocalTestServer> servers) {
+        int connectionCount = 0;
+        for (LocalTestServer server : servers) {
+            connectionCount += server.getConnectionCount();
+        }
+        return connectionCount;
+    }
+
+    private static void stopAll(List<LocalTestServer> servers) {
+        for (LocalTestServer server : servers) {
+            server.stop();
+        }
+    }
+
+    private Transport newTransport() {
+        switch (mTransportName) {
+            case "nio":
+                return new NioSocketTransport();
+            case "h2":
+                return new Http2Transport();
+            default:
+                return new HttpUrlConnectionTransport();
+        }
+    }
+
+    private void printRow(String phase, float rateInMbps, PhaseResult result, long cpuNs) {
+        if (result == null) {
+            return;
+        }
+
+        float speedInMbps = result.getSpeedInMbps();
+        float megabytes = result.getBytesTransferred() / (1000f * 1000f);
+        float cpuMs = cpuNs / 1000000f;
+        String error = rateInMbps > 0
+                ? String.format(Locale.US, "%+.1f%%", (speedInMbps - rateInMbps) * 100 / rateInMbps)
+                : "-";
+
+        System.out.printf(Locale.US, ROW_FORMAT,
+                phase,
+                rateInMbps > 0 ? String.format(Locale.US, "%.1f", rateInMbps) : "unlimited",
+                String.format(Locale.US, "%.2f", speedInMbps),
+                error,
+                Float.isNaN(result.getDeviation())
+                        ? "-"
+                        : String.format(Locale.US, "%.1f%%", result.getDeviation() * 100),
+                result.getStopReason(),
+                String.format(Locale.US, "%.1f", megabytes),
+                String.format(Locale.US, "%.0f", cpuMs),
+                megabytes > 0 ? String.format(Locale.US, "%.2f", cpuMs / megabytes) : "-");
+
+        List<ServerThroughput> breakdown = result.getServerBreakdown();
+        if (breakdown.size() > 1) {
+            for (ServerThroughput serverThroughput : breakdown) {
+                System.out.printf(Locale.US, "  %-10s %7.2f Mbps %7.1f MB %3d streams%n",
+                        serverThroughput.getServer().getName(),
+                        serverThroughput.getSpeedInMbps(),
+                        serverThroughput.getBytesTransferred() / (1000f * 1000f),
+                        serverThroughput.getStreamCount());
+            }
+        }
+
+        ClientLoad clientLoad = result.getClientLoad();
+        if (clientLoad != null) {
+            System.out.printf(Locale.US,
+                    "  client cpu %d ms (streams %d, engine %d, transport %d), utilization %.0f%%, allocated %.1f MB, " +
+                            "gc %d in %d ms, %d io calls of %.1f kB%s%n",
+                    clientLoad.getProcessCpuTimeNs() / 1000000,
+                    clientLoad.getStreamCpuTimeNs() / 1000000,
+                    clientLoad.getEngineCpuTimeNs() / 1000000,
+                    clientLoad.getTransportCpuTimeNs() / 1000000,
+                    clientLoad.getCpuUtilization() * 100,
+                    clientLoad.getAllocatedBytes() / (1000f * 1000f),
+                    clientLoad.getGcCount(),
+                    clientLoad.getGcPauseTimeMs(),
+                    clientLoad.getIoCallCount(),
+                    clientLoad.getAverageChunkSizeInBytes() / 1000f,
+                    clientLoad.isCpuBound() ? ", cpu bound" : "");
+        }
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cpu of the whole process, minus what the server spent, taken at the
+     * phase boundaries.
+     */
+    private static long getClientCpuNs(List<LocalTestServer> servers) {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (!(bean instanceof com.sun.management.OperatingSystemMXBean)) {
+            return 0;
+        }
+        long clientCpuNs = ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        for (LocalTestServer server : servers) {
+            clientCpuNs -= server.getCpuTimeNs();
+        }
+        return clientCpuNs;
+    }
+
+    /**
+     * Takes the client cpu at the start and end of each throughput phase.
+     */
+    private static class CpuListener implements SpeedTestEngine.Listener {
+
+        private final List<LocalTestServer> mServers;
+
+        private long mPhaseStartCpuNs;
+
+        private long mDownloadCpuNs;
+
+        private long mUploadCpuNs;
+
+        CpuListener(List<LocalTestServer> servers) {
+            mServers = servers;
+        }
+
+        @Override
+        public void onTestStarted() {
+        }
+
+        @Override
+        public void onServerSelectionCompleted(List<ServerLatency> selected) {
+        }
+
+        @Override
+        public void onLatencyProgress(float rttInMs) {
+        }
+
+        @Override
+        public void onLatencyCompleted(LatencyResult result) {
+            mPhaseStartCpuNs = getClientCpuNs(mServers);
+        }
+
+        @Override
+        public void onDownloadProgress(float speedInMbps) {
+        }
+
+        @Override
+        public void onDownloadCompleted(PhaseResult result) {
+            long nowCpuNs = getClientCpuNs(mServers);
+            mDownloadCpuNs = nowCpuNs - mPhaseStartCpuNs;
+            mPhaseStartCpuNs = nowCpuNs;
+        }
+
+        @Override
+        public void onUploadProgress(float speedInMbps) {
+        }
+
+        @Override
+        public void onUploadCompleted(PhaseResult result) {
+            mUploadCpuNs = getClientCpuNs(mServers) - mPhaseStartCpuNs;
+        }
+
+        @Override
+        public void onTestCompleted(SpeedTestResult result) {
+        }
+    }
+}
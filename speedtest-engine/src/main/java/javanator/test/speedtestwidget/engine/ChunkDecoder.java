@@ -0,0 +1,111 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the framing of a chunked HTTP/1.1 body in place, so a download
+ * counts the payload without the chunk sizes around it. Payload bytes are
+ * skipped over, never copied; only the framing gets looked at byte by
+ * byte. Chunk extensions and trailers get read and dropped.
+ */
+final class ChunkDecoder {
+
+    private enum State {
+        SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE
+    }
+
+    private State mState = State.SIZE;
+
+    // Of the chunk whose size or data is being read.
+    private long mChunkRemaining = 0;
+    private boolean mSizeRead = false;
+
+    // Characters on the trailer line so far, 0 on an empty line.
+    private int mLineLength = 0;
+
+    /**
+     * Consumes the buffer up to its limit, or up to the end of the body
+     * if that comes first.
+     *
+     * @return Payload bytes among the bytes consumed.
+     */
+    long decode(ByteBuffer buffer) throws IOException {
+
+        long payloadBytes = 0;
+        while (buffer.hasRemaining() && mState != State.DONE) {
+
+            if (mState == State.DATA) {
+                int skipped = (int) Math.min(buffer.remaining(), mChunkRemaining);
+                buffer.position(buffer.position() + skipped);
+                payloadBytes += skipped;
+                mChunkRemaining -= skipped;
+                if (mChunkRemaining == 0) {
+                    mState = State.DATA_END;
+                }
+                continue;
+            }
+
+            byte b = buffer.get();
+            switch (mState) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (mChunkRemaining > Long.MAX_VALUE >> 4) {
+                            throw new IOException("Chunk size out of range");
+                        }
+                        mChunkRemaining = (mChunkRemaining << 4) + digit;
+                        mSizeRead = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        mState = State.EXTENSION;
+                    } else if (b == '\n') {
+                        endSizeLine();
+                    } else if (b != '\r') {
+                        throw new IOException("Malformed chunk size");
+                    }
+                    break;
+
+                case EXTENSION:
+                    if (b == '\n') {
+                        endSizeLine();
+                    }
+                    break;
+
+                case DATA_END:
+                    if (b == '\n') {
+                        mState = State.SIZE;
+                        mSizeRead = false;
+                    } else if (b != '\r') {
+                        throw new IOException("Chunk longer than its size");
+                    }
+                    break;
+
+                case TRAILER:
+                    if (b == '\n') {
+                        if (mLineLength == 0) {
+                            mState = State.DONE;
+                        }
+                        mLineLength = 0;
+                    } else if (b != '\r') {
+                        mLineLength++;
+                    }
+                    break;
+            }
+        }
+        return payloadBytes;
+    }
+
+    /**
+     * True once the last chunk and the trailers are read.
+     */
+    boolean isDone() {
+        return mState == State.DONE;
+    }
+
+    private void endSizeLine() throws IOException {
+        if (!mSizeRead) {
+            throw new IOException("Missing chunk size");
+        }
+        mState = mChunkRemaining > 0 ? State.DATA : State.TRAILER;
+    }
+}
@@ -0,0 +1,245 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.Arrays;
+
+/**
+ * What the client spent on one download or upload phase: cpu of the
+ * process and, out of it, of every stream, of the engine's sampling loop,
+ * of the transport's own threads and of the ui showing the test, the
+ * allocations and garbage collections of the process, and how many reads
+ * or writes the streams needed. Readings the {@link ResourceProbe} could
+ * not take are -1.
+ *
+ * Flags the phase as cpu bound when the client rather than the link was
+ * likely the limit, see {@link #isCpuBound()}.
+ */
+public class ClientLoad {
+
+    /*
+     * Share of all the cores, or of a single one for a stream, the client
+     * has to keep busy for the phase to count as cpu bound.
+     */
+    private static final float CPU_BOUND_UTILIZATION = 0.8f;
+
+    /*
+     * Share of the phase spent paused for garbage collection which makes it
+     * count as cpu bound too.
+     */
+    private static final float GC_BOUND_SHARE = 0.1f;
+
+    private final long mDurationNs;
+
+    private final int mProcessorCount;
+
+    private final long mProcessCpuTimeNs;
+
+    private final long[] mStreamCpuTimeNs;
+
+    private final long mEngineCpuTimeNs;
+
+    private final long mTransportCpuTimeNs;
+
+    private final long mUiCpuTimeNs;
+
+    private final long mAllocatedBytes;
+
+    private final long mGcCount;
+
+    private final long mGcPauseTimeMs;
+
+    private final long mIoCallCount;
+
+    private final long mBytesTransferred;
+
+    /**
+     * @param streamCpuTimeNs Cpu of each stream, indexed like the streams.
+     * @param transportCpuTimeNs Cpu of threads of the transport's own.
+     * @param ioCallCount Reads or writes the streams moved the bytes in.
+     */
+    public ClientLoad(long durationNs,
+                      int processorCount,
+                      long processCpuTimeNs,
+                      long[] streamCpuTimeNs,
+                      long engineCpuTimeNs,
+                      long transportCpuTimeNs,
+                      long uiCpuTimeNs,
+                      long allocatedBytes,
+                      long gcCount,
+                      long gcPauseTimeMs,
+                      long ioCallCount,
+                      long bytesTransferred) {
+
+        mDurationNs = durationNs;
+        mProcessorCount = processorCount;
+        mProcessCpuTimeNs = processCpuTimeNs;
+        mStreamCpuTimeNs = streamCpuTimeNs.clone();
+        mEngineCpuTimeNs = engineCpuTimeNs;
+        mTransportCpuTimeNs = transportCpuTimeNs;
+        mUiCpuTimeNs = uiCpuTimeNs;
+        mAllocatedBytes = allocatedBytes;
+        mGcCount = gcCount;
+        mGcPauseTimeMs = gcPauseTimeMs;
+        mIoCallCount = ioCallCount;
+        mBytesTransferred = bytesTransferred;
+    }
+
+    /**
+     * Cpu time of the whole process. More than that of the streams, the
+     * engine, the transport and the ui by what the runtime spent on
+     * threads of its own.
+     */
+    public long getProcessCpuTimeNs() {
+        return mProcessCpuTimeNs;
+    }
+
+    public int getStreamCount() {
+        return mStreamCpuTimeNs.length;
+    }
+
+    /**
+     * Cpu time of the stream at the given index. 0 for a stream which did
+     * not wind down in time to tell.
+     */
+    public long getStreamCpuTimeNs(int streamIndex) {
+        return mStreamCpuTimeNs[streamIndex];
+    }
+
+    /**
+     * Cpu time of all the streams together.
+     */
+    public long getStreamCpuTimeNs() {
+        long cpuTimeNs = 0;
+        for (long streamCpuTimeNs : mStreamCpuTimeNs) {
+            if (streamCpuTimeNs < 0) {
+                return -1;
+            }
+            cpuTimeNs += streamCpuTimeNs;
+        }
+        return cpuTimeNs;
+    }
+
+    /**
+     * Cpu time of the thread sampling the streams and driving the phase.
+     */
+    public long getEngineCpuTimeNs() {
+        return mEngineCpuTimeNs;
+    }
+
+    /**
+     * Cpu time of threads the transport runs besides the streams, e.g. the
+     * reader of an HTTP/2 connection, 0 if it runs none.
+     */
+    public long getTransportCpuTimeNs() {
+        return mTransportCpuTimeNs;
+    }
+
+    /**
+     * Cpu time the ui reported for showing the phase, e.g. rendering the
+     * gauge, 0 if nothing did.
+     */
+    public long getUiCpuTimeNs() {
+        return mUiCpuTimeNs;
+    }
+
+    /**
+     * Cpu time of the streams, the engine, the transport and the ui
+     * together.
+     */
+    public long getCpuTimeNs() {
+        long streamCpuTimeNs = getStreamCpuTimeNs();
+        if (streamCpuTimeNs < 0 || mEngineCpuTimeNs < 0 || mTransportCpuTimeNs < 0) {
+            return -1;
+        }
+        return streamCpuTimeNs + mEngineCpuTimeNs + mTransportCpuTimeNs + mUiCpuTimeNs;
+    }
+
+    /**
+     * Cpu time of the process, or else of the streams, the engine, the
+     * transport and the ui, over the time all the cores had. NaN if
+     * unknown.
+     */
+    public float getCpuUtilization() {
+        long cpuTimeNs = mProcessCpuTimeNs >= 0 ? mProcessCpuTimeNs : getCpuTimeNs();
+        if (cpuTimeNs < 0 || mDurationNs <= 0) {
+            return Float.NaN;
+        }
+        return (float) cpuTimeNs / mDurationNs / mProcessorCount;
+    }
+
+    /**
+     * Bytes the process allocated over the phase, whoever allocated them.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    public long getGcCount() {
+        return mGcCount;
+    }
+
+    public long getGcPauseTimeMs() {
+        return mGcPauseTimeMs;
+    }
+
+    /**
+     * Reads or writes the streams moved the bytes in, as the transport
+     * reported them. An HTTP/2 connection reports one per frame.
+     */
+    public long getIoCallCount() {
+        return mIoCallCount;
+    }
+
+    /**
+     * Bytes moved per read or write, NaN if there was none.
+     */
+    public float getAverageChunkSizeInBytes() {
+        return mIoCallCount > 0 ? (float) mBytesTransferred / mIoCallCount : Float.NaN;
+    }
+
+    /**
+     * True if the client was busy enough to have likely capped the rate:
+     * it kept most of the cores busy, a single stream or the transport's
+     * own threads kept a core busy, or garbage collection held the process
+     * up for a good part of the phase. The transport's threads count
+     * together, with HTTP/2 one reader per server.
+     */
+    public boolean isCpuBound() {
+        if (mDurationNs <= 0) {
+            return false;
+        }
+
+        if (getCpuUtilization() >= CPU_BOUND_UTILIZATION) {
+            return true;
+        }
+
+        for (long streamCpuTimeNs : mStreamCpuTimeNs) {
+            if (streamCpuTimeNs >= CPU_BOUND_UTILIZATION * mDurationNs) {
+                return true;
+            }
+        }
+
+        if (mTransportCpuTimeNs >= CPU_BOUND_UTILIZATION * mDurationNs) {
+            return true;
+        }
+
+        return mGcPauseTimeMs >= 0 && mGcPauseTimeMs * 1000000f >= GC_BOUND_SHARE * mDurationNs;
+    }
+
+    @Override
+    public String toString() {
+        return "cpu " + mProcessCpuTimeNs / 1000000 + "ms, threads " + getCpuTimeNs() / 1000000 +
+                "ms (streams " + Arrays.toString(toMs(mStreamCpuTimeNs)) + ", engine " + mEngineCpuTimeNs / 1000000 +
+                "ms, transport " + mTransportCpuTimeNs / 1000000 + "ms, ui " + mUiCpuTimeNs / 1000000 + "ms), utilization " +
+                getCpuUtilization() + ", allocated " + mAllocatedBytes + " bytes, gc " + mGcCount + " (" +
+                mGcPauseTimeMs + "ms), " + mIoCallCount + " io calls of " + getAverageChunkSizeInBytes() + " bytes" +
+                (isCpuBound() ? ", cpu bound" : "");
+    }
+
+    private static long[] toMs(long[] ns) {
+        long[] ms = new long[ns.length];
+        for (int i = 0; i < ns.length; i++) {
+            ms[i] = ns[i] / 1000000;
+        }
+        return ms;
+    }
+}
@@ -0,0 +1,193 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Gets the connections of a phase ready before its clock starts, so that
+ * no stream pays for dns, the tcp handshake, tls and an idle slow start
+ * inside the measured time. The transport keeps the connections opened
+ * here alive for its streams to pick up.
+ */
+public class ConnectionManager {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(ConnectionManager.class.getSimpleName());
+
+    /*
+     * Time pre-connecting may hold a phase back. Streams open the
+     * connections still missing then on their own.
+     */
+    public static final long DEFAULT_BUDGET_IN_MS = 3000;
+
+    private static final int TIMING_TIMEOUT_IN_MS = 5000;
+
+    private static final int DEFAULT_HTTP_PORT = 80;
+
+    private static final int DEFAULT_HTTPS_PORT = 443;
+
+    private final Transport mTransport;
+
+    private final long mBudgetInMs;
+
+    public ConnectionManager(Transport transport) {
+        this(transport, DEFAULT_BUDGET_IN_MS);
+    }
+
+    public ConnectionManager(Transport transport, long budgetInMs) {
+        if (budgetInMs <= 0) {
+            throw new IllegalArgumentException("Invalid pre-connect budget " + budgetInMs);
+        }
+
+        mTransport = transport;
+        mBudgetInMs = budgetInMs;
+    }
+
+    /**
+     * Opens connectionsPerUrl connections to each of the urls in parallel
+     * and returns once they are up or the budget is spent. Connections
+     * which fail are left for the streams to retry.
+     */
+    public void preconnect(List<URL> urls, int connectionsPerUrl) throws InterruptedException {
+
+        int taskCount = urls.size() * connectionsPerUrl;
+        if (taskCount == 0) {
+            return;
+        }
+
+        // One thread per connection, so that none of them waits for another
+        // to go idle and gets that one instead of its own.
+        ExecutorService executor = Executors.newFixedThreadPool(taskCount, new PreconnectThreadFactory());
+        try {
+            for (final URL url : urls) {
+                for (int i = 0; i < connectionsPerUrl; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                mTransport.preconnect(url);
+                            } catch (IOException e) {
+                                LOG.log(Level.FINE, "Pre-connect to " + url + " failed: " + e.getMessage());
+                            }
+                        }
+                    });
+                }
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(mBudgetInMs, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Times resolving the host of each of the urls, one after the other.
+     * Must run before anything else of the test looks them up, as the
+     * runtime caches addresses and later lookups take no time.
+     *
+     * @return Time in ms by host, NaN for a host which cannot be resolved.
+     */
+    public static Map<String, Float> measureDns(List<URL> urls) {
+        Map<String, Float> dnsInMs = new HashMap<>();
+        for (URL url : urls) {
+            String host = url.getHost();
+            if (dnsInMs.containsKey(host)) {
+                continue;
+            }
+
+            long startTimeNs = System.nanoTime();
+            try {
+                InetAddress.getByName(host);
+                dnsInMs.put(host, toMs(System.nanoTime() - startTimeNs));
+            } catch (UnknownHostException e) {
+                LOG.log(Level.WARNING, "Cannot resolve " + host + ": " + e.getMessage());
+                dnsInMs.put(host, Float.NaN);
+            }
+        }
+        return dnsInMs;
+    }
+
+    /**
+     * Times the steps of setting up one connection to the host of url on a
+     * socket of its own, which gets closed right after.
+     *
+     * @param dnsInMs Time resolving the host took, see
+     * {@link #measureDns(List)}; this lookup likely hits the cache.
+     * @return null if the host cannot be resolved or reached.
+     */
+    public static ConnectionTimings measure(URL url, float dnsInMs) {
+
+        boolean https = "https".equals(url.getProtocol());
+        int port = url.getPort() != -1 ? url.getPort() : https ? DEFAULT_HTTPS_PORT : DEFAULT_HTTP_PORT;
+
+        Socket socket = new Socket();
+        try {
+            InetAddress address = InetAddress.getByName(url.getHost());
+            long resolvedTimeNs = System.nanoTime();
+
+            socket.connect(new InetSocketAddress(address, port), TIMING_TIMEOUT_IN_MS);
+            long connectedTimeNs = System.nanoTime();
+
+            float tlsInMs = Float.NaN;
+            if (https) {
+                socket.setSoTimeout(TIMING_TIMEOUT_IN_MS);
+                SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, url.getHost(), port, true);
+                socket = sslSocket;
+                sslSocket.startHandshake();
+                tlsInMs = toMs(System.nanoTime() - connectedTimeNs);
+            }
+
+            return new ConnectionTimings(dnsInMs,
+                    toMs(connectedTimeNs - resolvedTimeNs),
+                    tlsInMs);
+
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot time the connection to " + url + ": " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static float toMs(long ns) {
+        return ns / 1000000f;
+    }
+
+    private static class PreconnectThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setName(ConnectionManager.class.getSimpleName() + "-" + mThreadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Time the setup of one connection to a test server took, step by step,
+ * kept apart from the throughput which no longer pays for it.
+ */
+public class ConnectionTimings {
+
+    private final float mDnsInMs;
+
+    private final float mConnectInMs;
+
+    private final float mTlsInMs;
+
+    /**
+     * @param tlsInMs NaN for plain http.
+     */
+    public ConnectionTimings(float dnsInMs, float connectInMs, float tlsInMs) {
+        mDnsInMs = dnsInMs;
+        mConnectInMs = connectInMs;
+        mTlsInMs = tlsInMs;
+    }
+
+    /**
+     * Name lookup, timed before the server got picked. Close to 0 if the
+     * host got resolved shortly before the test, NaN if it could not be.
+     */
+    public float getDnsInMs() {
+        return mDnsInMs;
+    }
+
+    /**
+     * Tcp handshake.
+     */
+    public float getConnectInMs() {
+        return mConnectInMs;
+    }
+
+    /**
+     * Tls handshake, NaN for plain http.
+     */
+    public float getTlsInMs() {
+        return mTlsInMs;
+    }
+
+    @Override
+    public String toString() {
+        return "dns " + mDnsInMs + "ms, connect " + mConnectInMs + "ms" +
+                (Float.isNaN(mTlsInMs) ? "" : ", tls " + mTlsInMs + "ms");
+    }
+}
@@ -0,0 +1,97 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.Arrays;
+
+/**
+ * Spread of one metric over the tests of one day.
+ */
+public class DailyAggregate {
+
+    /**
+     * Value of a record a daily aggregate is taken over.
+     */
+    public enum Metric {
+        DOWNLOAD_SPEED(ResultRecord.DOWNLOAD_SPEED_OFFSET),
+        UPLOAD_SPEED(ResultRecord.UPLOAD_SPEED_OFFSET),
+        LATENCY(ResultRecord.LATENCY_OFFSET);
+
+        // Of the float in a binary record.
+        final int mOffset;
+
+        Metric(int offset) {
+            mOffset = offset;
+        }
+    }
+
+    private final long mDayStartMs;
+
+    private final int mCount;
+
+    private final float mP10;
+
+    private final float mMedian;
+
+    private final float mP90;
+
+    private DailyAggregate(long dayStartMs, int count, float p10, float median, float p90) {
+        mDayStartMs = dayStartMs;
+        mCount = count;
+        mP10 = p10;
+        mMedian = median;
+        mP90 = p90;
+    }
+
+    /**
+     * @param values Values of the day, only the first count are used and
+     * they get sorted in place.
+     */
+    static DailyAggregate fromValues(long dayStartMs, float[] values, int count) {
+        if (count == 0) {
+            return new DailyAggregate(dayStartMs, 0, Float.NaN, Float.NaN, Float.NaN);
+        }
+
+        Arrays.sort(values, 0, count);
+        return new DailyAggregate(dayStartMs,
+                count,
+                percentile(values, count, 0.1f),
+                percentile(values, count, 0.5f),
+                percentile(values, count, 0.9f));
+    }
+
+    // Nearest rank percentile of the first count values, sorted.
+    private static float percentile(float[] sorted, int count, float fraction) {
+        int rank = (int) Math.ceil(fraction * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Local midnight the day starts at, in ms since the epoch.
+     */
+    public long getDayStartMs() {
+        return mDayStartMs;
+    }
+
+    /**
+     * Tests of the day which had a value for the metric.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public float getP10() {
+        return mP10;
+    }
+
+    public float getMedian() {
+        return mMedian;
+    }
+
+    public float getP90() {
+        return mP90;
+    }
+
+    @Override
+    public String toString() {
+        return mDayStartMs + ": p10 " + mP10 + ", median " + mMedian + ", p90 " + mP90 + " of " + mCount;
+    }
+}
@@ -0,0 +1,79 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Hard cap on the bytes a test may move, for metered connections.
+ *
+ * The download gets its share of the budget first and the upload whatever
+ * is left. Each phase stops the moment it has used its share, runs at most
+ * one stream per {@link #MIN_BYTES_PER_STREAM} of it, since every stream
+ * spends bytes on its own ramp-up, and converges on a shorter and looser
+ * stability window than a full test.
+ */
+public class DataBudget {
+
+    /*
+     * Share of the budget the download phase may use.
+     */
+    private static final float DOWNLOAD_SHARE = 0.6f;
+
+    /*
+     * Bytes of the phase budget below which one more stream would cost
+     * more in ramp-up than it adds to the estimate.
+     */
+    public static final long MIN_BYTES_PER_STREAM = 4L * 1000 * 1000;
+
+    public static final TerminationPolicy LITE_DOWNLOAD_POLICY =
+            new TerminationPolicy(1000, 15000, 0.10f, 1000);
+
+    public static final TerminationPolicy LITE_UPLOAD_POLICY =
+            new TerminationPolicy(1000, 20000, 0.10f, 1000);
+
+    private final long mTotalBytes;
+
+    public DataBudget(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("Invalid data budget " + totalBytes);
+        }
+
+        mTotalBytes = totalBytes;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @param bytesUsed Bytes the test has moved before the phase.
+     */
+    public long getPhaseBytes(boolean download, long bytesUsed) {
+        return getPhaseBytes(mTotalBytes, download, bytesUsed);
+    }
+
+    /**
+     * Same split for a cap which keeps the full test otherwise, e.g.
+     * {@link SpeedTestEngine#setByteLimit(long)}.
+     */
+    static long getPhaseBytes(long totalBytes, boolean download, long bytesUsed) {
+        if (download) {
+            return (long) (totalBytes * DOWNLOAD_SHARE);
+        }
+        return Math.max(totalBytes - bytesUsed, 0);
+    }
+
+    /**
+     * Streams the phase may grow to, at most the given default.
+     */
+    public int getMaxStreamCount(long phaseBytes, int defaultMaxStreamCount) {
+        long streamCount = phaseBytes / MIN_BYTES_PER_STREAM;
+        return (int) Math.max(1, Math.min(streamCount, defaultMaxStreamCount));
+    }
+
+    public TerminationPolicy getTerminationPolicy(boolean download) {
+        return download ? LITE_DOWNLOAD_POLICY : LITE_UPLOAD_POLICY;
+    }
+
+    @Override
+    public String toString() {
+        return mTotalBytes + " bytes";
+    }
+}
@@ -0,0 +1,73 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Download engine running several concurrent connections against the test
+ * object of each server. Every connection asks for its own byte range of
+ * the object.
+ */
+public class DownloadEngine extends TransferEngine {
+
+    /*
+     * Number of streams opened when the engine starts.
+     */
+    public static final int DEFAULT_INITIAL_STREAM_COUNT = 2;
+
+    /*
+     * Upper bound on the streams the engine adds on its own.
+     */
+    public static final int DEFAULT_MAX_STREAM_COUNT = 8;
+
+    private final URL[] mUrls;
+
+    public DownloadEngine(List<TestServer> servers,
+                          Transport transport,
+                          int initialStreamCount,
+                          int maxStreamCount) {
+
+        super(servers, transport, initialStreamCount, maxStreamCount);
+
+        mUrls = new URL[servers.size()];
+        for (int i = 0; i < mUrls.length; i++) {
+            mUrls[i] = toUrl(servers.get(i).getDownloadUrl());
+        }
+    }
+
+    @Override
+    protected TransferStream newStream(int index, int serverIndex) {
+        return new DownloadStream(index, serverIndex);
+    }
+
+    // One connection reading its own byte range of the test object.
+    private class DownloadStream extends TransferStream {
+
+        private final long mRangeStart;
+
+        private final long mRangeEnd;
+
+        public DownloadStream(int index, int serverIndex) {
+            super(DownloadStream.class.getSimpleName() + "-" + index, index, serverIndex);
+
+            // Every possible stream gets an equal slice of the object so that
+            // the ranges never overlap, whatever the final stream count is.
+            long sliceSize = mServers.get(serverIndex).getDownloadObjectSizeInBytes() / mMaxStreamCount;
+            mRangeStart = index * sliceSize;
+            mRangeEnd = mRangeStart + sliceSize - 1;
+        }
+
+        // Reads return as the bytes keep coming, and the transport can keep
+        // the connection if little of the response is left.
+        @Override
+        protected boolean keepsConnectionOnStop() {
+            return true;
+        }
+
+        @Override
+        protected void transfer() throws IOException {
+            mTransport.download(mUrls[mServerIndex], mRangeStart, mRangeEnd, this);
+        }
+    }
+}
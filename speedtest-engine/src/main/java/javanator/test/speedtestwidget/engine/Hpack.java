@@ -0,0 +1,262 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * The little of HPACK an {@link Http2Connection} needs. Requests go out as
+ * literals which never touch the dynamic table, and the connection asks
+ * the server for a dynamic table of size 0, so out of a response only the
+ * status needs decoding and everything else can be skipped unread.
+ */
+final class Hpack {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /*
+     * Static table indexes, RFC 7541 appendix A.
+     */
+    static final int INDEX_AUTHORITY = 1;
+    static final int INDEX_METHOD_GET = 2;
+    static final int INDEX_METHOD_POST = 3;
+    static final int INDEX_PATH = 4;
+    static final int INDEX_SCHEME_HTTP = 6;
+    static final int INDEX_ACCEPT_ENCODING = 16;
+    static final int INDEX_CONTENT_TYPE = 31;
+    static final int INDEX_RANGE = 50;
+
+    // Statuses of the static table, from index 8 on.
+    private static final int FIRST_STATUS_INDEX = 8;
+    private static final int[] STATIC_STATUSES = {200, 204, 206, 304, 400, 404, 500};
+
+    private Hpack() {
+    }
+
+    /**
+     * Builds a header block one field at a time.
+     */
+    static class Encoder {
+
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(128);
+
+        /**
+         * Field stored whole in the static table.
+         */
+        Encoder indexed(int index) {
+            writeInteger(0x80, 7, index);
+            return this;
+        }
+
+        /**
+         * Literal without indexing, named by the static table.
+         */
+        Encoder literal(int nameIndex, String value) {
+            writeInteger(0x00, 4, nameIndex);
+            writeString(value);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+
+        // Plain, not huffman coded.
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(ISO_8859_1);
+            writeInteger(0x00, 7, bytes.length);
+            mOut.write(bytes, 0, bytes.length);
+        }
+
+        private void writeInteger(int flags, int prefixBits, int value) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                mOut.write(flags | value);
+                return;
+            }
+
+            mOut.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                mOut.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.write(value);
+        }
+    }
+
+    /**
+     * Finds the :status of a response header block.
+     *
+     * @return The status, -1 if the block has none.
+     * @throws IOException If the block is malformed or the status is
+     * coded in a way this decoder does not know.
+     */
+    static int decodeStatus(byte[] block, int offset, int length) throws IOException {
+
+        Decoder decoder = new Decoder(block, offset, offset + length);
+        int status = -1;
+
+        while (decoder.hasRemaining()) {
+            int b = decoder.peek();
+
+            if ((b & 0x80) != 0) {
+                // Indexed field.
+                int index = decoder.readInteger(7);
+                if (isStatusIndex(index)) {
+                    status = STATIC_STATUSES[index - FIRST_STATUS_INDEX];
+                }
+            } else if ((b & 0xe0) == 0x20) {
+                // Dynamic table size update, the table stays empty anyway.
+                decoder.readInteger(5);
+            } else {
+                // Literal with incremental indexing, without indexing or never indexed.
+                int nameIndex = decoder.readInteger((b & 0xc0) == 0x40 ? 6 : 4);
+                boolean isStatus = nameIndex == 0
+                        ? ":status".equals(decoder.readString())
+                        : isStatusIndex(nameIndex);
+
+                if (isStatus) {
+                    status = decoder.readStatusValue();
+                } else {
+                    decoder.skipString();
+                }
+            }
+        }
+
+        return status;
+    }
+
+    private static boolean isStatusIndex(int index) {
+        return index >= FIRST_STATUS_INDEX && index < FIRST_STATUS_INDEX + STATIC_STATUSES.length;
+    }
+
+    private static class Decoder {
+
+        private final byte[] mBlock;
+
+        private final int mEnd;
+
+        private int mPosition;
+
+        Decoder(byte[] block, int start, int end) {
+            mBlock = block;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        boolean hasRemaining() {
+            return mPosition < mEnd;
+        }
+
+        int peek() {
+            return mBlock[mPosition] & 0xff;
+        }
+
+        int readInteger(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = readByte() & max;
+            if (value < max) {
+                return value;
+            }
+
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 21) {
+                    throw new IOException("HPACK integer too large");
+                }
+                b = readByte();
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        // Null if huffman coded, only the status value ever gets decoded.
+        String readString() throws IOException {
+            boolean huffman = (peek() & 0x80) != 0;
+            int length = readInteger(7);
+            checkRemaining(length);
+            String value = huffman ? null : new String(mBlock, mPosition, length, ISO_8859_1);
+            mPosition += length;
+            return value;
+        }
+
+        void skipString() throws IOException {
+            int length = readInteger(7);
+            checkRemaining(length);
+            mPosition += length;
+        }
+
+        int readStatusValue() throws IOException {
+            boolean huffman = (peek() & 0x80) != 0;
+            int length = readInteger(7);
+            checkRemaining(length);
+
+            String value = huffman
+                    ? decodeHuffmanDigits(mBlock, mPosition, length)
+                    : new String(mBlock, mPosition, length, ISO_8859_1);
+            mPosition += length;
+
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid :status " + value);
+            }
+        }
+
+        private int readByte() throws IOException {
+            checkRemaining(1);
+            return mBlock[mPosition++] & 0xff;
+        }
+
+        private void checkRemaining(int length) throws IOException {
+            if (length < 0 || length > mEnd - mPosition) {
+                throw new IOException("Truncated HPACK header block");
+            }
+        }
+    }
+
+    /**
+     * Decodes a huffman coded string of digits. In the HPACK code '0' to
+     * '2' are 00000 to 00010 and '3' to '9' are 011001 to 011111; the last
+     * byte gets padded with at most 7 one bits.
+     */
+    static String decodeHuffmanDigits(byte[] bytes, int offset, int length) throws IOException {
+
+        StringBuilder digits = new StringBuilder(3);
+        int code = 0;
+        int codeBits = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((bytes[i] >> bit) & 1);
+                codeBits++;
+
+                if (codeBits == 5 && code <= 2) {
+                    digits.append((char) ('0' + code));
+                } else if (codeBits == 5 && code < 0xa) {
+                    throw new IOException("Huffman coded :status is not a number");
+                } else if (codeBits == 6 && code >= 0x19 && code <= 0x1f) {
+                    digits.append((char) ('3' + code - 0x19));
+                } else if (codeBits == 6 && code < 0x19) {
+                    throw new IOException("Huffman coded :status is not a number");
+                } else if (codeBits < 8) {
+                    continue;
+                } else {
+                    throw new IOException("Huffman coded :status is not a number");
+                }
+
+                code = 0;
+                codeBits = 0;
+            }
+        }
+
+        // Padding is a prefix of the all ones end of string code.
+        if (code != (1 << codeBits) - 1) {
+            throw new IOException("Invalid huffman padding");
+        }
+        return digits.toString();
+    }
+}
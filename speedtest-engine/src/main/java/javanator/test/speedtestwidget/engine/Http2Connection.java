@@ -0,0 +1,684 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One HTTP/2 connection, in cleartext with prior knowledge (h2c), carrying
+ * the requests of many streams at once.
+ *
+ * A reader thread takes the incoming frames apart, counts the body bytes
+ * of every download stream and keeps the receive windows open. Stream
+ * threads write their own frames under a shared lock and block while the
+ * server's send windows are used up.
+ *
+ * Given a probe, the reader adds its cpu time to a total after every frame.
+ */
+class Http2Connection implements Closeable {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getSimpleName());
+
+    private static final byte[] PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+
+    private static final int FRAME_HEADER_SIZE = 9;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /*
+     * Receive window of every stream and of the connection as a whole.
+     * Large enough to never be what caps the rate: 16 MB in flight covers
+     * 1 Gbps at a 128 ms round trip.
+     */
+    static final int RECEIVE_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    /*
+     * Largest frame the server may send, fewer frames for the same bytes.
+     */
+    private static final int RECEIVE_MAX_FRAME_SIZE = 64 * 1024;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final String mAuthority;
+
+    private final Socket mSocket;
+
+    private final ResourceProbe mResourceProbe;
+
+    private final AtomicLong mReaderCpuTimeNs;
+
+    private final DataInputStream mIn;
+
+    // Guarded by mWriteLock, as is mNextStreamId.
+    private final OutputStream mOut;
+    private final byte[] mFrameHeader = new byte[FRAME_HEADER_SIZE];
+    private int mNextStreamId = 1;
+
+    private final Object mWriteLock = new Object();
+
+    private final Map<Integer, Stream> mStreams = new ConcurrentHashMap<>();
+
+    // Reader thread only.
+    private final byte[] mReadBuffer = new byte[IO_BUFFER_SIZE];
+    private int mConnectionBytesToAcknowledge = 0;
+
+    // Guarded by this: what the server lets us send, and what went wrong.
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+    private int mInitialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int mMaxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+    private IOException mFailure;
+    private boolean mGoingAway = false;
+
+    private Http2Connection(String authority,
+                            Socket socket,
+                            ResourceProbe resourceProbe,
+                            AtomicLong readerCpuTimeNs) throws IOException {
+        mAuthority = authority;
+        mSocket = socket;
+        mResourceProbe = resourceProbe;
+        mReaderCpuTimeNs = readerCpuTimeNs;
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE));
+        mOut = new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Connects, sends the connection preface and starts reading.
+     *
+     * @param resourceProbe Null to leave the reader's cpu time out.
+     * @param readerCpuTimeNs Total to add the reader's cpu time to.
+     */
+    static Http2Connection open(String host,
+                                int port,
+                                int connectTimeoutInMs,
+                                ResourceProbe resourceProbe,
+                                AtomicLong readerCpuTimeNs) throws IOException {
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutInMs);
+
+            Http2Connection connection = new Http2Connection(host + ":" + port, socket,
+                    resourceProbe, readerCpuTimeNs);
+            connection.writePreface();
+            connection.startReader();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * True if the connection can take one more stream.
+     */
+    synchronized boolean isUsable() {
+        return mFailure == null && !mGoingAway && mStreams.size() < mMaxConcurrentStreams;
+    }
+
+    boolean isIdle() {
+        return mStreams.isEmpty();
+    }
+
+    /**
+     * Opens a stream by sending its request headers.
+     *
+     * @param endStream True if the request has no body.
+     * @param countsBody True to count the response body bytes in context.
+     */
+    Stream newStream(byte[] headerBlock,
+                     boolean endStream,
+                     Transport.StreamContext context,
+                     boolean countsBody) throws IOException {
+
+        synchronized (mWriteLock) {
+            Stream stream;
+            synchronized (this) {
+                checkUsable();
+                stream = new Stream(mNextStreamId, context, countsBody, mInitialSendWindow);
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+            }
+
+            writeFrameHeader(headerBlock.length,
+                    TYPE_HEADERS,
+                    FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0),
+                    stream.mId);
+            mOut.write(headerBlock);
+            mOut.flush();
+            return stream;
+        }
+    }
+
+    /**
+     * Sends body bytes of a stream, in as many frames as the server's frame
+     * size and send windows ask for, blocking while the windows are closed.
+     */
+    void writeData(Stream stream, byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int frameLength = reserveSendWindow(stream, length);
+            synchronized (mWriteLock) {
+                writeFrameHeader(frameLength, TYPE_DATA, 0, stream.mId);
+                mOut.write(bytes, offset, frameLength);
+                mOut.flush();
+            }
+            offset += frameLength;
+            length -= frameLength;
+        }
+    }
+
+    /**
+     * Waits till the response of the stream is over. Resets the stream if
+     * its transfer stops running meanwhile.
+     */
+    void awaitEnd(Stream stream) throws IOException {
+        synchronized (this) {
+            while (!stream.mDone && stream.mContext.isRunning()) {
+                try {
+                    // Timed, a stop does not always come with a reset.
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        if (!stream.mDone) {
+            stream.close();
+        } else if (stream.mFailure != null) {
+            throw stream.mFailure;
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+    private void writePreface() throws IOException {
+        synchronized (mWriteLock) {
+            mOut.write(PREFACE);
+
+            // Empty dynamic table, so the responses can be decoded without one.
+            writeFrameHeader(4 * 6, TYPE_SETTINGS, 0, 0);
+            writeSetting(SETTINGS_HEADER_TABLE_SIZE, 0);
+            writeSetting(SETTINGS_ENABLE_PUSH, 0);
+            writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+            writeSetting(SETTINGS_MAX_FRAME_SIZE, RECEIVE_MAX_FRAME_SIZE);
+
+            // The connection window only grows by updates.
+            writeWindowUpdate(0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            mOut.flush();
+        }
+    }
+
+    private void startReader() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ResourceProbe resourceProbe = mResourceProbe;
+                long cpuTimeNs = resourceProbe != null ? resourceProbe.getThreadCpuTimeNs() : -1;
+                try {
+                    while (true) {
+                        readFrame();
+
+                        if (cpuTimeNs >= 0) {
+                            long frameCpuTimeNs = cpuTimeNs;
+                            cpuTimeNs = resourceProbe.getThreadCpuTimeNs();
+                            mReaderCpuTimeNs.addAndGet(cpuTimeNs - frameCpuTimeNs);
+                        }
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+        reader.setName(Http2Connection.class.getSimpleName() + "-" + mAuthority);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readFrame() throws IOException {
+
+        int length = (mIn.readUnsignedShort() << 8) | mIn.readUnsignedByte();
+        int type = mIn.readUnsignedByte();
+        int flags = mIn.readUnsignedByte();
+        int streamId = mIn.readInt() & 0x7fffffff;
+
+        switch (type) {
+            case TYPE_DATA:
+                readData(length, flags, streamId);
+                break;
+            case TYPE_HEADERS:
+                readHeaders(length, flags, streamId);
+                break;
+            case TYPE_RST_STREAM:
+                int errorCode = mIn.readInt();
+                finish(mStreams.get(streamId), new IOException("Stream reset by the server, error " + errorCode));
+                break;
+            case TYPE_SETTINGS:
+                readSettings(length, flags);
+                break;
+            case TYPE_PING:
+                readPing(length, flags);
+                break;
+            case TYPE_GOAWAY:
+                readGoAway(length);
+                break;
+            case TYPE_WINDOW_UPDATE:
+                int increment = mIn.readInt() & 0x7fffffff;
+                onWindowUpdate(streamId, increment);
+                break;
+            case TYPE_PUSH_PROMISE:
+                // Turned off in the settings.
+                sendGoAway(ERROR_PROTOCOL);
+                throw new IOException("Unexpected PUSH_PROMISE");
+            default:
+                // PRIORITY and anything unknown.
+                skipFully(length);
+                break;
+        }
+    }
+
+    private void readData(int length, int flags, int streamId) throws IOException {
+
+        int padLength = (flags & FLAG_PADDED) != 0 ? mIn.readUnsignedByte() : 0;
+        int bodyLength = length - ((flags & FLAG_PADDED) != 0 ? 1 : 0) - padLength;
+
+        // Streams reset already are gone from the map, their bytes still
+        // take up the connection window.
+        Stream stream = mStreams.get(streamId);
+        boolean counts = stream != null && stream.mCountsBody;
+
+        while (bodyLength > 0) {
+            int read = mIn.read(mReadBuffer, 0, Math.min(bodyLength, mReadBuffer.length));
+            if (read == -1) {
+                throw new EOFException("Connection closed inside a DATA frame");
+            }
+            if (counts) {
+                stream.mContext.countBytes(read);
+            }
+            bodyLength -= read;
+        }
+        skipFully(padLength);
+
+        mConnectionBytesToAcknowledge += length;
+        if (mConnectionBytesToAcknowledge >= RECEIVE_WINDOW_SIZE / 2) {
+            sendWindowUpdate(0, mConnectionBytesToAcknowledge);
+            mConnectionBytesToAcknowledge = 0;
+        }
+
+        if (stream == null) {
+            return;
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            finish(stream, null);
+            return;
+        }
+
+        stream.mBytesToAcknowledge += length;
+        if (stream.mBytesToAcknowledge >= RECEIVE_WINDOW_SIZE / 2) {
+            sendWindowUpdate(streamId, stream.mBytesToAcknowledge);
+            stream.mBytesToAcknowledge = 0;
+        }
+    }
+
+    private void readHeaders(int length, int flags, int streamId) throws IOException {
+
+        int padLength = (flags & FLAG_PADDED) != 0 ? mIn.readUnsignedByte() : 0;
+        int blockLength = length - ((flags & FLAG_PADDED) != 0 ? 1 : 0) - padLength;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            skipFully(5);
+            blockLength -= 5;
+        }
+
+        byte[] block = new byte[blockLength];
+        mIn.readFully(block);
+        skipFully(padLength);
+
+        // The block may go on in CONTINUATION frames, which nothing may come between.
+        int headerFlags = flags;
+        while ((headerFlags & FLAG_END_HEADERS) == 0) {
+            int continuationLength = (mIn.readUnsignedShort() << 8) | mIn.readUnsignedByte();
+            int type = mIn.readUnsignedByte();
+            headerFlags = mIn.readUnsignedByte();
+            mIn.readInt();
+            if (type != TYPE_CONTINUATION) {
+                throw new IOException("Expected CONTINUATION, got frame type " + type);
+            }
+
+            byte[] longerBlock = new byte[block.length + continuationLength];
+            System.arraycopy(block, 0, longerBlock, 0, block.length);
+            mIn.readFully(longerBlock, block.length, continuationLength);
+            block = longerBlock;
+        }
+
+        Stream stream = mStreams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+
+        int status = Hpack.decodeStatus(block, 0, block.length);
+        if (status != -1 && (status < 200 || status >= 300)) {
+            finish(stream, new IOException("Unexpected response status " + status));
+            sendReset(streamId, ERROR_CANCEL);
+        } else if ((flags & FLAG_END_STREAM) != 0) {
+            finish(stream, null);
+        }
+    }
+
+    private void readSettings(int length, int flags) throws IOException {
+
+        if ((flags & FLAG_ACK) != 0) {
+            skipFully(length);
+            return;
+        }
+
+        for (int i = 0; i < length / 6; i++) {
+            int id = mIn.readUnsignedShort();
+            int value = mIn.readInt();
+
+            synchronized (this) {
+                switch (id) {
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        // Applies to the open streams too, by the difference.
+                        int delta = value - mInitialSendWindow;
+                        mInitialSendWindow = value;
+                        for (Stream stream : mStreams.values()) {
+                            stream.mSendWindow += delta;
+                        }
+                        notifyAll();
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        mMaxSendFrameSize = value;
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        mMaxConcurrentStreams = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        skipFully(length % 6);
+
+        synchronized (mWriteLock) {
+            writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+            mOut.flush();
+        }
+    }
+
+    private void readPing(int length, int flags) throws IOException {
+        byte[] payload = new byte[length];
+        mIn.readFully(payload);
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            writeFrameHeader(length, TYPE_PING, FLAG_ACK, 0);
+            mOut.write(payload);
+            mOut.flush();
+        }
+    }
+
+    private void readGoAway(int length) throws IOException {
+        int lastStreamId = mIn.readInt() & 0x7fffffff;
+        int errorCode = mIn.readInt();
+        skipFully(length - 8);
+
+        LOG.log(Level.FINE, "GOAWAY from " + mAuthority + ", last stream " + lastStreamId + ", error " + errorCode);
+
+        synchronized (this) {
+            mGoingAway = true;
+        }
+
+        // Streams the server never saw are lost, the others may still finish.
+        for (Stream stream : mStreams.values()) {
+            if (stream.mId > lastStreamId) {
+                finish(stream, new IOException("Connection going away, error " + errorCode));
+            }
+        }
+    }
+
+    private synchronized void onWindowUpdate(int streamId, int increment) {
+        if (streamId == 0) {
+            mSendWindow += increment;
+        } else {
+            Stream stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.mSendWindow += increment;
+            }
+        }
+        notifyAll();
+    }
+
+    // Blocks till both windows let some bytes go, and takes them out.
+    private synchronized int reserveSendWindow(Stream stream, int length) throws IOException {
+        while (true) {
+            if (stream.mDone) {
+                throw stream.mFailure != null ? stream.mFailure : new IOException("Stream closed");
+            }
+            checkNotFailed();
+
+            long available = Math.min(mSendWindow, stream.mSendWindow);
+            if (available > 0) {
+                int reserved = (int) Math.min(Math.min(available, length), mMaxSendFrameSize);
+                mSendWindow -= reserved;
+                stream.mSendWindow -= reserved;
+                return reserved;
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the send window");
+            }
+        }
+    }
+
+    private synchronized void finish(Stream stream, IOException failure) {
+        if (stream == null || stream.mDone) {
+            return;
+        }
+        stream.mDone = true;
+        stream.mFailure = failure;
+        mStreams.remove(stream.mId);
+        notifyAll();
+    }
+
+    private void fail(IOException failure) {
+        synchronized (this) {
+            if (mFailure != null) {
+                return;
+            }
+            mFailure = failure;
+        }
+
+        for (Stream stream : mStreams.values()) {
+            finish(stream, failure);
+        }
+
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, e.getMessage(), e);
+        }
+    }
+
+    // Under the lock reserving the stream id, so that streams racing past
+    // the transport's isUsable cannot open more than the server allows.
+    private void checkUsable() throws IOException {
+        checkNotFailed();
+        if (mGoingAway) {
+            throw new IOException("Connection going away");
+        }
+        if (mStreams.size() >= mMaxConcurrentStreams) {
+            throw new IOException("Server allows only " + mMaxConcurrentStreams + " concurrent streams");
+        }
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (mWriteLock) {
+            writeWindowUpdate(streamId, increment);
+            mOut.flush();
+        }
+    }
+
+    private void sendReset(int streamId, int errorCode) throws IOException {
+        synchronized (mWriteLock) {
+            writeFrameHeader(4, TYPE_RST_STREAM, 0, streamId);
+            writeInt(errorCode);
+            mOut.flush();
+        }
+    }
+
+    private void sendGoAway(int errorCode) throws IOException {
+        synchronized (mWriteLock) {
+            writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+            writeInt(0);
+            writeInt(errorCode);
+            mOut.flush();
+        }
+    }
+
+    // Callers hold mWriteLock for the following.
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        mFrameHeader[0] = (byte) (length >>> 16);
+        mFrameHeader[1] = (byte) (length >>> 8);
+        mFrameHeader[2] = (byte) length;
+        mFrameHeader[3] = (byte) type;
+        mFrameHeader[4] = (byte) flags;
+        mFrameHeader[5] = (byte) (streamId >>> 24);
+        mFrameHeader[6] = (byte) (streamId >>> 16);
+        mFrameHeader[7] = (byte) (streamId >>> 8);
+        mFrameHeader[8] = (byte) streamId;
+        mOut.write(mFrameHeader);
+    }
+
+    private void writeSetting(int id, int value) throws IOException {
+        mOut.write(id >>> 8);
+        mOut.write(id);
+        writeInt(value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+        writeInt(increment);
+    }
+
+    private void writeInt(int value) throws IOException {
+        mOut.write(value >>> 24);
+        mOut.write(value >>> 16);
+        mOut.write(value >>> 8);
+        mOut.write(value);
+    }
+
+    private void skipFully(int count) throws IOException {
+        while (count > 0) {
+            int read = mIn.read(mReadBuffer, 0, Math.min(count, mReadBuffer.length));
+            if (read == -1) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * One request and its response. Closing it resets the stream, which
+     * is how the engine aborts it.
+     */
+    class Stream implements Closeable {
+
+        private final int mId;
+
+        private final Transport.StreamContext mContext;
+
+        private final boolean mCountsBody;
+
+        // Reader thread only.
+        private int mBytesToAcknowledge = 0;
+
+        // Guarded by the connection.
+        private long mSendWindow;
+        private boolean mDone = false;
+        private IOException mFailure;
+
+        Stream(int id, Transport.StreamContext context, boolean countsBody, int sendWindow) {
+            mId = id;
+            mContext = context;
+            mCountsBody = countsBody;
+            mSendWindow = sendWindow;
+        }
+
+        @Override
+        public void close() {
+            synchronized (Http2Connection.this) {
+                if (mDone) {
+                    return;
+                }
+                finish(this, null);
+            }
+
+            try {
+                sendReset(mId, ERROR_CANCEL);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Cannot reset stream " + mId + ": " + e.getMessage());
+            }
+        }
+    }
+}
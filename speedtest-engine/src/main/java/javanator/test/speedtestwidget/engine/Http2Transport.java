@@ -0,0 +1,160 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport multiplexing every stream of the engine over a single HTTP/2
+ * connection per server instead of a socket per stream, for comparing the
+ * two against servers behind HTTP/2 proxies.
+ *
+ * Speaks cleartext HTTP/2 with prior knowledge (h2c) only: negotiating h2
+ * over tls needs ALPN, which the platform apis of the oldest supported
+ * android do not offer. Receive windows are 16 MB, so that flow control
+ * never caps the rate.
+ */
+public class Http2Transport implements Transport {
+
+    private static final int CONNECT_TIMEOUT_IN_MS = 20000;
+
+    private static final int DEFAULT_HTTP_PORT = 80;
+
+    // Connection by host and port, replaced once it can take no more streams.
+    private final Map<String, Http2Connection> mConnections = new HashMap<>();
+
+    // Connections replaced while streams still ran on them, closed once idle.
+    private final List<Http2Connection> mReplacedConnections = new ArrayList<>();
+
+    // Cpu time of the readers of all the connections, opened with a probe.
+    private final AtomicLong mReaderCpuTimeNs = new AtomicLong();
+
+    private volatile ResourceProbe mResourceProbe;
+
+    @Override
+    public void download(URL url, long rangeStart, long rangeEnd, StreamContext context) throws IOException {
+
+        byte[] headerBlock = newRequest(url, Hpack.INDEX_METHOD_GET)
+                .literal(Hpack.INDEX_RANGE, "bytes=" + rangeStart + "-" + rangeEnd)
+                .literal(Hpack.INDEX_ACCEPT_ENCODING, "identity")
+                .toByteArray();
+
+        Http2Connection connection = getConnection(url);
+        Http2Connection.Stream stream = connection.newStream(headerBlock, true, context, true);
+        context.setAbortHandle(stream);
+
+        // The connection's reader counts the body for the stream.
+        connection.awaitEnd(stream);
+    }
+
+    @Override
+    public void upload(URL url, UploadPayload payload, StreamContext context) throws IOException {
+
+        byte[] headerBlock = newRequest(url, Hpack.INDEX_METHOD_POST)
+                .literal(Hpack.INDEX_CONTENT_TYPE, UploadPayload.CONTENT_TYPE)
+                .toByteArray();
+
+        Http2Connection connection = getConnection(url);
+        Http2Connection.Stream stream = connection.newStream(headerBlock, false, context, false);
+        context.setAbortHandle(stream);
+
+        byte[] header = payload.getHeader();
+        connection.writeData(stream, header, 0, header.length);
+
+        byte[] bytes = payload.getPayload();
+        int offset = 0;
+        while (context.isRunning()) {
+            connection.writeData(stream, bytes, offset, UploadPayload.CHUNK_SIZE);
+            context.countBytes(UploadPayload.CHUNK_SIZE);
+
+            offset += UploadPayload.CHUNK_SIZE;
+            if (offset == bytes.length) {
+                offset = 0;
+            }
+        }
+
+        // Stopped, which resets the stream, the connection stays up.
+        stream.close();
+    }
+
+    /**
+     * Opens the connection to the host of url the streams will share.
+     */
+    @Override
+    public void preconnect(URL url) throws IOException {
+        getConnection(url);
+    }
+
+    /**
+     * Takes effect for connections opened from now on.
+     */
+    @Override
+    public void setResourceProbe(ResourceProbe resourceProbe) {
+        mResourceProbe = resourceProbe;
+    }
+
+    /**
+     * Cpu time of the connections' reader threads.
+     */
+    @Override
+    public long getThreadCpuTimeNs() {
+        return mReaderCpuTimeNs.get();
+    }
+
+    @Override
+    public synchronized void closeIdleConnections() {
+        closeIdle(mConnections.values().iterator());
+        closeIdle(mReplacedConnections.iterator());
+    }
+
+    private synchronized Http2Connection getConnection(URL url) throws IOException {
+
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("HTTP/2 transport only speaks h2c, not " + url.getProtocol());
+        }
+
+        int port = url.getPort() == -1 ? DEFAULT_HTTP_PORT : url.getPort();
+        String key = url.getHost() + ":" + port;
+
+        Http2Connection connection = mConnections.get(key);
+        if (connection == null || !connection.isUsable()) {
+            closeIdle(mReplacedConnections.iterator());
+            if (connection != null) {
+                if (connection.isIdle()) {
+                    connection.close();
+                } else {
+                    mReplacedConnections.add(connection);
+                }
+            }
+            connection = Http2Connection.open(url.getHost(), port, CONNECT_TIMEOUT_IN_MS,
+                    mResourceProbe, mReaderCpuTimeNs);
+            mConnections.put(key, connection);
+        }
+        return connection;
+    }
+
+    private static void closeIdle(Iterator<Http2Connection> connections) {
+        while (connections.hasNext()) {
+            Http2Connection connection = connections.next();
+            if (connection.isIdle()) {
+                connection.close();
+                connections.remove();
+            }
+        }
+    }
+
+    private static Hpack.Encoder newRequest(URL url, int methodIndex) {
+        String path = url.getFile();
+        String authority = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        return new Hpack.Encoder()
+                .indexed(methodIndex)
+                .indexed(Hpack.INDEX_SCHEME_HTTP)
+                .literal(Hpack.INDEX_AUTHORITY, authority)
+                .literal(Hpack.INDEX_PATH, path.isEmpty() ? "/" : path);
+    }
+}
@@ -0,0 +1,157 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport going through the platform HttpURLConnection. This is the
+ * default one.
+ */
+public class HttpUrlConnectionTransport implements Transport {
+
+    private static final int CONNECT_TIMEOUT_IN_MS = 20000;
+
+    /*
+     * Size of the buffer every download stream reads into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Read buffer of every stream thread, reused across its requests.
+    private final ThreadLocal<byte[]> mReadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[READ_BUFFER_SIZE];
+        }
+    };
+
+    @Override
+    public void download(URL url, long rangeStart, long rangeEnd, StreamContext context) throws IOException {
+
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setRequestMethod("GET");
+        c.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+        c.setRequestProperty("Range", "bytes=" + rangeStart + "-" + rangeEnd);
+        c.setRequestProperty("Accept-Encoding", "identity");
+        context.setAbortHandle(asCloseable(c));
+        c.connect();
+
+        InputStream is = c.getInputStream();
+        byte[] buffer = mReadBuffer.get();
+
+        int len1;
+        try {
+            while (context.isRunning() && (len1 = is.read(buffer)) != -1) {
+                context.countBytes(len1);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    public void upload(URL url, UploadPayload payload, StreamContext context) throws IOException {
+
+        HttpURLConnection conn = openUploadConnection(url, UploadPayload.CONTENT_TYPE, context);
+
+        byte[] bytes = payload.getPayload();
+
+        OutputStream os = conn.getOutputStream();
+        os.write(payload.getHeader());
+
+        int offset = 0;
+        while (context.isRunning()) {
+            os.write(bytes, offset, UploadPayload.CHUNK_SIZE);
+            context.countBytes(UploadPayload.CHUNK_SIZE);
+
+            offset += UploadPayload.CHUNK_SIZE;
+            if (offset == bytes.length) {
+                offset = 0;
+            }
+        }
+
+        // Stopped mid body. The abort handle has disconnected already and
+        // closing the stream of a disconnected connection blows up.
+        if (!context.isRunning()) {
+            return;
+        }
+
+        // send multipart form data necesssary after file data...
+        os.write(payload.getFooter());
+        os.close();
+
+        conn.getResponseCode();
+    }
+
+    /**
+     * Sends a HEAD request and reads the response to its end, which hands
+     * the connection over to the platform's keep-alive pool.
+     */
+    @Override
+    public void preconnect(URL url) throws IOException {
+
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setRequestMethod("HEAD");
+        c.setUseCaches(false);
+        c.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+        c.setReadTimeout(CONNECT_TIMEOUT_IN_MS);
+
+        InputStream is = c.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                ? c.getInputStream()
+                : c.getErrorStream();
+        if (is != null) {
+            is.close();
+        }
+    }
+
+    // Every read and write runs on the thread of its stream.
+    @Override
+    public void setResourceProbe(ResourceProbe resourceProbe) {
+    }
+
+    @Override
+    public long getThreadCpuTimeNs() {
+        return 0;
+    }
+
+    // The platform pool evicts idle connections on its own.
+    @Override
+    public void closeIdleConnections() {
+    }
+
+    /**
+     * Chunked multipart POST to url, aborted by the stream's abort handle.
+     * For subclasses writing the body in their own way.
+     */
+    protected HttpURLConnection openUploadConnection(URL url,
+                                                     String contentType,
+                                                     StreamContext context) throws IOException {
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoInput(true); // Allow Inputs
+        conn.setDoOutput(true); // Allow Outputs
+        conn.setUseCaches(false); // Don't use a Cached Copy
+        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Connection", "Keep-Alive");
+        conn.setRequestProperty("ENCTYPE", "multipart/form-data");
+        conn.setRequestProperty("Content-Type", contentType);
+        conn.setRequestProperty("uploaded_file", UploadPayload.FILE_NAME);
+        conn.setRequestProperty("fileName", UploadPayload.FILE_NAME);
+        conn.setChunkedStreamingMode(UploadPayload.CHUNK_SIZE);
+        context.setAbortHandle(asCloseable(conn));
+        return conn;
+    }
+
+    private static Closeable asCloseable(final HttpURLConnection connection) {
+        return new Closeable() {
+            @Override
+            public void close() {
+                connection.disconnect();
+            }
+        };
+    }
+}
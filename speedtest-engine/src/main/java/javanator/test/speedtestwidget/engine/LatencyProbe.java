@@ -0,0 +1,126 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures round trip time to the test host with small timed HTTP HEAD
+ * requests. The connection gets kept alive between probes, so after the
+ * first probe every probe costs one request and one response only.
+ */
+public class LatencyProbe {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(LatencyProbe.class.getSimpleName());
+
+    /*
+     * Probe which gets no answer in this long counts as lost.
+     */
+    public static final int DEFAULT_PROBE_TIMEOUT_IN_MS = 2000;
+
+    private final URL mUrl;
+
+    private final int mTimeoutInMs;
+
+    public LatencyProbe(String url) {
+        this(url, DEFAULT_PROBE_TIMEOUT_IN_MS);
+    }
+
+    public LatencyProbe(String url, int timeoutInMs) {
+        mTimeoutInMs = timeoutInMs;
+        try {
+            mUrl = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid url " + url, e);
+        }
+    }
+
+    /**
+     * Sends one probe and waits for its answer.
+     *
+     * @return Round trip time in ns, -1 if the probe got lost.
+     */
+    public long probe() {
+
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection) mUrl.openConnection();
+            c.setRequestMethod("HEAD");
+            c.setUseCaches(false);
+            c.setConnectTimeout(mTimeoutInMs);
+            c.setReadTimeout(mTimeoutInMs);
+
+            long startTimeNs = System.nanoTime();
+            c.getResponseCode();
+            long rttNs = System.nanoTime() - startTimeNs;
+
+            // Leave the connection ready to be reused by the next probe.
+            c.getInputStream().close();
+            return rttNs;
+
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Probe lost: " + e.getMessage());
+            if (c != null) {
+                c.disconnect();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Sends probeCount probes one after another, waiting intervalInMs
+     * between them. A first probe, paying for dns and connection setup,
+     * goes before and is left out of the result.
+     *
+     * @param listener Told about every answered probe. May be null.
+     * @return null if interrupted.
+     */
+    public LatencyResult measure(int probeCount, long intervalInMs, Listener listener) {
+
+        long[] rttsNs = new long[probeCount];
+        int sampleCount = 0;
+        int lostCount = 0;
+
+        // Warm up the connection.
+        probe();
+
+        for (int i = 0; i < probeCount; i++) {
+
+            if (listener != null && !listener.isRunning()) {
+                return null;
+            }
+
+            long rttNs = probe();
+            if (rttNs < 0) {
+                lostCount++;
+            } else {
+                rttsNs[sampleCount++] = rttNs;
+                if (listener != null) {
+                    listener.onProbe(rttNs);
+                }
+            }
+
+            try {
+                Thread.sleep(intervalInMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return LatencyResult.fromSamples(rttsNs, sampleCount, lostCount);
+    }
+
+    public interface Listener {
+
+        boolean isRunning();
+
+        void onProbe(long rttNs);
+    }
+}
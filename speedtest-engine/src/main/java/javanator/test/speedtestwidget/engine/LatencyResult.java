@@ -0,0 +1,117 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.Arrays;
+
+/**
+ * Round trip time statistics of a run of latency probes.
+ */
+public class LatencyResult {
+
+    private final float mMinInMs;
+
+    private final float mMedianInMs;
+
+    private final float mP95InMs;
+
+    private final float mJitterInMs;
+
+    private final int mSampleCount;
+
+    private final int mLostCount;
+
+    private LatencyResult(float minInMs,
+                          float medianInMs,
+                          float p95InMs,
+                          float jitterInMs,
+                          int sampleCount,
+                          int lostCount) {
+
+        mMinInMs = minInMs;
+        mMedianInMs = medianInMs;
+        mP95InMs = p95InMs;
+        mJitterInMs = jitterInMs;
+        mSampleCount = sampleCount;
+        mLostCount = lostCount;
+    }
+
+    /**
+     * Builds the statistics out of the round trip times of the probes which
+     * got an answer, in the order they were sent.
+     *
+     * @param rttsNs Round trip times, only the first sampleCount are used.
+     * @param sampleCount Probes which got an answer.
+     * @param lostCount Probes which did not.
+     */
+    public static LatencyResult fromSamples(long[] rttsNs, int sampleCount, int lostCount) {
+
+        if (sampleCount == 0) {
+            return new LatencyResult(Float.NaN, Float.NaN, Float.NaN, Float.NaN, 0, lostCount);
+        }
+
+        // Jitter is the mean difference between consecutive probes, so it
+        // needs them in the order they were sent.
+        long jitterSumNs = 0;
+        for (int i = 1; i < sampleCount; i++) {
+            jitterSumNs += Math.abs(rttsNs[i] - rttsNs[i - 1]);
+        }
+        float jitterInMs = sampleCount > 1 ? toMs(jitterSumNs) / (sampleCount - 1) : 0;
+
+        long[] sorted = Arrays.copyOf(rttsNs, sampleCount);
+        Arrays.sort(sorted);
+
+        return new LatencyResult(toMs(sorted[0]),
+                toMs(percentile(sorted, 0.5f)),
+                toMs(percentile(sorted, 0.95f)),
+                jitterInMs,
+                sampleCount,
+                lostCount);
+    }
+
+    // Nearest rank percentile of a sorted array.
+    private static long percentile(long[] sorted, float fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static float toMs(long ns) {
+        return ns / 1000000f;
+    }
+
+    public float getMinInMs() {
+        return mMinInMs;
+    }
+
+    public float getMedianInMs() {
+        return mMedianInMs;
+    }
+
+    public float getP95InMs() {
+        return mP95InMs;
+    }
+
+    public float getJitterInMs() {
+        return mJitterInMs;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * Fraction of probes which got no answer, between 0 and 1.
+     */
+    public float getLoss() {
+        int sent = mSampleCount + mLostCount;
+        return sent == 0 ? 0 : (float) mLostCount / sent;
+    }
+
+    @Override
+    public String toString() {
+        return "min " + mMinInMs + "ms, median " + mMedianInMs + "ms, p95 " + mP95InMs +
+                "ms, jitter " + mJitterInMs + "ms, loss " + mLostCount + "/" + (mSampleCount + mLostCount);
+    }
+}
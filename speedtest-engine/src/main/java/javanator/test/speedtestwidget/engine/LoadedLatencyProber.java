@@ -0,0 +1,112 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Probes latency in the background while a download or upload phase keeps
+ * the link saturated, to see how much the link queues under load.
+ *
+ * Probes are HEAD requests of a few hundred bytes each, a few times a
+ * second, so the prober takes next to nothing away from the streams it
+ * measures. Samples go into a preallocated array.
+ *
+ * Like the idle probes, samples which paid for dns and connection setup
+ * are left out: the first probe warms the connection up unrecorded, and
+ * after a lost probe, which drops its connection, the next answer only
+ * reconnects.
+ */
+public class LoadedLatencyProber extends Thread {
+
+    /*
+     * Time between the end of one probe and the start of the next.
+     */
+    private static final long TIME_BETWEEN_PROBES_IN_MS = 250;
+
+    /*
+     * Probes kept at most, a minute worth of them.
+     */
+    private static final int MAX_SAMPLES = 240;
+
+    /*
+     * Queues under load can hold a probe for seconds, so give it longer
+     * than an idle probe before calling it lost.
+     */
+    private static final int PROBE_TIMEOUT_IN_MS = 5000;
+
+    private final LatencyProbe mProbe;
+
+    private final long[] mRttsNs = new long[MAX_SAMPLES];
+
+    private int mSampleCount = 0;
+
+    private int mLostCount = 0;
+
+    private volatile boolean mRunning = false;
+
+    public LoadedLatencyProber(String url) {
+        mProbe = new LatencyProbe(url, PROBE_TIMEOUT_IN_MS);
+        setName(LoadedLatencyProber.class.getSimpleName());
+    }
+
+    @Override
+    public synchronized void start() {
+        mRunning = true;
+        super.start();
+    }
+
+    /**
+     * Stops probing. A probe in flight gets dropped.
+     */
+    public void stopProbing() {
+        mRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        super.run();
+
+        boolean warmUp = true;
+        boolean newConnection = true;
+        while (mRunning) {
+
+            long rttNs = mProbe.probe();
+            if (!mRunning) {
+                break;
+            }
+
+            if (rttNs < 0) {
+                newConnection = true;
+                if (!warmUp && !record(rttNs)) {
+                    break;
+                }
+            } else if (newConnection) {
+                newConnection = false;
+            } else if (!record(rttNs)) {
+                break;
+            }
+            warmUp = false;
+
+            try {
+                Thread.sleep(TIME_BETWEEN_PROBES_IN_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    // Returns false once there is no room left for samples.
+    private synchronized boolean record(long rttNs) {
+        if (rttNs < 0) {
+            mLostCount++;
+        } else if (mSampleCount < MAX_SAMPLES) {
+            mRttsNs[mSampleCount++] = rttNs;
+        }
+        return mSampleCount < MAX_SAMPLES;
+    }
+
+    /**
+     * Statistics of the probes answered so far.
+     */
+    public synchronized LatencyResult getResult() {
+        return LatencyResult.fromSamples(mRttsNs, mSampleCount, mLostCount);
+    }
+}
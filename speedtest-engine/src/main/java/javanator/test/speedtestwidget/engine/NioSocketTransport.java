@@ -0,0 +1,409 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport speaking plain HTTP/1.1 straight over a SocketChannel.
+ *
+ * Downloads read into a direct buffer that every stream thread reuses,
+ * and body bytes get counted and dropped without ever being copied to
+ * the java heap; of a chunked body only the payload counts, see
+ * {@link ChunkDecoder}. Uploads write the payload from a direct buffer with
+ * gathering writes. Only http urls are supported.
+ *
+ * Pre-connected channels, and the ones of downloads which read their
+ * whole range, stay open in a pool per host for the next request. A
+ * download stopped less than {@link #MAX_DRAIN_BYTES} from its end reads
+ * the rest to keep its channel. Upload
+ * channels get a send buffer of a fixed size, see {@link SentBytesEstimator}.
+ */
+public class NioSocketTransport implements Transport {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(NioSocketTransport.class.getSimpleName());
+
+    private static final int CONNECT_TIMEOUT_IN_MS = 20000;
+
+    /*
+     * Size of the direct buffer every download stream reads into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * Send buffer of upload channels. Autotuning grows it to megabytes,
+     * which the writes fill at memory speed and the kernel then frees in
+     * bursts; this much still covers 40 Mbps a stream at 50 ms.
+     */
+    private static final int UPLOAD_SEND_BUFFER_SIZE = 256 * 1024;
+
+    /*
+     * Most of a response a stopped download reads and drops to keep its
+     * channel, rather than closing it.
+     */
+    private static final long MAX_DRAIN_BYTES = 256 * 1024;
+
+    /*
+     * Length readResponseHead reports for a chunked body.
+     */
+    private static final long CHUNKED = -2;
+
+    private static final int DEFAULT_HTTP_PORT = 80;
+
+    private static final String LINE_END = "\r\n";
+
+    private static final byte[] CHUNK_END = LINE_END.getBytes();
+
+    private static final byte[] LAST_CHUNK = ("0" + LINE_END + LINE_END).getBytes();
+
+    // Chunk size line written ahead of every payload chunk.
+    private static final byte[] CHUNK_HEADER =
+            (Integer.toHexString(UploadPayload.CHUNK_SIZE) + LINE_END).getBytes();
+
+    // Read buffer of every stream thread, reused across its requests.
+    private final ThreadLocal<ByteBuffer> mReadBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+    };
+
+    // Idle keep-alive channels by host and port.
+    private final ConcurrentHashMap<String, Queue<PooledChannel>> mIdleChannels = new ConcurrentHashMap<>();
+
+    @Override
+    public void download(URL url, long rangeStart, long rangeEnd, StreamContext context) throws IOException {
+
+        PooledChannel pooledChannel = connect(url, context);
+        SocketChannel channel = pooledChannel.mChannel;
+        boolean reusable = false;
+        try {
+            String request = "GET " + getRequestPath(url) + " HTTP/1.1" + LINE_END +
+                    "Host: " + url.getHost() + LINE_END +
+                    "Range: bytes=" + rangeStart + "-" + rangeEnd + LINE_END +
+                    "Accept-Encoding: identity" + LINE_END +
+                    LINE_END;
+            writeFully(channel, ByteBuffer.wrap(request.getBytes()));
+
+            ByteBuffer buffer = mReadBuffer.get();
+            buffer.clear();
+
+            long contentLength = readResponseHead(channel, buffer);
+            ChunkDecoder chunks = contentLength == CHUNKED ? new ChunkDecoder() : null;
+
+            // Whatever followed the head in the buffer is body already.
+            long bodyBytesRead = buffer.remaining();
+            context.countBytes(chunks != null ? (int) chunks.decode(buffer) : buffer.remaining());
+
+            int len1;
+            while (context.isRunning() &&
+                   (chunks != null ? !chunks.isDone() : contentLength < 0 || bodyBytesRead < contentLength)) {
+
+                buffer.clear();
+                if ((len1 = channel.read(buffer)) == -1) {
+                    break;
+                }
+                bodyBytesRead += len1;
+                if (chunks != null) {
+                    buffer.flip();
+                    context.countBytes((int) chunks.decode(buffer));
+                } else {
+                    context.countBytes(len1);
+                }
+            }
+
+            // Stopped close to the end, the rest is cheaper than a new channel.
+            if (!context.isRunning() && contentLength >= 0 && contentLength - bodyBytesRead <= MAX_DRAIN_BYTES) {
+                while (bodyBytesRead < contentLength) {
+                    buffer.clear();
+                    if ((len1 = channel.read(buffer)) == -1) {
+                        break;
+                    }
+                    bodyBytesRead += len1;
+                }
+            }
+
+            // Nothing of this response is left on the wire.
+            reusable = chunks != null ? chunks.isDone() && !buffer.hasRemaining() :
+                    contentLength >= 0 && bodyBytesRead == contentLength;
+        } finally {
+            if (reusable) {
+                releaseChannel(url, pooledChannel);
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    public void upload(URL url, UploadPayload payload, StreamContext context) throws IOException {
+
+        SocketChannel channel = connect(url, context).mChannel;
+        channel.socket().setSendBufferSize(UPLOAD_SEND_BUFFER_SIZE);
+        try {
+            String request = "POST " + getRequestPath(url) + " HTTP/1.1" + LINE_END +
+                    "Host: " + url.getHost() + LINE_END +
+                    "ENCTYPE: multipart/form-data" + LINE_END +
+                    "Content-Type: " + UploadPayload.CONTENT_TYPE + LINE_END +
+                    "uploaded_file: " + UploadPayload.FILE_NAME + LINE_END +
+                    "fileName: " + UploadPayload.FILE_NAME + LINE_END +
+                    "Transfer-Encoding: chunked" + LINE_END +
+                    "Connection: close" + LINE_END +
+                    LINE_END;
+            writeFully(channel, ByteBuffer.wrap(request.getBytes()));
+            writeChunk(channel, ByteBuffer.wrap(payload.getHeader()));
+
+            // Buffers making up one payload chunk on the wire. Only their
+            // positions get reset from here on.
+            ByteBuffer chunkHeader = ByteBuffer.wrap(CHUNK_HEADER);
+            ByteBuffer chunkBody = payload.newDirectPayloadView();
+            ByteBuffer chunkEnd = ByteBuffer.wrap(CHUNK_END);
+            ByteBuffer[] chunk = {chunkHeader, chunkBody, chunkEnd};
+
+            int offset = 0;
+            int payloadLength = chunkBody.capacity();
+            while (context.isRunning()) {
+
+                chunkHeader.rewind();
+                chunkEnd.rewind();
+                chunkBody.limit(offset + UploadPayload.CHUNK_SIZE);
+                chunkBody.position(offset);
+
+                while (chunkEnd.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                context.countBytes(UploadPayload.CHUNK_SIZE);
+
+                offset += UploadPayload.CHUNK_SIZE;
+                if (offset == payloadLength) {
+                    offset = 0;
+                }
+            }
+
+            writeChunk(channel, ByteBuffer.wrap(payload.getFooter()));
+            writeFully(channel, ByteBuffer.wrap(LAST_CHUNK));
+
+            // Wait for the status line so the server sees a clean end of request.
+            ByteBuffer buffer = mReadBuffer.get();
+            buffer.clear();
+            readResponseHead(channel, buffer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void preconnect(URL url) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            openChannel(url, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        releaseChannel(url, new PooledChannel(channel));
+    }
+
+    // Every read and write runs on the thread of its stream.
+    @Override
+    public void setResourceProbe(ResourceProbe resourceProbe) {
+    }
+
+    @Override
+    public long getThreadCpuTimeNs() {
+        return 0;
+    }
+
+    @Override
+    public void closeIdleConnections() {
+        for (Queue<PooledChannel> channels : mIdleChannels.values()) {
+            PooledChannel pooledChannel;
+            while ((pooledChannel = channels.poll()) != null) {
+                closeQuietly(pooledChannel.mChannel);
+            }
+        }
+    }
+
+    // An idle channel to the host of url if one is still healthy, a new one otherwise.
+    private PooledChannel connect(URL url, StreamContext context) throws IOException {
+
+        Queue<PooledChannel> idleChannels = mIdleChannels.get(getPoolKey(url));
+        PooledChannel pooledChannel;
+        while (idleChannels != null && (pooledChannel = idleChannels.poll()) != null) {
+            if (pooledChannel.isHealthy()) {
+                context.setAbortHandle(pooledChannel.mChannel);
+                return pooledChannel;
+            }
+            closeQuietly(pooledChannel.mChannel);
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        context.setAbortHandle(channel);
+        openChannel(url, channel);
+        return new PooledChannel(channel);
+    }
+
+    private static void openChannel(URL url, SocketChannel channel) throws IOException {
+
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("NIO transport only speaks plain http, not " + url.getProtocol());
+        }
+
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().connect(new InetSocketAddress(url.getHost(), getPort(url)), CONNECT_TIMEOUT_IN_MS);
+    }
+
+    private void releaseChannel(URL url, PooledChannel pooledChannel) {
+        String key = getPoolKey(url);
+        Queue<PooledChannel> idleChannels = mIdleChannels.get(key);
+        if (idleChannels == null) {
+            mIdleChannels.putIfAbsent(key, new ConcurrentLinkedQueue<PooledChannel>());
+            idleChannels = mIdleChannels.get(key);
+        }
+        idleChannels.offer(pooledChannel);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, e.getMessage(), e);
+        }
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() == -1 ? DEFAULT_HTTP_PORT : url.getPort();
+    }
+
+    private static String getPoolKey(URL url) {
+        return url.getHost() + ":" + getPort(url);
+    }
+
+    private static String getRequestPath(URL url) {
+        String file = url.getFile();
+        return file.isEmpty() ? "/" : file;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeChunk(SocketChannel channel, ByteBuffer body) throws IOException {
+        writeFully(channel, ByteBuffer.wrap((Integer.toHexString(body.remaining()) + LINE_END).getBytes()));
+        writeFully(channel, body);
+        writeFully(channel, ByteBuffer.wrap(CHUNK_END));
+    }
+
+    /**
+     * Reads till the end of the response head, checks the status and leaves
+     * the buffer ready for reading whatever part of the body came along.
+     *
+     * @return Content-Length of the response, {@link #CHUNKED} if the body
+     * comes in chunks, -1 if it runs till the server closes the channel.
+     */
+    private static long readResponseHead(SocketChannel channel, ByteBuffer buffer) throws IOException {
+
+        int headEnd;
+        while ((headEnd = findHeadEnd(buffer)) == -1) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Response head larger than " + buffer.capacity() + " bytes");
+            }
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Connection closed before response head");
+            }
+        }
+
+        // Only the head gets copied out of the buffer.
+        byte[] headBytes = new byte[headEnd];
+        buffer.flip();
+        buffer.get(headBytes);
+        buffer.position(headEnd + 4);
+
+        String[] lines = new String(headBytes, "ISO-8859-1").split(LINE_END);
+        String[] statusLine = lines[0].split(" ");
+        if (statusLine.length < 2 || !statusLine[1].startsWith("2")) {
+            throw new IOException("Unexpected response " + lines[0]);
+        }
+
+        // Chunked wins over a Content-Length, RFC 7230 3.3.3.
+        long contentLength = -1;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Transfer-Encoding") && value.toLowerCase().endsWith("chunked")) {
+                return CHUNKED;
+            }
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length " + value);
+                }
+                if (contentLength < 0) {
+                    throw new IOException("Invalid Content-Length " + value);
+                }
+            }
+        }
+        return contentLength;
+    }
+
+    // Index of the blank line ending the head among the bytes read so far.
+    private static int findHeadEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); i++) {
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' &&
+                buffer.get(i - 1) == '\r' && buffer.get(i) == '\n') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    // A keep-alive channel with the buffer its health check peeks into,
+    // made once for the life of the connection.
+    private static class PooledChannel {
+
+        private final SocketChannel mChannel;
+
+        private final ByteBuffer mPeekBuffer = ByteBuffer.allocate(1);
+
+        PooledChannel(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * An idle channel is healthy if the server neither closed it nor sent
+         * anything on it. Peeks without blocking.
+         */
+        boolean isHealthy() {
+            if (!mChannel.isOpen() || !mChannel.isConnected()) {
+                return false;
+            }
+            try {
+                mPeekBuffer.clear();
+                mChannel.configureBlocking(false);
+                int read = mChannel.read(mPeekBuffer);
+                mChannel.configureBlocking(true);
+                return read == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
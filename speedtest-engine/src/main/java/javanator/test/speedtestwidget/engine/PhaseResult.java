@@ -0,0 +1,186 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of one download or upload phase.
+ */
+public class PhaseResult {
+
+    /**
+     * Why a phase stopped.
+     */
+    public enum StopReason {
+        // Rate stayed inside the confidence band long enough.
+        CONVERGED,
+        // Hit the hard cap on duration before converging.
+        MAX_DURATION,
+        // Stopped from outside, e.g. the widget went away.
+        CANCELLED,
+        // No stream could move any more bytes.
+        FAILED,
+        // Used up its share of the data budget.
+        BUDGET_EXHAUSTED
+    }
+
+    private final float mSpeedInMbps;
+
+    private final StopReason mStopReason;
+
+    private final long mBytesTransferred;
+
+    private final long mDurationNs;
+
+    private final int mStreamCount;
+
+    private final float mDeviation;
+
+    private final LatencyResult mLoadedLatency;
+
+    private final LatencyResult mIdleLatency;
+
+    private final List<ServerThroughput> mServerBreakdown;
+
+    private final ThroughputTimeline mTimeline;
+
+    private final ClientLoad mClientLoad;
+
+    public PhaseResult(float speedInMbps,
+                       StopReason stopReason,
+                       long bytesTransferred,
+                       long durationNs,
+                       int streamCount,
+                       float deviation,
+                       LatencyResult loadedLatency,
+                       LatencyResult idleLatency,
+                       List<ServerThroughput> serverBreakdown,
+                       ThroughputTimeline timeline,
+                       ClientLoad clientLoad) {
+
+        mSpeedInMbps = speedInMbps;
+        mStopReason = stopReason;
+        mBytesTransferred = bytesTransferred;
+        mDurationNs = durationNs;
+        mStreamCount = streamCount;
+        mDeviation = deviation;
+        mLoadedLatency = loadedLatency;
+        mIdleLatency = idleLatency;
+        mServerBreakdown = Collections.unmodifiableList(serverBreakdown);
+        mTimeline = timeline;
+        mClientLoad = clientLoad;
+    }
+
+    /**
+     * Average speed past the ramp-up.
+     */
+    public float getSpeedInMbps() {
+        return mSpeedInMbps;
+    }
+
+    public StopReason getStopReason() {
+        return mStopReason;
+    }
+
+    /**
+     * Bytes moved over the network by the phase, ramp-up included.
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred;
+    }
+
+    public long getDurationNs() {
+        return mDurationNs;
+    }
+
+    public int getStreamCount() {
+        return mStreamCount;
+    }
+
+    /**
+     * Largest relative deviation from the mean rate over the last stability
+     * window, i.e. the confidence band the rate was known to. Taken over the
+     * part of the window seen if the phase stopped before a whole one, NaN
+     * if it stopped before two rate samples.
+     */
+    public float getDeviation() {
+        return mDeviation;
+    }
+
+    /**
+     * Latency probed while the phase kept the link busy.
+     */
+    public LatencyResult getLoadedLatency() {
+        return mLoadedLatency;
+    }
+
+    /**
+     * Latency probed on the idle link before the test, null if there was none.
+     */
+    public LatencyResult getIdleLatency() {
+        return mIdleLatency;
+    }
+
+    /**
+     * Throughput of each server the phase ran against, in the order they
+     * were picked. A single entry unless the phase spread its streams over
+     * several servers.
+     */
+    public List<ServerThroughput> getServerBreakdown() {
+        return mServerBreakdown;
+    }
+
+    /**
+     * Bytes of each stream in every sampling interval of the phase.
+     */
+    public ThroughputTimeline getTimeline() {
+        return mTimeline;
+    }
+
+    /**
+     * What the client spent on the phase, null if the engine had no
+     * {@link ResourceProbe}.
+     */
+    public ClientLoad getClientLoad() {
+        return mClientLoad;
+    }
+
+    /**
+     * True if the client rather than the link likely capped the rate, see
+     * {@link ClientLoad#isCpuBound()}.
+     */
+    public boolean isCpuBound() {
+        return mClientLoad != null && mClientLoad.isCpuBound();
+    }
+
+    /**
+     * How much the median round trip time grew under load, NaN if either
+     * side has no samples.
+     */
+    public float getLatencyInflationInMs() {
+        if (mIdleLatency == null) {
+            return Float.NaN;
+        }
+        return mLoadedLatency.getMedianInMs() - mIdleLatency.getMedianInMs();
+    }
+
+    /**
+     * Loaded over idle median round trip time, NaN if either side has no
+     * samples.
+     */
+    public float getLatencyInflationRatio() {
+        if (mIdleLatency == null) {
+            return Float.NaN;
+        }
+        return mLoadedLatency.getMedianInMs() / mIdleLatency.getMedianInMs();
+    }
+
+    @Override
+    public String toString() {
+        return mSpeedInMbps + "Mbps, " + mStopReason + " after " + mDurationNs / 1000000 + "ms, " +
+                mBytesTransferred + " bytes over " + mStreamCount + " streams, deviation " + mDeviation +
+                ", loaded latency " + mLoadedLatency + ", inflation " + getLatencyInflationInMs() + "ms" +
+                (mServerBreakdown.size() > 1 ? ", servers " + mServerBreakdown : "") +
+                (mClientLoad != null ? ", client " + mClientLoad : "");
+    }
+}
@@ -0,0 +1,48 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Reads what the client itself spends while it measures, so that a result
+ * can tell a slow link from a client too busy to keep up with it. Plain
+ * java has no portable way to get at these, so the platform hands one in,
+ * see {@link SpeedTestEngine#setResourceProbe(ResourceProbe)}.
+ *
+ * Every reading is a running total, -1 where the platform cannot tell.
+ */
+public interface ResourceProbe {
+
+    /**
+     * Called as a test starts, for probes which only count while asked to.
+     */
+    void start();
+
+    /**
+     * Called once the test is over.
+     */
+    void stop();
+
+    /**
+     * Cpu time of the calling thread.
+     */
+    long getThreadCpuTimeNs();
+
+    /**
+     * Cpu time of the whole process, threads of the transports and the
+     * runtime included.
+     */
+    long getProcessCpuTimeNs();
+
+    /**
+     * Bytes the process has allocated.
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Garbage collections the process has run.
+     */
+    long getGcCount();
+
+    /**
+     * Time the process has been held up by garbage collection.
+     */
+    long getGcPauseTimeMs();
+}
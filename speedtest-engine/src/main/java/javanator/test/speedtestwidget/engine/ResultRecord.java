@@ -0,0 +1,325 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * What the history keeps of one test, laid out as a fixed size binary
+ * record so that the store can seek to any record by its index.
+ *
+ * <pre>
+ * offset size
+ *  0      8  start time, ms since the epoch
+ *  8     16  server name, UTF-8, zero padded
+ * 24      4  download speed, Mbps
+ * 28      4  upload speed, Mbps
+ * 32      4  idle latency median, ms
+ * 36      4  idle latency jitter, ms
+ * 40      4  idle latency loss, 0 to 1
+ * 44      4  latency median under download, ms
+ * 48      4  latency median under upload, ms
+ * 52      4  download volume, kB
+ * 56      4  upload volume, kB
+ * 60      1  network type
+ * 61      1  download stop reason, ordinal + 1, 0 if none
+ * 62      1  upload stop reason, ordinal + 1, 0 if none
+ * 63      1  flags
+ * </pre>
+ *
+ * Values a test did not get to are NaN.
+ */
+public class ResultRecord {
+
+    public static final int SIZE_IN_BYTES = 64;
+
+    public static final int NETWORK_UNKNOWN = 0;
+    public static final int NETWORK_WIFI = 1;
+    public static final int NETWORK_CELLULAR = 2;
+    public static final int NETWORK_ETHERNET = 3;
+    public static final int NETWORK_OTHER = 4;
+
+    /*
+     * Bytes kept of the server name.
+     */
+    private static final int SERVER_NAME_SIZE_IN_BYTES = 16;
+
+    // Where the store finds the fields it scans without reading whole records.
+    static final int START_TIME_OFFSET = 0;
+    static final int DOWNLOAD_SPEED_OFFSET = 24;
+    static final int UPLOAD_SPEED_OFFSET = 28;
+    static final int LATENCY_OFFSET = 32;
+    static final int DOWNLOADED_KB_OFFSET = 52;
+    static final int UPLOADED_KB_OFFSET = 56;
+
+    private static final int FLAG_CANCELLED = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final PhaseResult.StopReason[] STOP_REASONS = PhaseResult.StopReason.values();
+
+    private final long mStartTimeMs;
+    private final String mServerName;
+    private final float mDownloadSpeedInMbps;
+    private final float mUploadSpeedInMbps;
+    private final float mLatencyInMs;
+    private final float mJitterInMs;
+    private final float mLoss;
+    private final float mDownloadLoadedLatencyInMs;
+    private final float mUploadLoadedLatencyInMs;
+    private final int mDownloadedKb;
+    private final int mUploadedKb;
+    private final int mNetworkType;
+    private final PhaseResult.StopReason mDownloadStopReason;
+    private final PhaseResult.StopReason mUploadStopReason;
+    private final boolean mCancelled;
+
+    public ResultRecord(long startTimeMs,
+                        String serverName,
+                        float downloadSpeedInMbps,
+                        float uploadSpeedInMbps,
+                        float latencyInMs,
+                        float jitterInMs,
+                        float loss,
+                        float downloadLoadedLatencyInMs,
+                        float uploadLoadedLatencyInMs,
+                        int downloadedKb,
+                        int uploadedKb,
+                        int networkType,
+                        PhaseResult.StopReason downloadStopReason,
+                        PhaseResult.StopReason uploadStopReason,
+                        boolean cancelled) {
+
+        mStartTimeMs = startTimeMs;
+        mServerName = serverName;
+        mDownloadSpeedInMbps = downloadSpeedInMbps;
+        mUploadSpeedInMbps = uploadSpeedInMbps;
+        mLatencyInMs = latencyInMs;
+        mJitterInMs = jitterInMs;
+        mLoss = loss;
+        mDownloadLoadedLatencyInMs = downloadLoadedLatencyInMs;
+        mUploadLoadedLatencyInMs = uploadLoadedLatencyInMs;
+        mDownloadedKb = downloadedKb;
+        mUploadedKb = uploadedKb;
+        mNetworkType = networkType;
+        mDownloadStopReason = downloadStopReason;
+        mUploadStopReason = uploadStopReason;
+        mCancelled = cancelled;
+    }
+
+    /**
+     * @param networkType One of the NETWORK_ constants.
+     */
+    public static ResultRecord fromResult(SpeedTestResult result, int networkType) {
+        LatencyResult idleLatency = result.getIdleLatency();
+        PhaseResult download = result.getDownload();
+        PhaseResult upload = result.getUpload();
+
+        return new ResultRecord(result.getStartTimeMs(),
+                result.getServers().get(0).getName(),
+                getSpeedInMbps(download),
+                getSpeedInMbps(upload),
+                idleLatency != null ? idleLatency.getMedianInMs() : Float.NaN,
+                idleLatency != null ? idleLatency.getJitterInMs() : Float.NaN,
+                idleLatency != null ? idleLatency.getLoss() : Float.NaN,
+                download != null ? download.getLoadedLatency().getMedianInMs() : Float.NaN,
+                upload != null ? upload.getLoadedLatency().getMedianInMs() : Float.NaN,
+                download != null ? toKb(download.getBytesTransferred()) : 0,
+                upload != null ? toKb(upload.getBytesTransferred()) : 0,
+                networkType,
+                download != null ? download.getStopReason() : null,
+                upload != null ? upload.getStopReason() : null,
+                result.isCancelled());
+    }
+
+    // NaN unless the phase measured a rate, so that the 0 Mbps of a failed,
+    // cancelled or skipped phase never weighs on the daily figures.
+    private static float getSpeedInMbps(PhaseResult phase) {
+        if (phase == null || phase.getDurationNs() == 0) {
+            return Float.NaN;
+        }
+
+        switch (phase.getStopReason()) {
+            case CANCELLED:
+            case FAILED:
+                return Float.NaN;
+            default:
+                return phase.getSpeedInMbps();
+        }
+    }
+
+    private static int toKb(long bytes) {
+        return (int) Math.min(bytes / 1000, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a record at the position of the buffer and moves past it.
+     */
+    public static ResultRecord readFrom(ByteBuffer buffer) {
+        long startTimeMs = buffer.getLong();
+
+        byte[] serverName = new byte[SERVER_NAME_SIZE_IN_BYTES];
+        buffer.get(serverName);
+        int serverNameLength = 0;
+        while (serverNameLength < serverName.length && serverName[serverNameLength] != 0) {
+            serverNameLength++;
+        }
+
+        float downloadSpeedInMbps = buffer.getFloat();
+        float uploadSpeedInMbps = buffer.getFloat();
+        float latencyInMs = buffer.getFloat();
+        float jitterInMs = buffer.getFloat();
+        float loss = buffer.getFloat();
+        float downloadLoadedLatencyInMs = buffer.getFloat();
+        float uploadLoadedLatencyInMs = buffer.getFloat();
+        int downloadedKb = buffer.getInt();
+        int uploadedKb = buffer.getInt();
+        int networkType = buffer.get();
+        PhaseResult.StopReason downloadStopReason = toStopReason(buffer.get());
+        PhaseResult.StopReason uploadStopReason = toStopReason(buffer.get());
+        int flags = buffer.get();
+
+        return new ResultRecord(startTimeMs,
+                new String(serverName, 0, serverNameLength, UTF_8),
+                downloadSpeedInMbps,
+                uploadSpeedInMbps,
+                latencyInMs,
+                jitterInMs,
+                loss,
+                downloadLoadedLatencyInMs,
+                uploadLoadedLatencyInMs,
+                downloadedKb,
+                uploadedKb,
+                networkType,
+                downloadStopReason,
+                uploadStopReason,
+                (flags & FLAG_CANCELLED) != 0);
+    }
+
+    /**
+     * Writes the record at the position of the buffer and moves past it.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(mStartTimeMs);
+
+        // Cut to the field, which may split the last character.
+        byte[] serverName = mServerName.getBytes(UTF_8);
+        int serverNameLength = Math.min(serverName.length, SERVER_NAME_SIZE_IN_BYTES);
+        buffer.put(serverName, 0, serverNameLength);
+        for (int i = serverNameLength; i < SERVER_NAME_SIZE_IN_BYTES; i++) {
+            buffer.put((byte) 0);
+        }
+
+        buffer.putFloat(mDownloadSpeedInMbps);
+        buffer.putFloat(mUploadSpeedInMbps);
+        buffer.putFloat(mLatencyInMs);
+        buffer.putFloat(mJitterInMs);
+        buffer.putFloat(mLoss);
+        buffer.putFloat(mDownloadLoadedLatencyInMs);
+        buffer.putFloat(mUploadLoadedLatencyInMs);
+        buffer.putInt(mDownloadedKb);
+        buffer.putInt(mUploadedKb);
+        buffer.put((byte) mNetworkType);
+        buffer.put(fromStopReason(mDownloadStopReason));
+        buffer.put(fromStopReason(mUploadStopReason));
+        buffer.put((byte) (mCancelled ? FLAG_CANCELLED : 0));
+    }
+
+    private static PhaseResult.StopReason toStopReason(byte value) {
+        return value > 0 && value <= STOP_REASONS.length ? STOP_REASONS[value - 1] : null;
+    }
+
+    private static byte fromStopReason(PhaseResult.StopReason stopReason) {
+        return (byte) (stopReason != null ? stopReason.ordinal() + 1 : 0);
+    }
+
+    /**
+     * Copy of the record with another start time.
+     */
+    ResultRecord withStartTimeMs(long startTimeMs) {
+        return new ResultRecord(startTimeMs,
+                mServerName,
+                mDownloadSpeedInMbps,
+                mUploadSpeedInMbps,
+                mLatencyInMs,
+                mJitterInMs,
+                mLoss,
+                mDownloadLoadedLatencyInMs,
+                mUploadLoadedLatencyInMs,
+                mDownloadedKb,
+                mUploadedKb,
+                mNetworkType,
+                mDownloadStopReason,
+                mUploadStopReason,
+                mCancelled);
+    }
+
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    public String getServerName() {
+        return mServerName;
+    }
+
+    public float getDownloadSpeedInMbps() {
+        return mDownloadSpeedInMbps;
+    }
+
+    public float getUploadSpeedInMbps() {
+        return mUploadSpeedInMbps;
+    }
+
+    /**
+     * Median round trip time on the idle link.
+     */
+    public float getLatencyInMs() {
+        return mLatencyInMs;
+    }
+
+    public float getJitterInMs() {
+        return mJitterInMs;
+    }
+
+    public float getLoss() {
+        return mLoss;
+    }
+
+    public float getDownloadLoadedLatencyInMs() {
+        return mDownloadLoadedLatencyInMs;
+    }
+
+    public float getUploadLoadedLatencyInMs() {
+        return mUploadLoadedLatencyInMs;
+    }
+
+    public int getDownloadedKb() {
+        return mDownloadedKb;
+    }
+
+    public int getUploadedKb() {
+        return mUploadedKb;
+    }
+
+    public int getNetworkType() {
+        return mNetworkType;
+    }
+
+    public PhaseResult.StopReason getDownloadStopReason() {
+        return mDownloadStopReason;
+    }
+
+    public PhaseResult.StopReason getUploadStopReason() {
+        return mUploadStopReason;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public String toString() {
+        return mStartTimeMs + " " + mServerName + ": down " + mDownloadSpeedInMbps + "Mbps, up " +
+                mUploadSpeedInMbps + "Mbps, latency " + mLatencyInMs + "ms, network " + mNetworkType +
+                (mCancelled ? ", cancelled" : "");
+    }
+}
@@ -0,0 +1,400 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only history of test results in one file of fixed size
+ * {@link ResultRecord}s behind a short header.
+ *
+ * Records are kept in start time order, which makes the file its own
+ * index: a time range query binary searches its bounds and reads the
+ * records in between in bulk. Should the clock be set back, a record gets
+ * the start time of the one before it rather than breaking the order.
+ *
+ * Appends go to a writer thread of the store, so callers never wait for
+ * the disk; queries read on the calling thread and see every record
+ * written so far. Aggregates of days which can no longer change are
+ * cached.
+ */
+public class ResultStore {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(ResultStore.class.getSimpleName());
+
+    /*
+     * "STRS", start of every store file.
+     */
+    private static final int MAGIC = 0x53545253;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE_IN_BYTES = 16;
+
+    /*
+     * Records read from disk at a time when scanning.
+     */
+    private static final int RECORDS_PER_READ = 1024;
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final FileChannel mChannel;
+
+    private final TimeZone mTimeZone;
+
+    private final ExecutorService mWriter;
+
+    // Records on disk. Written by the writer thread only.
+    private volatile long mRecordCount;
+
+    // Start time of the last record, so that the next keeps the order.
+    private long mLastStartTimeMs = Long.MIN_VALUE;
+
+    // Aggregates of the days before the day of the last record, which no
+    // new record can fall in.
+    private final Map<DailyAggregate.Metric, Map<Long, DailyAggregate>> mDailyAggregateCache =
+            new EnumMap<>(DailyAggregate.Metric.class);
+
+    /**
+     * Opens the store in the given file, creating it if needed. Days are
+     * cut at midnight of the default time zone.
+     */
+    public ResultStore(File file) throws IOException {
+        this(file, TimeZone.getDefault());
+    }
+
+    public ResultStore(File file, TimeZone timeZone) throws IOException {
+        mFile = file;
+        mTimeZone = timeZone;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+
+        try {
+            openFile();
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+
+        for (DailyAggregate.Metric metric : DailyAggregate.Metric.values()) {
+            mDailyAggregateCache.put(metric, new HashMap<Long, DailyAggregate>());
+        }
+
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName(ResultStore.class.getSimpleName());
+                return thread;
+            }
+        });
+    }
+
+    private void openFile() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_IN_BYTES);
+
+        if (mChannel.size() == 0) {
+            header.putInt(MAGIC).putInt(VERSION).putInt(ResultRecord.SIZE_IN_BYTES).putInt(0);
+            header.flip();
+            writeFully(header, 0);
+            mChannel.force(true);
+            return;
+        }
+
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION ||
+            header.getInt() != ResultRecord.SIZE_IN_BYTES) {
+            throw new IOException(mFile + " is not a result store of this version");
+        }
+
+        // Drop what an append cut short by a crash left behind.
+        long recordBytes = mChannel.size() - HEADER_SIZE_IN_BYTES;
+        mRecordCount = recordBytes / ResultRecord.SIZE_IN_BYTES;
+        if (recordBytes % ResultRecord.SIZE_IN_BYTES != 0) {
+            LOG.log(Level.WARNING, "Dropping a partial record of " + mFile);
+            mChannel.truncate(positionOf(mRecordCount));
+        }
+
+        if (mRecordCount > 0) {
+            mLastStartTimeMs = readStartTimeMs(mRecordCount - 1);
+        }
+    }
+
+    /**
+     * Queues the record for writing and returns straight away. Records
+     * appended after {@link #close()} get dropped.
+     */
+    public void append(final ResultRecord record) {
+        try {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(record);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Store closed, dropping " + record);
+        }
+    }
+
+    // On the writer thread.
+    private void write(ResultRecord record) throws IOException {
+        if (record.getStartTimeMs() < mLastStartTimeMs) {
+            record = record.withStartTimeMs(mLastStartTimeMs);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(ResultRecord.SIZE_IN_BYTES);
+        record.writeTo(buffer);
+        buffer.flip();
+        writeFully(buffer, positionOf(mRecordCount));
+        mChannel.force(false);
+
+        mLastStartTimeMs = record.getStartTimeMs();
+        mRecordCount++;
+    }
+
+    /**
+     * Waits for the records appended so far to be on disk.
+     */
+    public void flush() throws IOException, InterruptedException {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Closes the file once the records still queued are written. Returns
+     * straight away; call {@link #flush()} first to wait for them.
+     */
+    public void close() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mRandomAccessFile.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Records started in [fromMs, toMs), oldest first.
+     */
+    public List<ResultRecord> query(long fromMs, long toMs) throws IOException {
+        long recordCount = mRecordCount;
+        long first = lowerBound(fromMs, 0, recordCount);
+        long end = lowerBound(toMs, first, recordCount);
+
+        List<ResultRecord> records = new ArrayList<>((int) Math.max(end - first, 0));
+        ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * ResultRecord.SIZE_IN_BYTES);
+        for (long index = first; index < end; index += RECORDS_PER_READ) {
+            readRecords(buffer, index, Math.min(end - index, RECORDS_PER_READ));
+            while (buffer.hasRemaining()) {
+                records.add(ResultRecord.readFrom(buffer));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Median, p10 and p90 of the metric for each day with tests started in
+     * [fromMs, toMs), oldest first. Days without a value for the metric
+     * are left out.
+     */
+    public List<DailyAggregate> getDailyAggregates(long fromMs, long toMs, DailyAggregate.Metric metric)
+            throws IOException {
+
+        List<DailyAggregate> aggregates = new ArrayList<>();
+
+        long recordCount = mRecordCount;
+        long index = lowerBound(fromMs, 0, recordCount);
+        long end = lowerBound(toMs, index, recordCount);
+
+        // Of the day the last record falls in, which may still grow.
+        long openDayStartMs = recordCount > 0 ? getDayStartMs(readStartTimeMs(recordCount - 1)) : Long.MAX_VALUE;
+
+        Map<Long, DailyAggregate> cache = mDailyAggregateCache.get(metric);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * ResultRecord.SIZE_IN_BYTES);
+        float[] values = new float[64];
+
+        // Day by day, jumping straight to the day of the next record.
+        while (index < end) {
+            long dayStartMs = getDayStartMs(readStartTimeMs(index));
+            long dayEndMs = getNextDayStartMs(dayStartMs);
+            long dayEnd = lowerBound(dayEndMs, index, end);
+
+            boolean wholeDay = dayStartMs >= fromMs && dayEndMs <= toMs;
+            boolean cacheable = wholeDay && dayStartMs < openDayStartMs;
+
+            DailyAggregate aggregate = null;
+            if (cacheable) {
+                synchronized (mDailyAggregateCache) {
+                    aggregate = cache.get(dayStartMs);
+                }
+            }
+
+            if (aggregate == null) {
+                if (values.length < dayEnd - index) {
+                    values = new float[(int) (dayEnd - index)];
+                }
+
+                int count = 0;
+                for (long i = index; i < dayEnd; i += RECORDS_PER_READ) {
+                    readRecords(buffer, i, Math.min(dayEnd - i, RECORDS_PER_READ));
+                    for (int offset = 0; offset < buffer.limit(); offset += ResultRecord.SIZE_IN_BYTES) {
+                        float value = buffer.getFloat(offset + metric.mOffset);
+                        if (!Float.isNaN(value)) {
+                            values[count++] = value;
+                        }
+                    }
+                }
+
+                aggregate = DailyAggregate.fromValues(dayStartMs, values, count);
+                if (cacheable) {
+                    synchronized (mDailyAggregateCache) {
+                        cache.put(dayStartMs, aggregate);
+                    }
+                }
+            }
+
+            if (aggregate.getCount() > 0) {
+                aggregates.add(aggregate);
+            }
+            index = dayEnd;
+        }
+
+        return aggregates;
+    }
+
+    /**
+     * Bytes the tests started in [fromMs, toMs) moved, e.g. to hold them
+     * to a data budget.
+     */
+    public long getBytesTransferred(long fromMs, long toMs) throws IOException {
+        long recordCount = mRecordCount;
+        long first = lowerBound(fromMs, 0, recordCount);
+        long end = lowerBound(toMs, first, recordCount);
+
+        long kilobytes = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_READ * ResultRecord.SIZE_IN_BYTES);
+        for (long index = first; index < end; index += RECORDS_PER_READ) {
+            readRecords(buffer, index, Math.min(end - index, RECORDS_PER_READ));
+            for (int offset = 0; offset < buffer.limit(); offset += ResultRecord.SIZE_IN_BYTES) {
+                kilobytes += buffer.getInt(offset + ResultRecord.DOWNLOADED_KB_OFFSET);
+                kilobytes += buffer.getInt(offset + ResultRecord.UPLOADED_KB_OFFSET);
+            }
+        }
+        return kilobytes * 1000;
+    }
+
+    /**
+     * Midnight starting the day of the given time, in the store's time zone.
+     */
+    public long getDayStartMs(long timeMs) {
+        Calendar calendar = Calendar.getInstance(mTimeZone);
+        calendar.setTimeInMillis(timeMs);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    // Not always 24h later, days around a dst change are not.
+    private long getNextDayStartMs(long dayStartMs) {
+        Calendar calendar = Calendar.getInstance(mTimeZone);
+        calendar.setTimeInMillis(dayStartMs);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    // First record in [first, end) started at or after timeMs, end if none.
+    private long lowerBound(long timeMs, long first, long end) throws IOException {
+        long low = first;
+        long high = end;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (readStartTimeMs(middle) < timeMs) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long readStartTimeMs(long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(buffer, positionOf(index) + ResultRecord.START_TIME_OFFSET);
+        return buffer.getLong(0);
+    }
+
+    // Leaves the records flipped in the buffer.
+    private void readRecords(ByteBuffer buffer, long index, long count) throws IOException {
+        buffer.clear();
+        buffer.limit((int) count * ResultRecord.SIZE_IN_BYTES);
+        readFully(buffer, positionOf(index));
+        buffer.flip();
+    }
+
+    private static long positionOf(long index) {
+        return HEADER_SIZE_IN_BYTES + index * ResultRecord.SIZE_IN_BYTES;
+    }
+
+    // Positional, so readers and the writer never move a shared position.
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of " + mFile);
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Estimates the bytes the upload streams got out of the client from the
+ * bytes they handed to their connections.
+ *
+ * A write returns as soon as the kernel has the bytes in the socket's send
+ * buffer, not once they left. So a stream first counts a whole send buffer
+ * at memory speed, and once the buffer is full its writes block till the
+ * kernel frees room, which it does in bursts of about a third of the
+ * buffer. With the buffers of several megabytes autotuning grows, a stream
+ * counts nothing for up to a second and then a megabyte at once, and a rate
+ * over a window of about that length is off by as much.
+ *
+ * The estimate therefore leaves out what a stream counted over its first
+ * {@link #FILL_TIME_IN_NS}, its buffer filling up, and while a stream is held
+ * up between two bursts, lets its count grow at the rate of its previous
+ * burst cycle, by at most that cycle's bytes. Streams which count on every
+ * sample are left as they are but for the fill.
+ *
+ * Till a stream's first burst after the fill there is no cycle to go by,
+ * and once it comes it holds bytes sent since the fill. So rates are only
+ * right between samples taken while all the streams are past it, see
+ * {@link #isSettled()}.
+ *
+ * Must be fed from one thread, the one sampling the engine.
+ */
+public class SentBytesEstimator {
+
+    /*
+     * Time from the first bytes a stream counted over which everything it
+     * counts is taken as its send buffer filling up.
+     */
+    private static final long FILL_TIME_IN_NS = 20 * 1000000L;
+
+    /*
+     * Time from the first bytes a stream counted after which it counts as
+     * settled even if it never counted again, e.g. if it stalled.
+     */
+    private static final long MAX_SETTLE_TIME_IN_NS = 3000 * 1000000L;
+
+    private final TransferEngine mEngine;
+
+    private final int mServerCount;
+
+    // All of the following are per stream, indexed like the streams.
+
+    private final boolean[] mCounted;
+
+    private final long[] mFirstCountNs;
+
+    // Bytes counted while the buffer filled up.
+    private final long[] mFillBytes;
+
+    // Goes true with the first burst after the fill.
+    private final boolean[] mSettled;
+
+    // Counter of the stream at the previous sample.
+    private final long[] mLastBytes;
+
+    // Latest sample the counter grew at, and its value then.
+    private final long[] mCountNs;
+    private final long[] mCountBytes;
+
+    // Latest sample of the burst before the ongoing one, -1 bytes if none.
+    private final long[] mCycleStartNs;
+    private final long[] mCycleStartBytes;
+
+    private final long[] mSentBytes;
+
+    private long mLastSampleNs;
+
+    public SentBytesEstimator(TransferEngine engine) {
+        int streamCapacity = engine.getMaxStreamCount();
+
+        mEngine = engine;
+        mServerCount = engine.getServers().size();
+        mCounted = new boolean[streamCapacity];
+        mFirstCountNs = new long[streamCapacity];
+        mFillBytes = new long[streamCapacity];
+        mSettled = new boolean[streamCapacity];
+        mLastBytes = new long[streamCapacity];
+        mCountNs = new long[streamCapacity];
+        mCountBytes = new long[streamCapacity];
+        mCycleStartNs = new long[streamCapacity];
+        mCycleStartBytes = new long[streamCapacity];
+        mSentBytes = new long[streamCapacity];
+
+        for (int i = 0; i < streamCapacity; i++) {
+            mCycleStartBytes[i] = -1;
+        }
+    }
+
+    /**
+     * Reads the counters of the streams.
+     *
+     * @param nowNs System.nanoTime() of the sample.
+     */
+    public void addSample(long nowNs) {
+        for (int i = 0; i < mSentBytes.length; i++) {
+            long bytes = mEngine.getStreamBytesTransferred(i);
+            if (bytes == 0) {
+                continue;
+            }
+
+            if (!mCounted[i]) {
+                mCounted[i] = true;
+                mFirstCountNs[i] = nowNs;
+            }
+
+            if (nowNs - mFirstCountNs[i] <= FILL_TIME_IN_NS) {
+                mFillBytes[i] = bytes;
+                mCountNs[i] = nowNs;
+                mCountBytes[i] = bytes;
+            } else if (bytes != mLastBytes[i]) {
+                mSettled[i] = true;
+
+                // The counter stood still over the previous sample, so a
+                // burst cycle is over.
+                if (mCountNs[i] != mLastSampleNs) {
+                    mCycleStartNs[i] = mCountNs[i];
+                    mCycleStartBytes[i] = mCountBytes[i];
+                }
+                mCountNs[i] = nowNs;
+                mCountBytes[i] = bytes;
+            }
+            mLastBytes[i] = bytes;
+
+            if (nowNs - mFirstCountNs[i] > MAX_SETTLE_TIME_IN_NS) {
+                mSettled[i] = true;
+            }
+
+            long sentBytes = mCountBytes[i];
+            if (mCountNs[i] != nowNs && mCycleStartBytes[i] >= 0) {
+                long cycleNs = mCountNs[i] - mCycleStartNs[i];
+                long cycleBytes = mCountBytes[i] - mCycleStartBytes[i];
+                sentBytes += (long) (cycleBytes * (double) Math.min(nowNs - mCountNs[i], cycleNs) / cycleNs);
+            }
+            mSentBytes[i] = Math.max(mSentBytes[i], sentBytes - mFillBytes[i]);
+        }
+        mLastSampleNs = nowNs;
+    }
+
+    /**
+     * True if every stream which counted anything is past its first burst
+     * after the fill.
+     */
+    public boolean isSettled() {
+        for (int i = 0; i < mSentBytes.length; i++) {
+            if (mCounted[i] && !mSettled[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes all the streams together got out, as of the latest sample.
+     * Never decreases.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (long sentBytes : mSentBytes) {
+            bytes += sentBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes the streams of the server at the given index got out.
+     */
+    public long getBytes(int serverIndex) {
+        long bytes = 0;
+        for (int i = serverIndex; i < mSentBytes.length; i += mServerCount) {
+            bytes += mSentBytes[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,48 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Round trip time a candidate server showed during server selection.
+ */
+public class ServerLatency {
+
+    private final TestServer mServer;
+
+    private final LatencyResult mLatency;
+
+    private final boolean mProbed;
+
+    public ServerLatency(TestServer server, LatencyResult latency, boolean probed) {
+        mServer = server;
+        mLatency = latency;
+        mProbed = probed;
+    }
+
+    public TestServer getServer() {
+        return mServer;
+    }
+
+    /**
+     * Probes the server answered within the selection budget. Without any
+     * samples if it answered none.
+     */
+    public LatencyResult getLatency() {
+        return mLatency;
+    }
+
+    public boolean isReachable() {
+        return mLatency.getSampleCount() > 0;
+    }
+
+    /**
+     * False if the budget ran out before a probe got sent to the server,
+     * which then says nothing about it being reachable.
+     */
+    public boolean isProbed() {
+        return mProbed;
+    }
+
+    @Override
+    public String toString() {
+        return mServer + ": " + (mProbed ? mLatency : "not probed");
+    }
+}
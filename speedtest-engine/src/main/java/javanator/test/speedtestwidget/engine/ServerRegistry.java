@@ -0,0 +1,93 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test servers a test may pick from.
+ *
+ * Loads from a text config with one server per line, its fields separated
+ * by '|':
+ *
+ * <pre>
+ * # name | ping url | download url | download object size | upload url
+ * rawtooth | http://static.rawtooth.com/ | http://static.rawtooth.com/test.500mb | 500000000 | http://test.rawtooth.com/FileStore?
+ * </pre>
+ *
+ * Blank lines and lines starting with '#' are skipped.
+ */
+public class ServerRegistry {
+
+    private static final int FIELD_COUNT = 5;
+
+    private final List<TestServer> mServers;
+
+    public ServerRegistry(List<TestServer> servers) {
+        if (servers == null || servers.isEmpty()) {
+            throw new IllegalArgumentException("Registry needs at least one server");
+        }
+
+        mServers = Collections.unmodifiableList(new ArrayList<>(servers));
+    }
+
+    /**
+     * Reads a registry from the given config and closes it.
+     *
+     * @throws IOException If the config cannot be read or has a bad line.
+     */
+    public static ServerRegistry load(InputStream config) throws IOException {
+
+        List<TestServer> servers = new ArrayList<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(config, "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                servers.add(parseServer(line, lineNumber));
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (servers.isEmpty()) {
+            throw new IOException("No servers in the registry");
+        }
+
+        return new ServerRegistry(servers);
+    }
+
+    private static TestServer parseServer(String line, int lineNumber) throws IOException {
+        String[] fields = line.split("\\|");
+        if (fields.length != FIELD_COUNT) {
+            throw new IOException("Line " + lineNumber + ": expected " + FIELD_COUNT +
+                    " fields, got " + fields.length);
+        }
+
+        try {
+            return new TestServer(fields[0].trim(),
+                    fields[1].trim(),
+                    fields[2].trim(),
+                    Long.parseLong(fields[3].trim()),
+                    fields[4].trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    public List<TestServer> getServers() {
+        return mServers;
+    }
+}
@@ -0,0 +1,176 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the test servers closest to the client by probing the round trip
+ * time of every candidate in parallel, within a fixed time budget so that
+ * selection only adds a fraction of a second to a test.
+ */
+public class ServerSelector {
+
+    /*
+     * Time the whole selection may take.
+     */
+    public static final long DEFAULT_BUDGET_IN_MS = 800;
+
+    /*
+     * Probes sent to each candidate. The first also pays for dns and
+     * connection setup, taking the median keeps that from deciding.
+     */
+    private static final int PROBES_PER_SERVER = 4;
+
+    /*
+     * Most candidates probed at the same time.
+     */
+    private static final int MAX_PARALLEL_PROBES = 16;
+
+    private final long mBudgetInMs;
+
+    public ServerSelector() {
+        this(DEFAULT_BUDGET_IN_MS);
+    }
+
+    public ServerSelector(long budgetInMs) {
+        if (budgetInMs <= 0) {
+            throw new IllegalArgumentException("Invalid selection budget " + budgetInMs);
+        }
+
+        mBudgetInMs = budgetInMs;
+    }
+
+    /**
+     * Probes the candidates and ranks them. Returns within the budget;
+     * probes still out then are left to time out on their own.
+     *
+     * @return The candidates which answered, lowest median round trip time
+     * first, followed by the ones which did not and then the ones no probe
+     * got sent to, in the given order.
+     */
+    public List<ServerLatency> rank(List<TestServer> candidates) throws InterruptedException {
+
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBudgetInMs);
+
+        List<ProbeTask> tasks = new ArrayList<>(candidates.size());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(candidates.size(), MAX_PARALLEL_PROBES), new ProbeThreadFactory());
+        try {
+            for (TestServer candidate : candidates) {
+                ProbeTask task = new ProbeTask(candidate, deadlineNs);
+                tasks.add(task);
+                executor.execute(task);
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(mBudgetInMs, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<ServerLatency> ranking = new ArrayList<>(tasks.size());
+        for (ProbeTask task : tasks) {
+            ranking.add(new ServerLatency(task.mServer, task.getResult(), task.isStarted()));
+        }
+
+        // Stable, so the unreachable ones keep their order.
+        Collections.sort(ranking, new Comparator<ServerLatency>() {
+            @Override
+            public int compare(ServerLatency lhs, ServerLatency rhs) {
+                if (lhs.isReachable() != rhs.isReachable()) {
+                    return lhs.isReachable() ? -1 : 1;
+                }
+                if (!lhs.isReachable()) {
+                    if (lhs.isProbed() != rhs.isProbed()) {
+                        return lhs.isProbed() ? -1 : 1;
+                    }
+                    return 0;
+                }
+                return Float.compare(lhs.getLatency().getMedianInMs(), rhs.getLatency().getMedianInMs());
+            }
+        });
+
+        return ranking;
+    }
+
+    // Probes one candidate till it has sent all its probes or the budget is spent.
+    private class ProbeTask implements Runnable {
+
+        private final TestServer mServer;
+
+        private final long mDeadlineNs;
+
+        // Guarded by this, read while late probes may still come in.
+        private final long[] mRttsNs = new long[PROBES_PER_SERVER];
+        private int mSampleCount = 0;
+        private int mLostCount = 0;
+        private boolean mStarted = false;
+
+        ProbeTask(TestServer server, long deadlineNs) {
+            mServer = server;
+            mDeadlineNs = deadlineNs;
+        }
+
+        @Override
+        public void run() {
+            // Waited for a thread the whole budget.
+            if (System.nanoTime() >= mDeadlineNs) {
+                return;
+            }
+            synchronized (this) {
+                mStarted = true;
+            }
+
+            LatencyProbe probe = new LatencyProbe(mServer.getPingUrl(), (int) mBudgetInMs);
+
+            for (int i = 0; i < PROBES_PER_SERVER && System.nanoTime() < mDeadlineNs; i++) {
+                long rttNs = probe.probe();
+
+                synchronized (this) {
+                    // Answered after the budget, too far anyway.
+                    if (System.nanoTime() > mDeadlineNs) {
+                        return;
+                    }
+
+                    if (rttNs < 0) {
+                        mLostCount++;
+                    } else {
+                        mRttsNs[mSampleCount++] = rttNs;
+                    }
+                }
+            }
+        }
+
+        synchronized boolean isStarted() {
+            return mStarted;
+        }
+
+        synchronized LatencyResult getResult() {
+            return LatencyResult.fromSamples(mRttsNs, mSampleCount, mLostCount);
+        }
+    }
+
+    private static class ProbeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setName(ServerSelector.class.getSimpleName() + "-" + mThreadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Share of one server in the throughput of a phase.
+ */
+public class ServerThroughput {
+
+    private final TestServer mServer;
+
+    private final float mSpeedInMbps;
+
+    private final long mBytesTransferred;
+
+    private final int mStreamCount;
+
+    public ServerThroughput(TestServer server,
+                            float speedInMbps,
+                            long bytesTransferred,
+                            int streamCount) {
+
+        mServer = server;
+        mSpeedInMbps = speedInMbps;
+        mBytesTransferred = bytesTransferred;
+        mStreamCount = streamCount;
+    }
+
+    public TestServer getServer() {
+        return mServer;
+    }
+
+    /**
+     * Average speed of the streams of this server past their ramp-up.
+     */
+    public float getSpeedInMbps() {
+        return mSpeedInMbps;
+    }
+
+    public long getBytesTransferred() {
+        return mBytesTransferred;
+    }
+
+    public int getStreamCount() {
+        return mStreamCount;
+    }
+
+    /**
+     * Speed of each stream of this server. A server well below the others
+     * here is the one holding the total back.
+     */
+    public float getSpeedPerStreamInMbps() {
+        return mStreamCount > 0 ? mSpeedInMbps / mStreamCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return mServer + ": " + mSpeedInMbps + "Mbps, " + mBytesTransferred + " bytes over " +
+                mStreamCount + " streams";
+    }
+}
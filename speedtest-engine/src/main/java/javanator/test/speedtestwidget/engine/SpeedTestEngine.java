@@ -0,0 +1,909 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a whole speed test: idle latency first, then download, then upload.
+ * Given a {@link ServerRegistry}, it first picks the closest servers and
+ * spreads the throughput streams over all of them.
+ *
+ * Plain java with no ui dependency, so the same engine drives the widget,
+ * a background service or a unit test. Either call {@link #start()} to run
+ * the test on a thread of its own, or {@link #run()} to run it on the
+ * calling thread. Progress and results go to the {@link Listener}, from the
+ * thread running the test.
+ *
+ * A test copies the settings as it starts, so they take effect from the
+ * next test started.
+ */
+public class SpeedTestEngine {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(SpeedTestEngine.class.getSimpleName());
+
+    public static final String DEFAULT_PING_URL = "http://static.rawtooth.com/";
+
+    public static final String DEFAULT_DOWNLOAD_URL = "http://static.rawtooth.com/test.500mb";
+
+    // Size of the object behind DEFAULT_DOWNLOAD_URL. Streams split it in byte ranges.
+    public static final long DEFAULT_DOWNLOAD_OBJECT_SIZE_IN_BYTES = 500L * 1000 * 1000;
+
+    public static final String DEFAULT_UPLOAD_URL = "http://test.rawtooth.com/FileStore?";
+
+    /*
+     * How often the download and upload loops sample the transferred bytes.
+     */
+    private static final long SAMPLING_INTERVAL_IN_MS = 10;
+
+    /*
+     * Sliding window the speed published while a phase runs is averaged over.
+     */
+    private static final long DISPLAY_WINDOW_IN_NS = 1000 * 1000000L;
+
+    private static final long TIME_FOR_PUBLISHING_DOWNLOAD_RESULTS_IN_NS = 50 * 1000000L;
+
+    private static final long TIME_FOR_PUBLISHING_UPLOAD_RESULTS_IN_NS = 10 * 1000000L;
+
+    private static final long TIME_FOR_ADJUSTING_STREAMS_IN_NS = 500 * 1000000L;
+
+    private static final int NUMBER_OF_PROBES = 20;
+
+    private static final long TIME_BETWEEN_PROBES_IN_MS = 50;
+
+    /*
+     * Time a phase waits for its streams to wind down and tell their cpu
+     * time, with a resource probe only.
+     */
+    private static final long STREAM_STOP_TIMEOUT_IN_MS = 1000;
+
+    // Server the test runs against, unless a registry is there to pick from.
+    private TestServer mServer = TestServer.DEFAULT;
+
+    // Candidates the server gets picked from when set, and how many of the
+    // closest ones to keep.
+    private ServerRegistry mServerRegistry;
+    private int mSelectedServerCount = 1;
+    private long mServerSelectionBudgetInMs = ServerSelector.DEFAULT_BUDGET_IN_MS;
+
+    // Concurrent connections each phase starts with and the most it
+    // may grow to while aggregate throughput keeps increasing.
+    private int mDownloadStreamCount = DownloadEngine.DEFAULT_INITIAL_STREAM_COUNT;
+    private int mMaxDownloadStreamCount = DownloadEngine.DEFAULT_MAX_STREAM_COUNT;
+    private int mUploadStreamCount = UploadEngine.DEFAULT_INITIAL_STREAM_COUNT;
+    private int mMaxUploadStreamCount = UploadEngine.DEFAULT_MAX_STREAM_COUNT;
+
+    // When the download and upload phases have measured enough.
+    private TerminationPolicy mDownloadTerminationPolicy = TerminationPolicy.DEFAULT_DOWNLOAD_POLICY;
+    private TerminationPolicy mUploadTerminationPolicy = TerminationPolicy.DEFAULT_UPLOAD_POLICY;
+
+    // Bytes the whole test may move, null for no limit.
+    private DataBudget mDataBudget;
+
+    // Bytes the whole test may move on top of any budget, Long.MAX_VALUE
+    // for no limit. Unlike a budget it leaves how the test measures alone.
+    private long mByteLimit = Long.MAX_VALUE;
+
+    // How the download and upload streams talk to the server.
+    private Transport mTransport = new HttpUrlConnectionTransport();
+
+    // What the client spends on the test, null for no instrumentation.
+    private ResourceProbe mResourceProbe;
+
+    // Cpu time the ui reported for showing the tests, a running total.
+    private final AtomicLong mUiCpuTimeNs = new AtomicLong();
+
+    private volatile Listener mListener;
+
+    // True while a test is in progress, till its listener calls are over.
+    private volatile boolean mBusy = false;
+
+    // Goes false when the test in progress should stop.
+    private volatile boolean mRunning = false;
+
+    // Result of the latest test run to its end, cancelled ones included.
+    private volatile SpeedTestResult mResult;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setPingUrl(String pingUrl) {
+        mServer = new TestServer(mServer.getName(),
+                pingUrl,
+                mServer.getDownloadUrl(),
+                mServer.getDownloadObjectSizeInBytes(),
+                mServer.getUploadUrl());
+    }
+
+    /**
+     * @param downloadUrl Object the download streams read byte ranges of.
+     * @param objectSizeInBytes Size of that object.
+     */
+    public void setDownloadUrl(String downloadUrl, long objectSizeInBytes) {
+        mServer = new TestServer(mServer.getName(),
+                mServer.getPingUrl(),
+                downloadUrl,
+                objectSizeInBytes,
+                mServer.getUploadUrl());
+    }
+
+    public void setUploadUrl(String uploadUrl) {
+        mServer = new TestServer(mServer.getName(),
+                mServer.getPingUrl(),
+                mServer.getDownloadUrl(),
+                mServer.getDownloadObjectSizeInBytes(),
+                uploadUrl);
+    }
+
+    /**
+     * Sets the server to test against when there is no registry to pick
+     * from.
+     */
+    public void setServer(TestServer server) {
+        if (server == null) {
+            throw new IllegalArgumentException("Server cannot be null");
+        }
+
+        mServer = server;
+    }
+
+    /**
+     * Makes every test start by probing the servers of the registry in
+     * parallel and picking the closest ones. A registry of one server gets
+     * used as is.
+     *
+     * @param registry Candidates, null to always use the server set.
+     * @param selectedServerCount How many of the closest servers to keep.
+     * With more than one, the throughput phases spread their streams over
+     * all of them and report the rate of each in
+     * {@link PhaseResult#getServerBreakdown()}.
+     * @param budgetInMs Time the selection may take.
+     */
+    public void setServerRegistry(ServerRegistry registry, int selectedServerCount, long budgetInMs) {
+        if (selectedServerCount < 1 || budgetInMs <= 0) {
+            throw new IllegalArgumentException("Invalid server selection " +
+                    selectedServerCount + " in " + budgetInMs + "ms");
+        }
+
+        mServerRegistry = registry;
+        mSelectedServerCount = selectedServerCount;
+        mServerSelectionBudgetInMs = budgetInMs;
+    }
+
+    /**
+     * Sets the number of concurrent download connections.
+     *
+     * @param streamCount Connections opened when the download starts.
+     * @param maxStreamCount Most connections the download may grow to.
+     */
+    public void setDownloadStreamCount(int streamCount, int maxStreamCount) {
+        checkStreamCount(streamCount, maxStreamCount);
+        mDownloadStreamCount = streamCount;
+        mMaxDownloadStreamCount = maxStreamCount;
+    }
+
+    /**
+     * Sets the number of concurrent upload connections.
+     *
+     * @param streamCount Connections opened when the upload starts.
+     * @param maxStreamCount Most connections the upload may grow to.
+     */
+    public void setUploadStreamCount(int streamCount, int maxStreamCount) {
+        checkStreamCount(streamCount, maxStreamCount);
+        mUploadStreamCount = streamCount;
+        mMaxUploadStreamCount = maxStreamCount;
+    }
+
+    private static void checkStreamCount(int streamCount, int maxStreamCount) {
+        if (streamCount < 1 || maxStreamCount < streamCount) {
+            throw new IllegalArgumentException("Invalid stream count " +
+                    streamCount + "/" + maxStreamCount);
+        }
+    }
+
+    /**
+     * Sets when the download and upload phases stop. Each phase ends early
+     * once its rate has converged inside the policy's confidence band.
+     */
+    public void setTerminationPolicies(TerminationPolicy downloadPolicy,
+                                       TerminationPolicy uploadPolicy) {
+        if (downloadPolicy == null || uploadPolicy == null) {
+            throw new IllegalArgumentException("Termination policy cannot be null");
+        }
+
+        mDownloadTerminationPolicy = downloadPolicy;
+        mUploadTerminationPolicy = uploadPolicy;
+    }
+
+    /**
+     * Caps the bytes the test may move, for metered connections. A capped
+     * test runs fewer streams on the budget's own termination policies, in
+     * place of the ones set, and stops each phase once it used its share.
+     *
+     * @param dataBudget Budget of the test, null for no limit.
+     */
+    public void setDataBudget(DataBudget dataBudget) {
+        mDataBudget = dataBudget;
+    }
+
+    /**
+     * Caps the bytes the test may move while keeping the streams and the
+     * termination policies, e.g. to stay within a daily allowance. Phases
+     * split it like a {@link DataBudget} does and stop once they used their
+     * share. With a budget set as well, the lower of the two holds.
+     *
+     * @param byteLimit Long.MAX_VALUE for no limit.
+     */
+    public void setByteLimit(long byteLimit) {
+        if (byteLimit <= 0) {
+            throw new IllegalArgumentException("Invalid byte limit " + byteLimit);
+        }
+
+        mByteLimit = byteLimit;
+    }
+
+    /**
+     * Sets how the download and upload streams talk to the server, e.g.
+     * {@link HttpUrlConnectionTransport}, {@link NioSocketTransport} or
+     * {@link Http2Transport}, which multiplexes the streams over one
+     * connection per server.
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Transport cannot be null");
+        }
+
+        mTransport = transport;
+    }
+
+    /**
+     * Makes every throughput phase record what the client spent on it in
+     * {@link PhaseResult#getClientLoad()}, null to leave it out.
+     */
+    public void setResourceProbe(ResourceProbe resourceProbe) {
+        mResourceProbe = resourceProbe;
+    }
+
+    /**
+     * Accounts cpu time the ui spent on showing the test, e.g. a rendering
+     * thread, to the phase in progress. Safe to call from any thread.
+     */
+    public void addUiCpuTimeNs(long cpuTimeNs) {
+        mUiCpuTimeNs.addAndGet(cpuTimeNs);
+    }
+
+    public boolean isRunning() {
+        return mBusy;
+    }
+
+    /**
+     * Result of the latest test which ran to its end, null before the first.
+     */
+    public SpeedTestResult getResult() {
+        return mResult;
+    }
+
+    /**
+     * Starts a test on a thread of its own.
+     *
+     * @throws IllegalStateException If a test is running already.
+     */
+    public synchronized void start() {
+        final Settings settings = markRunning();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTest(settings);
+            }
+        });
+        thread.setName(SpeedTestEngine.class.getSimpleName());
+        thread.start();
+    }
+
+    /**
+     * Runs a test on the calling thread and returns its result.
+     *
+     * @throws IllegalStateException If a test is running already.
+     */
+    public SpeedTestResult run() {
+        Settings settings = markRunning();
+        return runTest(settings);
+    }
+
+    /**
+     * Stops the running test, if any. The listener still hears about the
+     * phase in progress and the test completing.
+     */
+    public void cancel() {
+        mRunning = false;
+    }
+
+    // Returns the settings the test runs on, whatever gets set meanwhile.
+    private synchronized Settings markRunning() {
+        if (mBusy) {
+            throw new IllegalStateException("Test already running");
+        }
+        mBusy = true;
+        mRunning = true;
+        return new Settings(this);
+    }
+
+    private SpeedTestResult runTest(Settings settings) {
+        ResourceProbe resourceProbe = settings.mResourceProbe;
+        Transport transport = settings.mTransport;
+        if (resourceProbe != null) {
+            resourceProbe.start();
+            transport.setResourceProbe(resourceProbe);
+        }
+
+        try {
+            return runPhases(settings);
+        } finally {
+            if (resourceProbe != null) {
+                transport.setResourceProbe(null);
+                resourceProbe.stop();
+            }
+            mRunning = false;
+            mBusy = false;
+        }
+    }
+
+    private SpeedTestResult runPhases(Settings settings) {
+
+        long startTimeMs = System.currentTimeMillis();
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTestStarted();
+        }
+
+        // Before the server selection looks the hosts up and they get cached.
+        List<TestServer> candidates = settings.getCandidateServers();
+        List<URL> candidateUrls = new ArrayList<>(candidates.size());
+        for (TestServer candidate : candidates) {
+            candidateUrls.add(TransferEngine.toUrl(candidate.getDownloadUrl()));
+        }
+        Map<String, Float> dnsInMs = ConnectionManager.measureDns(candidateUrls);
+
+        // Latency is the closest server's, throughput all of theirs.
+        List<TestServer> servers = runServerSelectionPhase(candidates, settings);
+
+        // Setup of a connection to the closest server, on its own.
+        ConnectionTimings connectionTimings = null;
+        if (mRunning) {
+            URL url = TransferEngine.toUrl(servers.get(0).getDownloadUrl());
+            Float serverDnsInMs = dnsInMs.get(url.getHost());
+            connectionTimings = ConnectionManager.measure(url, serverDnsInMs != null ? serverDnsInMs : Float.NaN);
+        }
+
+        LatencyResult idleLatency = null;
+        if (mRunning) {
+            idleLatency = runLatencyPhase(servers.get(0));
+        }
+
+        // A failed download does not stop the upload, only cancelling does.
+        PhaseResult download = null;
+        if (mRunning) {
+            download = runThroughputPhase(true, servers, idleLatency,
+                    settings.getPhaseBudgetBytes(true, 0), settings);
+        }
+
+        PhaseResult upload = null;
+        if (mRunning) {
+            upload = runThroughputPhase(false, servers, idleLatency,
+                    settings.getPhaseBudgetBytes(false, download != null ? download.getBytesTransferred() : 0),
+                    settings);
+        }
+
+        settings.mTransport.closeIdleConnections();
+
+        SpeedTestResult result = new SpeedTestResult(startTimeMs,
+                servers,
+                connectionTimings,
+                idleLatency,
+                download,
+                upload,
+                !mRunning);
+
+        LOG.log(Level.FINE, "Test result " + result);
+        mResult = result;
+
+        listener = mListener;
+        if (listener != null) {
+            listener.onTestCompleted(result);
+        }
+
+        return result;
+    }
+
+    private List<TestServer> runServerSelectionPhase(List<TestServer> candidates, Settings settings) {
+
+        if (candidates.size() == 1) {
+            return candidates;
+        }
+
+        List<ServerLatency> ranking;
+        try {
+            ranking = new ServerSelector(settings.mServerSelectionBudgetInMs).rank(candidates);
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            mRunning = false;
+            return candidates;
+        }
+
+        // Keep the reachable ones. If none answered in time, go with the
+        // first one; the latency phase will tell.
+        List<ServerLatency> selected = new ArrayList<>();
+        for (ServerLatency serverLatency : ranking) {
+            if (serverLatency.isReachable() && selected.size() < settings.mSelectedServerCount) {
+                selected.add(serverLatency);
+            }
+        }
+
+        List<TestServer> servers = new ArrayList<>();
+        for (ServerLatency serverLatency : selected) {
+            servers.add(serverLatency.getServer());
+        }
+        if (servers.isEmpty()) {
+            servers.add(candidates.get(0));
+        }
+
+        LOG.log(Level.FINE, "Server ranking " + ranking);
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onServerSelectionCompleted(selected);
+        }
+
+        return servers;
+    }
+
+    // Returns null if cancelled.
+    private LatencyResult runLatencyPhase(TestServer server) {
+
+        LatencyResult result = new LatencyProbe(server.getPingUrl()).measure(NUMBER_OF_PROBES,
+                TIME_BETWEEN_PROBES_IN_MS,
+                new LatencyProbe.Listener() {
+                    @Override
+                    public boolean isRunning() {
+                        return mRunning;
+                    }
+
+                    @Override
+                    public void onProbe(long rttNs) {
+                        Listener listener = mListener;
+                        if (listener != null) {
+                            listener.onLatencyProgress(rttNs / 1000000f);
+                        }
+                    }
+                });
+
+        // Cancelled or interrupted, no point going on.
+        if (result == null || !mRunning) {
+            mRunning = false;
+            return null;
+        }
+
+        LOG.log(Level.FINE, "Latency result " + result);
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLatencyCompleted(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param budgetBytes Bytes the phase stops at, Long.MAX_VALUE for no limit.
+     */
+    private PhaseResult runThroughputPhase(boolean download,
+                                           List<TestServer> servers,
+                                           LatencyResult idleLatency,
+                                           long budgetBytes,
+                                           Settings settings) {
+
+        // Nothing of the budget left, not even for connecting.
+        if (budgetBytes <= 0) {
+            return skipThroughputPhase(download, servers, idleLatency);
+        }
+
+        // Null for no client load.
+        ResourceProbe resourceProbe = settings.mResourceProbe;
+        Transport transport = settings.mTransport;
+        DataBudget dataBudget = settings.mDataBudget;
+        int streamCount = download ? settings.mDownloadStreamCount : settings.mUploadStreamCount;
+        int maxStreamCount = download ? settings.mMaxDownloadStreamCount : settings.mMaxUploadStreamCount;
+        TerminationPolicy terminationPolicy = download ?
+                settings.mDownloadTerminationPolicy : settings.mUploadTerminationPolicy;
+        if (dataBudget != null) {
+            maxStreamCount = dataBudget.getMaxStreamCount(budgetBytes, maxStreamCount);
+            streamCount = Math.min(streamCount, maxStreamCount);
+            terminationPolicy = dataBudget.getTerminationPolicy(download);
+        }
+
+        TransferEngine transferEngine;
+        long timeForPublishingResultsNs;
+
+        if (download) {
+            transferEngine = new DownloadEngine(servers,
+                    transport,
+                    streamCount,
+                    maxStreamCount);
+            timeForPublishingResultsNs = TIME_FOR_PUBLISHING_DOWNLOAD_RESULTS_IN_NS;
+        } else {
+            transferEngine = new UploadEngine(servers,
+                    transport,
+                    streamCount,
+                    maxStreamCount);
+            timeForPublishingResultsNs = TIME_FOR_PUBLISHING_UPLOAD_RESULTS_IN_NS;
+        }
+
+        transferEngine.setResourceProbe(resourceProbe);
+
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        TerminationPolicy.Monitor monitor = terminationPolicy.newMonitor();
+
+        // Upload streams count what the kernel buffered, not what got out.
+        SentBytesEstimator sentBytes = download ? null : new SentBytesEstimator(transferEngine);
+        LoadedLatencyProber prober = new LoadedLatencyProber(servers.get(0).getPingUrl());
+
+        // Every sample, per stream, for looking back at the phase. Sized for
+        // the longest phase, the loop sleeps at least an interval per sample.
+        ThroughputTimeline timeline = new ThroughputTimeline(transferEngine.getMaxStreamCount(),
+                (int) (terminationPolicy.getMaxDurationNs() / (SAMPLING_INTERVAL_IN_MS * 1000000L)) + 1);
+
+        // Only sampled for the breakdown, the aggregate drives the phase.
+        ThroughputEstimator[] serverEstimators = new ThroughputEstimator[servers.size()];
+        for (int i = 0; i < serverEstimators.length; i++) {
+            serverEstimators[i] = new ThroughputEstimator();
+        }
+        PhaseResult.StopReason stopReason = null;
+
+        long timeElapsedNs = 0;
+        long startTimeNs = 0;
+        ResourceSnapshot startResources = null;
+
+        try {
+
+            // While the phase still shows as preparing, so that its streams
+            // start out on open connections and the clock leaves out setup.
+            preconnect(download, servers, streamCount, transport);
+            if (resourceProbe != null) {
+                startResources = new ResourceSnapshot(resourceProbe, transport, mUiCpuTimeNs.get());
+            }
+            startTimeNs = System.nanoTime();
+
+            transferEngine.start();
+            prober.start();
+
+            long lastResultPublishTimeNs = 0;
+            long lastStreamAdjustmentTimeNs = 0;
+
+            while (stopReason == null) {
+
+                Thread.sleep(SAMPLING_INTERVAL_IN_MS);
+
+                long nowNs = System.nanoTime();
+                timeElapsedNs = nowNs - startTimeNs;
+                timeline.addSample(timeElapsedNs, transferEngine);
+                if (sentBytes != null) {
+                    sentBytes.addSample(nowNs);
+                    if (sentBytes.isSettled()) {
+                        estimator.addSample(nowNs, sentBytes.getBytes());
+                        for (int i = 0; i < serverEstimators.length; i++) {
+                            serverEstimators[i].addSample(nowNs, sentBytes.getBytes(i));
+                        }
+                    }
+                } else {
+                    estimator.addSample(nowNs, transferEngine.getBytesTransferred());
+                    for (int i = 0; i < serverEstimators.length; i++) {
+                        serverEstimators[i].addSample(nowNs, transferEngine.getBytesTransferred(i));
+                    }
+                }
+
+                // Check for recent publishing time and avoid frequent update.
+                if (lastResultPublishTimeNs == 0 ||
+                    (timeElapsedNs - lastResultPublishTimeNs) > timeForPublishingResultsNs) {
+
+                    lastResultPublishTimeNs = timeElapsedNs;
+                    publishProgress(download, estimator.getSpeedInMbps(DISPLAY_WINDOW_IN_NS));
+                }
+
+                // Let the engine open more streams while it still pays off,
+                // judged over a whole window of settled upload samples.
+                if (sentBytes != null && !sentBytes.isSettled()) {
+                    lastStreamAdjustmentTimeNs = timeElapsedNs;
+                } else if ((timeElapsedNs - lastStreamAdjustmentTimeNs) > TIME_FOR_ADJUSTING_STREAMS_IN_NS) {
+                    lastStreamAdjustmentTimeNs = timeElapsedNs;
+                    transferEngine.adjustStreamCount(
+                            estimator.getSpeedInMbps(TIME_FOR_ADJUSTING_STREAMS_IN_NS));
+                }
+
+                if (!mRunning) {
+                    stopReason = PhaseResult.StopReason.CANCELLED;
+                } else if (transferEngine.hasFailed()) {
+                    stopReason = PhaseResult.StopReason.FAILED;
+                } else if (transferEngine.getBytesTransferred() >= budgetBytes) {
+                    // Overshoots by at most a sample's worth plus the buffers in flight.
+                    stopReason = PhaseResult.StopReason.BUDGET_EXHAUSTED;
+                } else {
+                    stopReason = monitor.check(timeElapsedNs, estimator);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            mRunning = false;
+            stopReason = PhaseResult.StopReason.CANCELLED;
+        } finally {
+            transferEngine.stop();
+            prober.stopProbing();
+        }
+
+        ClientLoad clientLoad = null;
+        if (startResources != null) {
+            clientLoad = getClientLoad(transferEngine, startResources, resourceProbe, transport, timeElapsedNs);
+            if (Thread.currentThread().isInterrupted()) {
+                stopReason = PhaseResult.StopReason.CANCELLED;
+            }
+        }
+
+        PhaseResult result = new PhaseResult(estimator.getAverageSpeedInMbps(),
+                stopReason,
+                transferEngine.getBytesTransferred(),
+                timeElapsedNs,
+                transferEngine.getStreamCount(),
+                monitor.getDeviation(),
+                prober.getResult(),
+                idleLatency,
+                getServerBreakdown(transferEngine, serverEstimators),
+                timeline,
+                clientLoad);
+
+        completeThroughputPhase(download, result);
+        return result;
+    }
+
+    // Reports a phase the budget left no bytes for as exhausted straight away.
+    private PhaseResult skipThroughputPhase(boolean download,
+                                            List<TestServer> servers,
+                                            LatencyResult idleLatency) {
+
+        List<ServerThroughput> breakdown = new ArrayList<>(servers.size());
+        for (TestServer server : servers) {
+            breakdown.add(new ServerThroughput(server, 0, 0, 0));
+        }
+
+        PhaseResult result = new PhaseResult(0,
+                PhaseResult.StopReason.BUDGET_EXHAUSTED,
+                0,
+                0,
+                0,
+                Float.NaN,
+                LatencyResult.fromSamples(new long[0], 0, 0),
+                idleLatency,
+                breakdown,
+                new ThroughputTimeline(1, 1),
+                null);
+
+        completeThroughputPhase(download, result);
+        return result;
+    }
+
+    private void completeThroughputPhase(boolean download, PhaseResult result) {
+        LOG.log(Level.FINE, (download ? "Download" : "Upload") + " result " + result);
+
+        // Settle on the average past the ramp-up.
+        publishProgress(download, result.getSpeedInMbps());
+
+        Listener listener = mListener;
+        if (listener != null) {
+            if (download) {
+                listener.onDownloadCompleted(result);
+            } else {
+                listener.onUploadCompleted(result);
+            }
+        }
+    }
+
+    private static void preconnect(boolean download, List<TestServer> servers, int streamCount, Transport transport)
+            throws InterruptedException {
+
+        List<URL> urls = new ArrayList<>(servers.size());
+        for (TestServer server : servers) {
+            urls.add(TransferEngine.toUrl(download ? server.getDownloadUrl() : server.getUploadUrl()));
+        }
+
+        // The engine deals its first streams out over the servers in turn.
+        int connectionsPerServer = (Math.max(streamCount, servers.size()) + servers.size() - 1) / servers.size();
+        new ConnectionManager(transport).preconnect(urls, connectionsPerServer);
+    }
+
+    // Waits for the streams to tell their cpu time first.
+    private ClientLoad getClientLoad(TransferEngine transferEngine,
+                                     ResourceSnapshot startResources,
+                                     ResourceProbe resourceProbe,
+                                     Transport transport,
+                                     long durationNs) {
+
+        try {
+            if (!transferEngine.awaitStreams(STREAM_STOP_TIMEOUT_IN_MS)) {
+                LOG.log(Level.FINE, "Streams still running, their cpu time is missing");
+            }
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            mRunning = false;
+        }
+
+        ResourceSnapshot endResources = new ResourceSnapshot(resourceProbe, transport, mUiCpuTimeNs.get());
+
+        long[] streamCpuTimeNs = new long[transferEngine.getStreamCount()];
+        for (int i = 0; i < streamCpuTimeNs.length; i++) {
+            streamCpuTimeNs[i] = transferEngine.getStreamCpuTimeNs(i);
+        }
+
+        return new ClientLoad(durationNs,
+                Runtime.getRuntime().availableProcessors(),
+                ResourceSnapshot.delta(startResources.mProcessCpuTimeNs, endResources.mProcessCpuTimeNs),
+                streamCpuTimeNs,
+                ResourceSnapshot.delta(startResources.mThreadCpuTimeNs, endResources.mThreadCpuTimeNs),
+                ResourceSnapshot.delta(startResources.mTransportCpuTimeNs, endResources.mTransportCpuTimeNs),
+                endResources.mUiCpuTimeNs - startResources.mUiCpuTimeNs,
+                ResourceSnapshot.delta(startResources.mAllocatedBytes, endResources.mAllocatedBytes),
+                ResourceSnapshot.delta(startResources.mGcCount, endResources.mGcCount),
+                ResourceSnapshot.delta(startResources.mGcPauseTimeMs, endResources.mGcPauseTimeMs),
+                transferEngine.getIoCallCount(),
+                transferEngine.getBytesTransferred());
+    }
+
+    private static List<ServerThroughput> getServerBreakdown(TransferEngine transferEngine,
+                                                             ThroughputEstimator[] serverEstimators) {
+
+        List<TestServer> servers = transferEngine.getServers();
+        List<ServerThroughput> breakdown = new ArrayList<>(servers.size());
+        for (int i = 0; i < servers.size(); i++) {
+            breakdown.add(new ServerThroughput(servers.get(i),
+                    serverEstimators[i].getAverageSpeedInMbps(),
+                    transferEngine.getBytesTransferred(i),
+                    transferEngine.getStreamCount(i)));
+        }
+        return breakdown;
+    }
+
+    private void publishProgress(boolean download, float speedInMbps) {
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+
+        if (download) {
+            listener.onDownloadProgress(speedInMbps);
+        } else {
+            listener.onUploadProgress(speedInMbps);
+        }
+    }
+
+    // What a test runs on, copied from the engine as it starts.
+    private static class Settings {
+
+        private final TestServer mServer;
+        private final ServerRegistry mServerRegistry;
+        private final int mSelectedServerCount;
+        private final long mServerSelectionBudgetInMs;
+        private final int mDownloadStreamCount;
+        private final int mMaxDownloadStreamCount;
+        private final int mUploadStreamCount;
+        private final int mMaxUploadStreamCount;
+        private final TerminationPolicy mDownloadTerminationPolicy;
+        private final TerminationPolicy mUploadTerminationPolicy;
+        private final DataBudget mDataBudget;
+        private final long mByteLimit;
+        private final Transport mTransport;
+        private final ResourceProbe mResourceProbe;
+
+        Settings(SpeedTestEngine engine) {
+            mServer = engine.mServer;
+            mServerRegistry = engine.mServerRegistry;
+            mSelectedServerCount = engine.mSelectedServerCount;
+            mServerSelectionBudgetInMs = engine.mServerSelectionBudgetInMs;
+            mDownloadStreamCount = engine.mDownloadStreamCount;
+            mMaxDownloadStreamCount = engine.mMaxDownloadStreamCount;
+            mUploadStreamCount = engine.mUploadStreamCount;
+            mMaxUploadStreamCount = engine.mMaxUploadStreamCount;
+            mDownloadTerminationPolicy = engine.mDownloadTerminationPolicy;
+            mUploadTerminationPolicy = engine.mUploadTerminationPolicy;
+            mDataBudget = engine.mDataBudget;
+            mByteLimit = engine.mByteLimit;
+            mTransport = engine.mTransport;
+            mResourceProbe = engine.mResourceProbe;
+        }
+
+        // Closest servers first, never empty.
+        // The registry's servers, or else the one set up.
+        List<TestServer> getCandidateServers() {
+            return mServerRegistry != null ? mServerRegistry.getServers() : Collections.singletonList(mServer);
+        }
+
+        // Long.MAX_VALUE if the test has neither a budget nor a byte limit.
+        long getPhaseBudgetBytes(boolean download, long bytesUsed) {
+            long budgetBytes = mDataBudget != null ? mDataBudget.getPhaseBytes(download, bytesUsed) : Long.MAX_VALUE;
+            long limitBytes = mByteLimit != Long.MAX_VALUE ?
+                    DataBudget.getPhaseBytes(mByteLimit, download, bytesUsed) : Long.MAX_VALUE;
+            return Math.min(budgetBytes, limitBytes);
+        }
+    }
+
+    // Running totals of a resource probe, taken on the thread running the test.
+    private static class ResourceSnapshot {
+
+        private final long mThreadCpuTimeNs;
+
+        private final long mProcessCpuTimeNs;
+
+        private final long mAllocatedBytes;
+
+        private final long mGcCount;
+
+        private final long mGcPauseTimeMs;
+
+        private final long mTransportCpuTimeNs;
+
+        private final long mUiCpuTimeNs;
+
+        ResourceSnapshot(ResourceProbe resourceProbe, Transport transport, long uiCpuTimeNs) {
+            mThreadCpuTimeNs = resourceProbe.getThreadCpuTimeNs();
+            mProcessCpuTimeNs = resourceProbe.getProcessCpuTimeNs();
+            mAllocatedBytes = resourceProbe.getAllocatedBytes();
+            mGcCount = resourceProbe.getGcCount();
+            mGcPauseTimeMs = resourceProbe.getGcPauseTimeMs();
+            mTransportCpuTimeNs = transport.getThreadCpuTimeNs();
+            mUiCpuTimeNs = uiCpuTimeNs;
+        }
+
+        // -1 if the probe could not tell either end.
+        static long delta(long start, long end) {
+            return start < 0 || end < 0 ? -1 : end - start;
+        }
+    }
+
+    /**
+     * Hears about the progress of a test, on the thread running the test.
+     */
+    public interface Listener {
+
+        void onTestStarted();
+
+        /**
+         * Only called when the test picked its servers from a registry.
+         *
+         * @param selected Servers picked, closest first. Empty if none of
+         * them answered in time.
+         */
+        void onServerSelectionCompleted(List<ServerLatency> selected);
+
+        void onLatencyProgress(float rttInMs);
+        void onLatencyCompleted(LatencyResult result);
+
+        void onDownloadProgress(float downloadSpeedInMbps);
+        void onDownloadCompleted(PhaseResult result);
+
+        void onUploadProgress(float uploadSpeedInMbps);
+        void onUploadCompleted(PhaseResult result);
+
+        void onTestCompleted(SpeedTestResult result);
+    }
+}
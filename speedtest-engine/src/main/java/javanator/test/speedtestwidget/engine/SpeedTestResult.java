@@ -0,0 +1,103 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of one whole speed test: idle latency, download and upload.
+ */
+public class SpeedTestResult {
+
+    private final long mStartTimeMs;
+
+    private final List<TestServer> mServers;
+
+    private final ConnectionTimings mConnectionTimings;
+
+    private final LatencyResult mIdleLatency;
+
+    private final PhaseResult mDownload;
+
+    private final PhaseResult mUpload;
+
+    private final boolean mCancelled;
+
+    public SpeedTestResult(long startTimeMs,
+                           List<TestServer> servers,
+                           ConnectionTimings connectionTimings,
+                           LatencyResult idleLatency,
+                           PhaseResult download,
+                           PhaseResult upload,
+                           boolean cancelled) {
+
+        mStartTimeMs = startTimeMs;
+        mServers = Collections.unmodifiableList(servers);
+        mConnectionTimings = connectionTimings;
+        mIdleLatency = idleLatency;
+        mDownload = download;
+        mUpload = upload;
+        mCancelled = cancelled;
+    }
+
+    /**
+     * Wall clock time the test started at, in ms since the epoch.
+     */
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    /**
+     * Servers the test ran against, the closest first.
+     */
+    public List<TestServer> getServers() {
+        return mServers;
+    }
+
+    /**
+     * Setup of a connection to the closest server, null if it could not be
+     * timed or the test got cancelled before.
+     */
+    public ConnectionTimings getConnectionTimings() {
+        return mConnectionTimings;
+    }
+
+    /**
+     * Latency on the idle link, null if the test got cancelled before.
+     */
+    public LatencyResult getIdleLatency() {
+        return mIdleLatency;
+    }
+
+    /**
+     * Download phase, null if the test got cancelled before.
+     */
+    public PhaseResult getDownload() {
+        return mDownload;
+    }
+
+    /**
+     * Upload phase, null if the test got cancelled before.
+     */
+    public PhaseResult getUpload() {
+        return mUpload;
+    }
+
+    /**
+     * True if the client rather than the link likely capped the rate of
+     * either phase.
+     */
+    public boolean isCpuBound() {
+        return (mDownload != null && mDownload.isCpuBound()) ||
+                (mUpload != null && mUpload.isCpuBound());
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "Servers " + mServers + "; connection " + mConnectionTimings + "; latency " + mIdleLatency + "; download " + mDownload + "; upload " + mUpload +
+                (mCancelled ? "; cancelled" : "");
+    }
+}
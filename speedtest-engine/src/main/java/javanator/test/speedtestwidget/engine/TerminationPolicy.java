@@ -0,0 +1,174 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Decides when a download or upload phase has measured enough.
+ *
+ * A phase runs for at least the min duration and at most the max duration.
+ * In between it stops as soon as the sliding window rate has stayed inside
+ * the confidence band around its own mean for a whole stability window,
+ * i.e. max |rate - mean| / mean &lt;= confidence band.
+ */
+public class TerminationPolicy {
+
+    /*
+     * Time the rate has to stay inside the band for the phase to stop, by
+     * default.
+     */
+    private static final long DEFAULT_STABILITY_WINDOW_IN_MS = 2000;
+
+    /*
+     * Rate samples checked per stability window. Each sample averages the
+     * rate over half the window.
+     */
+    private static final int CHECKS_PER_STABILITY_WINDOW = 8;
+
+    public static final TerminationPolicy DEFAULT_DOWNLOAD_POLICY =
+            new TerminationPolicy(3000, 15000, 0.05f);
+
+    public static final TerminationPolicy DEFAULT_UPLOAD_POLICY =
+            new TerminationPolicy(3000, 20000, 0.05f);
+
+    private final long mMinDurationNs;
+
+    private final long mMaxDurationNs;
+
+    private final float mConfidenceBand;
+
+    // Window over which the rate samples checked for stability get averaged.
+    private final long mRateWindowNs;
+
+    // How often a rate sample is taken for the stability check.
+    private final long mCheckIntervalNs;
+
+    /**
+     * @param minDurationInMs Phase never stops before this, unless cancelled.
+     * @param maxDurationInMs Phase always stops at this.
+     * @param confidenceBand Largest relative deviation from the mean rate, e.g.
+     *                       0.05 for 5%, still counted as converged.
+     */
+    public TerminationPolicy(long minDurationInMs, long maxDurationInMs, float confidenceBand) {
+        this(minDurationInMs, maxDurationInMs, confidenceBand, DEFAULT_STABILITY_WINDOW_IN_MS);
+    }
+
+    /**
+     * @param stabilityWindowInMs Time the rate has to stay inside the band
+     *                            for the phase to stop. Shorter windows
+     *                            converge on less data, with less certainty.
+     */
+    public TerminationPolicy(long minDurationInMs,
+                             long maxDurationInMs,
+                             float confidenceBand,
+                             long stabilityWindowInMs) {
+
+        if (minDurationInMs < 0 || maxDurationInMs < minDurationInMs) {
+            throw new IllegalArgumentException("Invalid durations " +
+                    minDurationInMs + "/" + maxDurationInMs);
+        }
+
+        if (confidenceBand <= 0) {
+            throw new IllegalArgumentException("Invalid confidence band " + confidenceBand);
+        }
+
+        if (stabilityWindowInMs < CHECKS_PER_STABILITY_WINDOW) {
+            throw new IllegalArgumentException("Invalid stability window " + stabilityWindowInMs);
+        }
+
+        mMinDurationNs = minDurationInMs * 1000000L;
+        mMaxDurationNs = maxDurationInMs * 1000000L;
+        mConfidenceBand = confidenceBand;
+        mCheckIntervalNs = stabilityWindowInMs * 1000000L / CHECKS_PER_STABILITY_WINDOW;
+        mRateWindowNs = stabilityWindowInMs * 1000000L / 2;
+    }
+
+    public float getConfidenceBand() {
+        return mConfidenceBand;
+    }
+
+    public long getMaxDurationNs() {
+        return mMaxDurationNs;
+    }
+
+    /**
+     * Returns a monitor tracking one phase against this policy.
+     */
+    public Monitor newMonitor() {
+        return new Monitor();
+    }
+
+    /**
+     * Tracks one phase. Must be fed from the thread feeding the estimator.
+     */
+    public class Monitor {
+
+        // Latest rate samples, oldest overwritten first.
+        private final float[] mRates = new float[CHECKS_PER_STABILITY_WINDOW];
+
+        private int mRateCount = 0;
+
+        private long mLastCheckNs = 0;
+
+        // Relative deviation seen at the latest check, over what there was
+        // of the window.
+        private float mDeviation = Float.NaN;
+
+        /**
+         * Checks the phase after a new sample went into the estimator.
+         *
+         * @param elapsedNs Time since the phase started.
+         * @return Why the phase should stop, null to keep going.
+         */
+        public PhaseResult.StopReason check(long elapsedNs, ThroughputEstimator estimator) {
+
+            if (elapsedNs >= mMaxDurationNs) {
+                return PhaseResult.StopReason.MAX_DURATION;
+            }
+
+            if (!estimator.isRampUpComplete() ||
+                elapsedNs - mLastCheckNs < mCheckIntervalNs) {
+                return null;
+            }
+
+            mLastCheckNs = elapsedNs;
+            mRates[mRateCount % mRates.length] = estimator.getSpeedInMbps(mRateWindowNs);
+            mRateCount++;
+
+            // Kept from two samples on, for phases stopped before a whole
+            // window, but only a whole one can converge.
+            int rateCount = Math.min(mRateCount, mRates.length);
+            if (rateCount < 2) {
+                return null;
+            }
+
+            float mean = 0;
+            for (int i = 0; i < rateCount; i++) {
+                mean += mRates[i];
+            }
+            mean /= rateCount;
+
+            if (mean <= 0) {
+                return null;
+            }
+
+            float maxDeviation = 0;
+            for (int i = 0; i < rateCount; i++) {
+                maxDeviation = Math.max(maxDeviation, Math.abs(mRates[i] - mean) / mean);
+            }
+            mDeviation = maxDeviation;
+
+            if (rateCount == mRates.length && elapsedNs >= mMinDurationNs && maxDeviation <= mConfidenceBand) {
+                return PhaseResult.StopReason.CONVERGED;
+            }
+
+            return null;
+        }
+
+        /**
+         * Largest relative deviation from the mean rate over the latest
+         * stability window, or over the part of it seen so far. NaN till two
+         * rate samples have been taken.
+         */
+        public float getDeviation() {
+            return mDeviation;
+        }
+    }
+}
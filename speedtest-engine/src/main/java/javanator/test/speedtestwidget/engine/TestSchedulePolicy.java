@@ -0,0 +1,212 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Decides whether an unattended test may run now and when to try next.
+ *
+ * Tests are skipped on low battery unless charging, on metered or roaming
+ * connections unless allowed, and once the day's tests have moved the
+ * daily byte cap. The interval doubles with every failed test in a row, up
+ * to {@link #MAX_BACKOFF_IN_MS}.
+ */
+public class TestSchedulePolicy {
+
+    /*
+     * Longest the backoff after failures may grow to.
+     */
+    public static final long MAX_BACKOFF_IN_MS = 24 * 60 * 60 * 1000L;
+
+    /*
+     * Hourly, on unmetered networks only, 50 MB a day.
+     */
+    public static final TestSchedulePolicy DEFAULT_POLICY =
+            new TestSchedulePolicy(60 * 60 * 1000L, 15 * 60 * 1000L, 0.3f, false, false, 50L * 1000 * 1000);
+
+    /**
+     * Why a test may or may not run.
+     */
+    public enum Verdict {
+        RUN,
+        NO_NETWORK,
+        LOW_BATTERY,
+        METERED,
+        ROAMING,
+        DAILY_CAP_REACHED,
+        // A network change came too soon after the last test.
+        TOO_SOON
+    }
+
+    private final long mIntervalInMs;
+
+    private final long mMinGapInMs;
+
+    private final float mMinBatteryLevel;
+
+    private final boolean mMeteredAllowed;
+
+    private final boolean mRoamingAllowed;
+
+    private final long mDailyByteCap;
+
+    /**
+     * @param intervalInMs Time between tests while they succeed.
+     * @param minGapInMs Least time between tests started by network changes.
+     * @param minBatteryLevel Battery level, 0 to 1, below which tests wait
+     * for the charger.
+     * @param dailyByteCap Bytes the tests of a day may move.
+     */
+    public TestSchedulePolicy(long intervalInMs,
+                              long minGapInMs,
+                              float minBatteryLevel,
+                              boolean meteredAllowed,
+                              boolean roamingAllowed,
+                              long dailyByteCap) {
+
+        if (intervalInMs <= 0 || minGapInMs < 0 || dailyByteCap <= 0) {
+            throw new IllegalArgumentException("Invalid schedule " + intervalInMs + "ms/" +
+                    minGapInMs + "ms/" + dailyByteCap + " bytes");
+        }
+
+        mIntervalInMs = intervalInMs;
+        mMinGapInMs = minGapInMs;
+        mMinBatteryLevel = minBatteryLevel;
+        mMeteredAllowed = meteredAllowed;
+        mRoamingAllowed = roamingAllowed;
+        mDailyByteCap = dailyByteCap;
+    }
+
+    /**
+     * @param networkChange True if a network change rather than the timer
+     * asks for the test.
+     */
+    public Verdict decide(DeviceState state, boolean networkChange) {
+        if (!state.isConnected()) {
+            return Verdict.NO_NETWORK;
+        }
+        if (networkChange && state.getTimeSinceLastTestInMs() < mMinGapInMs) {
+            return Verdict.TOO_SOON;
+        }
+        if (!state.isCharging() && state.getBatteryLevel() < mMinBatteryLevel) {
+            return Verdict.LOW_BATTERY;
+        }
+        if (state.isRoaming() && !mRoamingAllowed) {
+            return Verdict.ROAMING;
+        }
+        if (state.isMetered() && !mMeteredAllowed) {
+            return Verdict.METERED;
+        }
+        if (state.getBytesToday() >= mDailyByteCap) {
+            return Verdict.DAILY_CAP_REACHED;
+        }
+        return Verdict.RUN;
+    }
+
+    /**
+     * Time till the next test, the interval doubled for every failed test
+     * in a row.
+     */
+    public long getNextDelayInMs(int consecutiveFailures) {
+        long delayInMs = mIntervalInMs;
+        for (int i = 0; i < consecutiveFailures && delayInMs < MAX_BACKOFF_IN_MS; i++) {
+            delayInMs *= 2;
+        }
+        return Math.min(delayInMs, MAX_BACKOFF_IN_MS);
+    }
+
+    /**
+     * True if the test measured nothing worth keeping: cancelled, or
+     * neither phase got a rate.
+     */
+    public static boolean isFailure(SpeedTestResult result) {
+        return result.isCancelled() ||
+                (isFailure(result.getDownload()) && isFailure(result.getUpload()));
+    }
+
+    private static boolean isFailure(PhaseResult result) {
+        return result == null || result.getStopReason() == PhaseResult.StopReason.FAILED;
+    }
+
+    public long getIntervalInMs() {
+        return mIntervalInMs;
+    }
+
+    public long getDailyByteCap() {
+        return mDailyByteCap;
+    }
+
+    /**
+     * What the policy looks at, gathered by the platform side.
+     */
+    public static class DeviceState {
+
+        private final boolean mConnected;
+
+        private final boolean mMetered;
+
+        private final boolean mRoaming;
+
+        private final float mBatteryLevel;
+
+        private final boolean mCharging;
+
+        private final long mBytesToday;
+
+        private final long mTimeSinceLastTestInMs;
+
+        /**
+         * @param batteryLevel 0 to 1.
+         * @param bytesToday Bytes the tests of the day have moved so far.
+         */
+        public DeviceState(boolean connected,
+                           boolean metered,
+                           boolean roaming,
+                           float batteryLevel,
+                           boolean charging,
+                           long bytesToday,
+                           long timeSinceLastTestInMs) {
+
+            mConnected = connected;
+            mMetered = metered;
+            mRoaming = roaming;
+            mBatteryLevel = batteryLevel;
+            mCharging = charging;
+            mBytesToday = bytesToday;
+            mTimeSinceLastTestInMs = timeSinceLastTestInMs;
+        }
+
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        public boolean isRoaming() {
+            return mRoaming;
+        }
+
+        public float getBatteryLevel() {
+            return mBatteryLevel;
+        }
+
+        public boolean isCharging() {
+            return mCharging;
+        }
+
+        public long getBytesToday() {
+            return mBytesToday;
+        }
+
+        public long getTimeSinceLastTestInMs() {
+            return mTimeSinceLastTestInMs;
+        }
+
+        @Override
+        public String toString() {
+            return (mConnected ? "connected" : "offline") + (mMetered ? ", metered" : "") +
+                    (mRoaming ? ", roaming" : "") + ", battery " + mBatteryLevel +
+                    (mCharging ? " charging" : "") + ", " + mBytesToday + " bytes today, last test " +
+                    mTimeSinceLastTestInMs + "ms ago";
+        }
+    }
+}
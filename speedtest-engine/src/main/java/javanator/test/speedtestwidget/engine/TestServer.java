@@ -0,0 +1,76 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Host a test runs against: where to ping, what to download and where to
+ * upload to.
+ */
+public class TestServer {
+
+    /*
+     * Server tests run against unless told otherwise.
+     */
+    public static final TestServer DEFAULT = new TestServer("rawtooth",
+            SpeedTestEngine.DEFAULT_PING_URL,
+            SpeedTestEngine.DEFAULT_DOWNLOAD_URL,
+            SpeedTestEngine.DEFAULT_DOWNLOAD_OBJECT_SIZE_IN_BYTES,
+            SpeedTestEngine.DEFAULT_UPLOAD_URL);
+
+    private final String mName;
+
+    private final String mPingUrl;
+
+    private final String mDownloadUrl;
+
+    private final long mDownloadObjectSizeInBytes;
+
+    private final String mUploadUrl;
+
+    /**
+     * @param name Short name, e.g. the city the server is in.
+     * @param pingUrl Url the latency probes send HEAD requests to.
+     * @param downloadUrl Object the download streams read byte ranges of.
+     * @param downloadObjectSizeInBytes Size of that object.
+     * @param uploadUrl Url the upload streams post to.
+     */
+    public TestServer(String name,
+                      String pingUrl,
+                      String downloadUrl,
+                      long downloadObjectSizeInBytes,
+                      String uploadUrl) {
+
+        if (downloadObjectSizeInBytes <= 0) {
+            throw new IllegalArgumentException("Invalid download object size " + downloadObjectSizeInBytes);
+        }
+
+        mName = name;
+        mPingUrl = pingUrl;
+        mDownloadUrl = downloadUrl;
+        mDownloadObjectSizeInBytes = downloadObjectSizeInBytes;
+        mUploadUrl = uploadUrl;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getPingUrl() {
+        return mPingUrl;
+    }
+
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    public long getDownloadObjectSizeInBytes() {
+        return mDownloadObjectSizeInBytes;
+    }
+
+    public String getUploadUrl() {
+        return mUploadUrl;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
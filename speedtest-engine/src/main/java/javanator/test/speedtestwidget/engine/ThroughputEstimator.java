@@ -0,0 +1,264 @@
+package javanator.test.speedtestwidget.engine;
+
+/**
+ * Estimates throughput from (timestamp, total bytes) samples fed by the
+ * download and upload loops.
+ *
+ * Samples go into a fixed size ring buffer of primitives, so feeding the
+ * estimator never allocates. Besides the instantaneous rate it reports the
+ * rate over a sliding window, an exponentially weighted moving average and
+ * the average since the TCP ramp-up got over.
+ *
+ * The ramp-up is detected on the fly: it is over once the rate over the
+ * last {@link #RAMP_UP_WINDOW_IN_NS} stops growing by more than
+ * {@link #RAMP_UP_GROWTH_THRESHOLD} from one window to the next, or after
+ * {@link #MAX_RAMP_UP_TIME_IN_NS} at the latest. Samples from before that
+ * point are left out of every rate but the instantaneous one.
+ *
+ * All the methods must be called from one thread.
+ */
+public class ThroughputEstimator {
+
+    /*
+     * Samples kept by default. At one sample every 10ms it covers ten seconds.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /*
+     * Window the ramp-up detection compares rates over.
+     */
+    private static final long RAMP_UP_WINDOW_IN_NS = 250 * 1000000L;
+
+    /*
+     * Growth from one window to the next below which ramp-up counts as over.
+     */
+    private static final double RAMP_UP_GROWTH_THRESHOLD = 0.10;
+
+    /*
+     * Ramp-up counts as over after this long whatever the rate does.
+     */
+    private static final long MAX_RAMP_UP_TIME_IN_NS = 3000 * 1000000L;
+
+    /*
+     * Time constant of the moving average. A sample this old weighs 1/e of
+     * the newest one.
+     */
+    private static final double EWMA_TIME_CONSTANT_IN_NS = 500 * 1000000D;
+
+    private final long[] mTimestampsNs;
+
+    private final long[] mTotalBytes;
+
+    // Slot the next sample goes into.
+    private int mHead = 0;
+
+    // Samples in the ring, never more than its capacity.
+    private int mCount = 0;
+
+    private long mFirstTimestampNs;
+
+    private long mFirstTotalBytes;
+
+    private boolean mRampUpComplete = false;
+
+    private long mRampUpEndTimestampNs;
+
+    private long mRampUpEndTotalBytes;
+
+    // Window rate seen at the last ramp-up check, in bits per ns.
+    private double mLastRampUpWindowRate = 0;
+
+    private long mLastRampUpCheckNs;
+
+    // Moving average in bits per ns. Starts with the ramp-up over.
+    private double mEwmaRate = 0;
+
+    public ThroughputEstimator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ThroughputEstimator(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity should be at least 2, not " + capacity);
+        }
+
+        mTimestampsNs = new long[capacity];
+        mTotalBytes = new long[capacity];
+    }
+
+    /**
+     * Adds a sample. Timestamps must not go back in time and byte counts
+     * must not decrease.
+     *
+     * @param timestampNs System.nanoTime() of the sample.
+     * @param totalBytes Bytes transferred since the start of the phase.
+     */
+    public void addSample(long timestampNs, long totalBytes) {
+
+        if (mCount > 0) {
+            long lastTimestampNs = mTimestampsNs[index(mCount - 1)];
+            if (timestampNs <= lastTimestampNs) {
+                // Nothing to learn from a sample at the same instant.
+                return;
+            }
+
+            if (mRampUpComplete) {
+                double rate = (totalBytes - mTotalBytes[index(mCount - 1)]) * 8D /
+                        (timestampNs - lastTimestampNs);
+                double weight = 1 - Math.exp(-(timestampNs - lastTimestampNs) / EWMA_TIME_CONSTANT_IN_NS);
+                mEwmaRate += weight * (rate - mEwmaRate);
+            }
+        } else {
+            mFirstTimestampNs = timestampNs;
+            mFirstTotalBytes = totalBytes;
+            mLastRampUpCheckNs = timestampNs;
+        }
+
+        mTimestampsNs[mHead] = timestampNs;
+        mTotalBytes[mHead] = totalBytes;
+        mHead = (mHead + 1) % mTimestampsNs.length;
+        if (mCount < mTimestampsNs.length) {
+            mCount++;
+        }
+
+        if (!mRampUpComplete) {
+            checkRampUp(timestampNs, totalBytes);
+        }
+    }
+
+    private void checkRampUp(long timestampNs, long totalBytes) {
+
+        if (timestampNs - mFirstTimestampNs >= MAX_RAMP_UP_TIME_IN_NS) {
+            completeRampUp(timestampNs, totalBytes);
+            return;
+        }
+
+        if (timestampNs - mLastRampUpCheckNs < RAMP_UP_WINDOW_IN_NS) {
+            return;
+        }
+
+        mLastRampUpCheckNs = timestampNs;
+        double windowRate = getRate(RAMP_UP_WINDOW_IN_NS, false);
+
+        if (mLastRampUpWindowRate > 0 &&
+            windowRate < mLastRampUpWindowRate * (1 + RAMP_UP_GROWTH_THRESHOLD)) {
+            completeRampUp(timestampNs, totalBytes);
+        }
+        mLastRampUpWindowRate = windowRate;
+    }
+
+    private void completeRampUp(long timestampNs, long totalBytes) {
+        mRampUpComplete = true;
+        mRampUpEndTimestampNs = timestampNs;
+        mRampUpEndTotalBytes = totalBytes;
+        mEwmaRate = getRate(RAMP_UP_WINDOW_IN_NS, false);
+    }
+
+    public boolean isRampUpComplete() {
+        return mRampUpComplete;
+    }
+
+    /**
+     * Time the ramp-up took, zero while it is going on.
+     */
+    public long getRampUpTimeNs() {
+        return mRampUpComplete ? mRampUpEndTimestampNs - mFirstTimestampNs : 0;
+    }
+
+    /**
+     * Rate between the two latest samples.
+     */
+    public float getInstantaneousSpeedInMbps() {
+        if (mCount < 2) {
+            return 0;
+        }
+
+        int latest = index(mCount - 1);
+        int previous = index(mCount - 2);
+        return toMbps((mTotalBytes[latest] - mTotalBytes[previous]) * 8D /
+                (mTimestampsNs[latest] - mTimestampsNs[previous]));
+    }
+
+    /**
+     * Rate over the latest windowNs, or over as much of it as there are
+     * samples for. Before the ramp-up is over the whole window counts,
+     * afterwards only the part after the ramp-up.
+     */
+    public float getSpeedInMbps(long windowNs) {
+        return toMbps(getRate(windowNs, mRampUpComplete));
+    }
+
+    /**
+     * Exponentially weighted moving average of the rate since the ramp-up
+     * got over. Zero before that.
+     */
+    public float getEwmaSpeedInMbps() {
+        return toMbps(mEwmaRate);
+    }
+
+    /**
+     * Average rate from the end of the ramp-up till the latest sample. Till
+     * the ramp-up is over it is the average over all the samples.
+     */
+    public float getAverageSpeedInMbps() {
+        if (mCount < 2) {
+            return 0;
+        }
+
+        int latest = index(mCount - 1);
+        long startTimestampNs = mRampUpComplete ? mRampUpEndTimestampNs : mFirstTimestampNs;
+        long startTotalBytes = mRampUpComplete ? mRampUpEndTotalBytes : mFirstTotalBytes;
+
+        if (mTimestampsNs[latest] <= startTimestampNs) {
+            return getInstantaneousSpeedInMbps();
+        }
+
+        return toMbps((mTotalBytes[latest] - startTotalBytes) * 8D /
+                (mTimestampsNs[latest] - startTimestampNs));
+    }
+
+    // Rate in bits per ns over the window ending at the latest sample.
+    private double getRate(long windowNs, boolean skipRampUp) {
+        if (mCount < 2) {
+            return 0;
+        }
+
+        int latest = index(mCount - 1);
+        long windowStartNs = mTimestampsNs[latest] - windowNs;
+        if (skipRampUp && windowStartNs < mRampUpEndTimestampNs) {
+            windowStartNs = mRampUpEndTimestampNs;
+        }
+
+        // Binary search the oldest sample inside the window.
+        int low = 0;
+        int high = mCount - 1;
+        while (low < high) {
+            int mid = (low + high) / 2;
+            if (mTimestampsNs[index(mid)] >= windowStartNs) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        // Only the latest sample is in the window, fall back to the last interval.
+        if (high == mCount - 1) {
+            high = mCount - 2;
+        }
+
+        int oldest = index(high);
+        return (mTotalBytes[latest] - mTotalBytes[oldest]) * 8D /
+                (mTimestampsNs[latest] - mTimestampsNs[oldest]);
+    }
+
+    // Slot of the i-th oldest sample still in the ring.
+    private int index(int i) {
+        int capacity = mTimestampsNs.length;
+        return (mHead - mCount + i + capacity) % capacity;
+    }
+
+    // Bits per ns is Gbps.
+    private static float toMbps(double bitsPerNs) {
+        return (float) (bitsPerNs * 1000);
+    }
+}
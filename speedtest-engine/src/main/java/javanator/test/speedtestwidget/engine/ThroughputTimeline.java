@@ -0,0 +1,214 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Bytes each stream moved in every sampling interval of a phase, kept to
+ * see stalls, ramp-up or periodic throttling after the fact.
+ *
+ * All the memory is allocated up front for the longest phase the policy
+ * allows, so recording costs the phase loop a few array stores and no
+ * garbage. Samples past the capacity get dropped and the timeline marked
+ * truncated.
+ */
+public class ThroughputTimeline {
+
+    /*
+     * "STTL", start of the binary export.
+     */
+    private static final int MAGIC = 0x5354544C;
+
+    private static final int VERSION = 1;
+
+    private final int mStreamCapacity;
+
+    private final int mSampleCapacity;
+
+    // Time of each sample since the phase started.
+    private final long[] mTimesNs;
+
+    // Bytes per stream per interval, sample after sample.
+    private final int[] mStreamBytes;
+
+    // Counters of each stream at the previous sample.
+    private final long[] mLastStreamBytes;
+
+    private int mSampleCount = 0;
+
+    private int mStreamCount = 0;
+
+    private boolean mTruncated = false;
+
+    /**
+     * @param streamCapacity Most streams the phase may run.
+     * @param sampleCapacity Most samples kept.
+     */
+    public ThroughputTimeline(int streamCapacity, int sampleCapacity) {
+        if (streamCapacity < 1 || sampleCapacity < 1) {
+            throw new IllegalArgumentException("Invalid timeline capacity " +
+                    streamCapacity + "x" + sampleCapacity);
+        }
+
+        mStreamCapacity = streamCapacity;
+        mSampleCapacity = sampleCapacity;
+        mTimesNs = new long[sampleCapacity];
+        mStreamBytes = new int[sampleCapacity * streamCapacity];
+        mLastStreamBytes = new long[streamCapacity];
+    }
+
+    /**
+     * Records what each stream of the engine moved since the previous
+     * sample.
+     *
+     * @param elapsedNs Time since the phase started.
+     */
+    void addSample(long elapsedNs, TransferEngine engine) {
+        if (mSampleCount == mSampleCapacity) {
+            mTruncated = true;
+            return;
+        }
+
+        mTimesNs[mSampleCount] = elapsedNs;
+        int offset = mSampleCount * mStreamCapacity;
+        for (int stream = 0; stream < mStreamCapacity; stream++) {
+            long bytes = engine.getStreamBytesTransferred(stream);
+            if (bytes > 0 && stream >= mStreamCount) {
+                mStreamCount = stream + 1;
+            }
+            mStreamBytes[offset + stream] = (int) (bytes - mLastStreamBytes[stream]);
+            mLastStreamBytes[stream] = bytes;
+        }
+        mSampleCount++;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Streams which moved any bytes.
+     */
+    public int getStreamCount() {
+        return mStreamCount;
+    }
+
+    /**
+     * True if the phase ran past the capacity and the latest samples are
+     * missing.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Time of the sample since the phase started.
+     */
+    public long getTimeNs(int sample) {
+        return mTimesNs[sample];
+    }
+
+    /**
+     * Bytes the stream moved in the interval ending at the sample.
+     */
+    public int getBytes(int sample, int stream) {
+        return mStreamBytes[sample * mStreamCapacity + stream];
+    }
+
+    /**
+     * Bytes all the streams moved in the interval ending at the sample.
+     */
+    public long getBytes(int sample) {
+        long bytes = 0;
+        int offset = sample * mStreamCapacity;
+        for (int stream = 0; stream < mStreamCount; stream++) {
+            bytes += mStreamBytes[offset + stream];
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the timeline as a header of magic, version, stream count,
+     * sample count and truncated flag, then per sample the time in us
+     * and the bytes of each stream, all big endian ints.
+     */
+    public void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(mStreamCount);
+        data.writeInt(mSampleCount);
+        data.writeBoolean(mTruncated);
+
+        for (int sample = 0; sample < mSampleCount; sample++) {
+            data.writeInt((int) (mTimesNs[sample] / 1000));
+            int offset = sample * mStreamCapacity;
+            for (int stream = 0; stream < mStreamCount; stream++) {
+                data.writeInt(mStreamBytes[offset + stream]);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a timeline {@link #writeBinary(OutputStream)} wrote.
+     */
+    public static ThroughputTimeline readBinary(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("Not a timeline of this version");
+        }
+
+        int streamCount = data.readInt();
+        int sampleCount = data.readInt();
+        boolean truncated = data.readBoolean();
+
+        ThroughputTimeline timeline = new ThroughputTimeline(Math.max(streamCount, 1), Math.max(sampleCount, 1));
+        for (int sample = 0; sample < sampleCount; sample++) {
+            timeline.mTimesNs[sample] = data.readInt() * 1000L;
+            int offset = sample * timeline.mStreamCapacity;
+            for (int stream = 0; stream < streamCount; stream++) {
+                timeline.mStreamBytes[offset + stream] = data.readInt();
+            }
+        }
+        timeline.mSampleCount = sampleCount;
+        timeline.mStreamCount = streamCount;
+        timeline.mTruncated = truncated;
+        return timeline;
+    }
+
+    /**
+     * Writes the timeline as csv, a row per sample: time in ms, the bytes
+     * of each stream and their total.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        StringBuilder row = new StringBuilder("time_ms");
+        for (int stream = 0; stream < mStreamCount; stream++) {
+            row.append(",stream_").append(stream);
+        }
+        row.append(",total\n");
+        out.write(row.toString());
+
+        for (int sample = 0; sample < mSampleCount; sample++) {
+            row.setLength(0);
+            row.append(String.format(Locale.US, "%.3f", mTimesNs[sample] / 1000000.0));
+            int offset = sample * mStreamCapacity;
+            for (int stream = 0; stream < mStreamCount; stream++) {
+                row.append(',').append(mStreamBytes[offset + stream]);
+            }
+            row.append(',').append(getBytes(sample)).append('\n');
+            out.write(row.toString());
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return mSampleCount + " samples of " + mStreamCount + " streams" + (mTruncated ? ", truncated" : "");
+    }
+}
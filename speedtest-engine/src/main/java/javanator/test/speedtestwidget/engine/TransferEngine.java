@@ -0,0 +1,443 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Base of the download and upload engines. Runs several concurrent streams
+ * spread round robin over one or more test servers, so a single server
+ * cannot cap the rate. Every stream counts the bytes it moves in its own
+ * slot, which only it writes to, so counting needs no atomic add; the
+ * caller sees the sum of the slots, that of each server through
+ * {@link #getBytesTransferred(int)} or that of each stream.
+ *
+ * The engine starts with a few streams and can be asked to add more through
+ * {@link #adjustStreamCount(float)} for as long as the aggregate throughput
+ * keeps growing with every new stream.
+ *
+ * How the streams talk to the server is up to the {@link Transport} the
+ * engine gets created with. Streams count the reads or writes their bytes
+ * came in as well, and given a {@link ResourceProbe} tell the cpu time
+ * they used once they are over.
+ */
+public abstract class TransferEngine {
+
+    /*
+     * Logger of the class.
+     */
+    private static final Logger LOG = Logger.getLogger(TransferEngine.class.getSimpleName());
+
+    /*
+     * Minimum growth of aggregate throughput, since the last stream was added,
+     * for the engine to add one more stream.
+     */
+    private static final float STREAM_GROWTH_THRESHOLD = 0.10f;
+
+    /*
+     * Time streams which keep their connection get on a stop to wind down
+     * on their own, before they get disconnected too.
+     */
+    private static final long STOP_GRACE_IN_MS = 200;
+
+    protected final List<TestServer> mServers;
+
+    protected final Transport mTransport;
+
+    protected final int mMaxStreamCount;
+
+    private final int mInitialStreamCount;
+
+    // Bytes moved by each stream, indexed like the streams.
+    private final AtomicLongArray mStreamBytesTransferred;
+
+    // Reads or writes of each stream, indexed like the streams.
+    private final AtomicLongArray mStreamIoCallCount;
+
+    // Cpu time of each stream, set as the stream ends.
+    private final AtomicLongArray mStreamCpuTimeNs;
+
+    private final List<TransferStream> mStreams = new ArrayList<>();
+
+    // Streams which gave up on an error while the engine was running.
+    private final AtomicInteger mFailedStreamCount = new AtomicInteger();
+
+    protected volatile boolean mRunning = false;
+
+    private volatile ResourceProbe mResourceProbe;
+
+    // Aggregate throughput seen when the last stream was added, or else
+    // the first one measured. NaN till then.
+    private float mSpeedAtLastStreamAddition = Float.NaN;
+
+    // Goes true once adding a stream stopped paying off.
+    private boolean mStreamCountSettled = false;
+
+    // Set when a stream got added, for the next adjustment to sit out.
+    private boolean mStreamJustAdded = false;
+
+    /**
+     * @param servers Servers to spread the streams over, at least one.
+     * @param initialStreamCount Streams opened on start. Raised to the
+     * server count so that every server gets at least one.
+     */
+    protected TransferEngine(List<TestServer> servers,
+                             Transport transport,
+                             int initialStreamCount,
+                             int maxStreamCount) {
+
+        if (initialStreamCount < 1 || maxStreamCount < initialStreamCount) {
+            throw new IllegalArgumentException("Invalid stream count " +
+                    initialStreamCount + "/" + maxStreamCount);
+        }
+
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No server to transfer with");
+        }
+
+        initialStreamCount = Math.max(initialStreamCount, servers.size());
+        maxStreamCount = Math.max(maxStreamCount, initialStreamCount);
+
+        mServers = new ArrayList<>(servers);
+        mStreamBytesTransferred = new AtomicLongArray(maxStreamCount);
+        mStreamIoCallCount = new AtomicLongArray(maxStreamCount);
+        mStreamCpuTimeNs = new AtomicLongArray(maxStreamCount);
+
+        mTransport = transport;
+        mInitialStreamCount = initialStreamCount;
+        mMaxStreamCount = maxStreamCount;
+    }
+
+    /**
+     * Makes the streams started from now on take their cpu time, null for
+     * no instrumentation.
+     */
+    public void setResourceProbe(ResourceProbe resourceProbe) {
+        mResourceProbe = resourceProbe;
+    }
+
+    public synchronized void start() {
+        mRunning = true;
+        for (int i = 0; i < mInitialStreamCount; i++) {
+            addStream();
+        }
+    }
+
+    /**
+     * Stops the streams. Those which keep their connection on a stop get a
+     * moment to end their request, so that the transport can take the
+     * connection back for the next one. The rest, and whichever of those
+     * is still stuck after that, get disconnected.
+     */
+    public void stop() {
+        List<TransferStream> streams;
+        synchronized (this) {
+            mRunning = false;
+            streams = new ArrayList<>(mStreams);
+        }
+
+        for (TransferStream stream : streams) {
+            if (!stream.keepsConnectionOnStop()) {
+                stream.disconnect();
+            }
+        }
+
+        try {
+            awaitStreams(STOP_GRACE_IN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (TransferStream stream : streams) {
+            if (stream.isAlive()) {
+                stream.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Waits for the streams to wind down after {@link #stop()}, e.g. for
+     * them to tell their cpu time.
+     *
+     * @return False if some stream was still running after the timeout.
+     */
+    public boolean awaitStreams(long timeoutInMs) throws InterruptedException {
+        List<TransferStream> streams;
+        synchronized (this) {
+            streams = new ArrayList<>(mStreams);
+        }
+
+        long deadlineNs = System.nanoTime() + timeoutInMs * 1000000L;
+        for (TransferStream stream : streams) {
+            long remainingInMs = (deadlineNs - System.nanoTime()) / 1000000L;
+            if (remainingInMs <= 0) {
+                break;
+            }
+            stream.join(remainingInMs);
+        }
+
+        for (TransferStream stream : streams) {
+            if (stream.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes moved by all the streams together.
+     */
+    public long getBytesTransferred() {
+        long bytesTransferred = 0;
+        for (int i = 0; i < mStreamBytesTransferred.length(); i++) {
+            bytesTransferred += mStreamBytesTransferred.get(i);
+        }
+        return bytesTransferred;
+    }
+
+    /**
+     * Bytes moved by the streams of the server at the given index.
+     */
+    public long getBytesTransferred(int serverIndex) {
+        long bytesTransferred = 0;
+        for (int i = serverIndex; i < mStreamBytesTransferred.length(); i += mServers.size()) {
+            bytesTransferred += mStreamBytesTransferred.get(i);
+        }
+        return bytesTransferred;
+    }
+
+    /**
+     * Bytes moved by the stream at the given index, zero if it has not
+     * started.
+     */
+    public long getStreamBytesTransferred(int streamIndex) {
+        return mStreamBytesTransferred.get(streamIndex);
+    }
+
+    /**
+     * Reads or writes the streams have moved their bytes in.
+     */
+    public long getIoCallCount() {
+        long ioCallCount = 0;
+        for (int i = 0; i < mStreamIoCallCount.length(); i++) {
+            ioCallCount += mStreamIoCallCount.get(i);
+        }
+        return ioCallCount;
+    }
+
+    /**
+     * Cpu time of the stream at the given index, known once it is over. 0
+     * before, -1 if the probe cannot tell.
+     */
+    public long getStreamCpuTimeNs(int streamIndex) {
+        return mStreamCpuTimeNs.get(streamIndex);
+    }
+
+    /**
+     * Streams the engine may grow to, which bounds the stream indexes.
+     */
+    public int getMaxStreamCount() {
+        return mMaxStreamCount;
+    }
+
+    public List<TestServer> getServers() {
+        return mServers;
+    }
+
+    public synchronized int getStreamCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * Streams running against the server at the given index.
+     */
+    public synchronized int getStreamCount(int serverIndex) {
+        int streamCount = 0;
+        for (TransferStream stream : mStreams) {
+            if (stream.mServerIndex == serverIndex) {
+                streamCount++;
+            }
+        }
+        return streamCount;
+    }
+
+    /**
+     * True once every stream started so far has given up on an error.
+     */
+    public synchronized boolean hasFailed() {
+        return !mStreams.isEmpty() && mFailedStreamCount.get() == mStreams.size();
+    }
+
+    /**
+     * Adds one more stream if the aggregate throughput has grown enough since
+     * the previous stream was added. Once a new stream stops paying off the
+     * stream count is left alone for the rest of the run.
+     *
+     * The first call with a measured speed only takes it as the baseline
+     * the initial streams have to beat. The call right after a stream got
+     * added does nothing: the speed it gets is over a window holding the
+     * new stream's initial burst, e.g. its send buffer filling up, which
+     * looks like growth whatever the link.
+     *
+     * @param aggregateSpeedInMbps Current aggregate throughput of all the streams.
+     */
+    public synchronized void adjustStreamCount(float aggregateSpeedInMbps) {
+
+        if (!mRunning || mStreamCountSettled) {
+            return;
+        }
+
+        if (Float.isNaN(mSpeedAtLastStreamAddition)) {
+            if (aggregateSpeedInMbps > 0) {
+                mSpeedAtLastStreamAddition = aggregateSpeedInMbps;
+            }
+            return;
+        }
+
+        if (mStreamJustAdded) {
+            mStreamJustAdded = false;
+            return;
+        }
+
+        if (mStreams.size() >= mMaxStreamCount ||
+            aggregateSpeedInMbps < mSpeedAtLastStreamAddition * (1 + STREAM_GROWTH_THRESHOLD)) {
+
+            mStreamCountSettled = true;
+            LOG.log(Level.FINE, getClass().getSimpleName() + " settled on " + mStreams.size() + " streams");
+            return;
+        }
+
+        mSpeedAtLastStreamAddition = aggregateSpeedInMbps;
+        addStream();
+        mStreamJustAdded = true;
+    }
+
+    // Streams go round robin over the servers, see getBytesTransferred(int).
+    private void addStream() {
+        int index = mStreams.size();
+        TransferStream stream = newStream(index, index % mServers.size());
+        mStreams.add(stream);
+        stream.start();
+    }
+
+    /**
+     * Creates the stream with the given index, to run against the server at
+     * the given index. Stream indexes start at zero and stay below the max
+     * stream count.
+     */
+    protected abstract TransferStream newStream(int index, int serverIndex);
+
+    protected static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid url " + url, e);
+        }
+    }
+
+    // One connection moving bytes till the engine gets stopped.
+    protected abstract class TransferStream extends Thread implements Transport.StreamContext {
+
+        private final int mIndex;
+
+        protected final int mServerIndex;
+
+        private volatile Closeable mAbortHandle;
+
+        protected TransferStream(String name, int index, int serverIndex) {
+            setName(name);
+            mIndex = index;
+            mServerIndex = serverIndex;
+        }
+
+        /**
+         * True if the stream can end its request on its own once stopped,
+         * rather than getting disconnected.
+         */
+        protected boolean keepsConnectionOnStop() {
+            return false;
+        }
+
+        public void disconnect() {
+            Closeable abortHandle = mAbortHandle;
+            if (abortHandle != null) {
+                try {
+                    abortHandle.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public boolean isRunning() {
+            return mRunning;
+        }
+
+        @Override
+        public void countBytes(int bytes) {
+            // Only this stream writes its slot, an ordered store is enough.
+            mStreamBytesTransferred.lazySet(mIndex, mStreamBytesTransferred.get(mIndex) + bytes);
+            mStreamIoCallCount.lazySet(mIndex, mStreamIoCallCount.get(mIndex) + 1);
+        }
+
+        @Override
+        public void setAbortHandle(Closeable abortHandle) {
+            mAbortHandle = abortHandle;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+
+            ResourceProbe resourceProbe = mResourceProbe;
+            long startCpuTimeNs = resourceProbe != null ? resourceProbe.getThreadCpuTimeNs() : 0;
+
+            try {
+
+                // Open a fresh request if the server ends one before the
+                // test gets over.
+                while (mRunning) {
+                    transfer();
+
+                    // Over, its connection is the transport's again.
+                    mAbortHandle = null;
+                }
+
+            } catch (IOException e) {
+                if (mRunning) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                    mFailedStreamCount.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                // A bug of the transport, e.g. on a malformed response. The
+                // stream is gone all the same, so the phase has to hear of it.
+                LOG.log(Level.SEVERE, e.getMessage(), e);
+                if (mRunning) {
+                    mFailedStreamCount.incrementAndGet();
+                }
+            } finally {
+                disconnect();
+
+                if (resourceProbe != null) {
+                    mStreamCpuTimeNs.set(mIndex, startCpuTimeNs < 0
+                            ? -1
+                            : resourceProbe.getThreadCpuTimeNs() - startCpuTimeNs);
+                }
+            }
+        }
+
+        /**
+         * Runs one request through the transport and returns when the request
+         * is over or the engine got stopped.
+         */
+        protected abstract void transfer() throws IOException;
+    }
+}
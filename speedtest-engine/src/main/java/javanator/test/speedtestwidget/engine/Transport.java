@@ -0,0 +1,69 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * The way a transfer stream talks to the test server. Engines are handed one
+ * transport which all of their streams share, so implementations must keep
+ * any per-request state out of their fields.
+ *
+ * See {@link HttpUrlConnectionTransport} and {@link NioSocketTransport}.
+ */
+public interface Transport {
+
+    /**
+     * Reads the given byte range of the object at url, counting every body
+     * byte received, till the response is over or the stream stops running.
+     */
+    void download(URL url, long rangeStart, long rangeEnd, StreamContext context) throws IOException;
+
+    /**
+     * Posts the payload to url over and over, counting every payload byte
+     * written, till the stream stops running.
+     */
+    void upload(URL url, UploadPayload payload, StreamContext context) throws IOException;
+
+    /**
+     * Opens a connection to the host of url and leaves it idle, for a later
+     * request to the same host to go out on.
+     */
+    void preconnect(URL url) throws IOException;
+
+    /**
+     * Closes the connections left idle, once a test is over.
+     */
+    void closeIdleConnections();
+
+    /**
+     * Hands in the probe to measure threads of the transport's own with,
+     * null to stop measuring them.
+     */
+    void setResourceProbe(ResourceProbe resourceProbe);
+
+    /**
+     * Cpu time of threads of the transport's own rather than of the
+     * streams', e.g. the readers of HTTP/2 connections, as a running total.
+     */
+    long getThreadCpuTimeNs();
+
+    /**
+     * What a transport needs from the stream it works for.
+     */
+    interface StreamContext {
+
+        boolean isRunning();
+
+        /**
+         * Counts the bytes of one read or write.
+         */
+        void countBytes(int bytes);
+
+        /**
+         * Registers what to close to break a blocked read or write when the
+         * engine gets stopped.
+         */
+        void setAbortHandle(Closeable abortHandle);
+    }
+}
@@ -0,0 +1,65 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Upload engine running several concurrent multipart POST streams against
+ * the upload url of each server. All the streams write straight out of the one shared
+ * {@link UploadPayload}, so the write loop neither allocates nor copies.
+ */
+public class UploadEngine extends TransferEngine {
+
+    /*
+     * Number of streams opened when the engine starts.
+     */
+    public static final int DEFAULT_INITIAL_STREAM_COUNT = 2;
+
+    /*
+     * Upper bound on the streams the engine adds on its own.
+     */
+    public static final int DEFAULT_MAX_STREAM_COUNT = 6;
+
+    private final URL[] mUrls;
+
+    private UploadPayload mPayload;
+
+    public UploadEngine(List<TestServer> servers,
+                        Transport transport,
+                        int initialStreamCount,
+                        int maxStreamCount) {
+
+        super(servers, transport, initialStreamCount, maxStreamCount);
+
+        mUrls = new URL[servers.size()];
+        for (int i = 0; i < mUrls.length; i++) {
+            mUrls[i] = toUrl(servers.get(i).getUploadUrl());
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        // Build the payload before the first stream asks for it.
+        mPayload = UploadPayload.getInstance();
+        super.start();
+    }
+
+    @Override
+    protected TransferStream newStream(int index, int serverIndex) {
+        return new UploadStream(index, serverIndex);
+    }
+
+    // One chunked multipart POST writing the shared payload till stopped.
+    private class UploadStream extends TransferStream {
+
+        public UploadStream(int index, int serverIndex) {
+            super(UploadStream.class.getSimpleName() + "-" + index, index, serverIndex);
+        }
+
+        @Override
+        protected void transfer() throws IOException {
+            mTransport.upload(mUrls[mServerIndex], mPayload, this);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package javanator.test.speedtestwidget.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Multipart body posted by the upload streams. The random payload is
+ * generated once and shared by every stream and every transport, so
+ * writing it never allocates or copies.
+ */
+public class UploadPayload {
+
+    /*
+     * Bytes handed to the connection in one write. Also used as the http
+     * chunk size.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /*
+     * Chunks in the shared payload. Streams walk over them in turn so that
+     * consecutive chunks on the wire differ.
+     */
+    public static final int CHUNKS_IN_PAYLOAD = 4;
+
+    public static final String FILE_NAME = "speed.test";
+
+    private static final String LINE_END = "\r\n";
+
+    private static final String TWO_HYPHENS = "--";
+
+    private static final String BOUNDARY = "*****";
+
+    public static final String CONTENT_TYPE = "multipart/form-data;boundary=" + BOUNDARY;
+
+    private static UploadPayload sInstance;
+
+    private final byte[] mHeader = (TWO_HYPHENS + BOUNDARY + LINE_END +
+            "Content-Disposition: post-data; name=uploaded_file;filename=" + FILE_NAME + LINE_END +
+            LINE_END).getBytes();
+
+    private final byte[] mFooter = (LINE_END +
+            TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END).getBytes();
+
+    /*
+     * Random so that no proxy on the way can compress it.
+     */
+    private final byte[] mPayload;
+
+    // Same bytes outside of the java heap for channel writes. Created on
+    // first use only.
+    private ByteBuffer mDirectPayload;
+
+    private UploadPayload() {
+        mPayload = new byte[CHUNK_SIZE * CHUNKS_IN_PAYLOAD];
+        new Random().nextBytes(mPayload);
+    }
+
+    public static synchronized UploadPayload getInstance() {
+        if (sInstance == null) {
+            sInstance = new UploadPayload();
+        }
+        return sInstance;
+    }
+
+    public byte[] getHeader() {
+        return mHeader;
+    }
+
+    public byte[] getFooter() {
+        return mFooter;
+    }
+
+    /**
+     * Shared payload bytes. Callers must not modify them.
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Read only view of the payload in a direct buffer. Every call returns
+     * a buffer with its own position and limit over the same memory.
+     */
+    public synchronized ByteBuffer newDirectPayloadView() {
+        if (mDirectPayload == null) {
+            mDirectPayload = ByteBuffer.allocateDirect(mPayload.length);
+            mDirectPayload.put(mPayload);
+            mDirectPayload.flip();
+        }
+        return mDirectPayload.asReadOnlyBuffer();
+    }
+}
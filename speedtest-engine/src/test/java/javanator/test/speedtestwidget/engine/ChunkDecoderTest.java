@@ -0,0 +1,63 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkDecoderTest {
+
+    private static final String BODY = "a;name=value\r\n0123456789\r\n" +
+            "1F\r\n0123456789012345678901234567890\r\n" +
+            "0\r\nTrailer: x\r\n\r\n";
+
+    @Test
+    public void countsOnlyThePayload() throws IOException {
+        ChunkDecoder chunks = new ChunkDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(BODY.getBytes("ISO-8859-1"));
+
+        assertEquals(41, chunks.decode(buffer));
+        assertTrue(chunks.isDone());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void framingSplitAcrossReads() throws IOException {
+        byte[] body = BODY.getBytes("ISO-8859-1");
+
+        // One read a byte, the worst a channel can do.
+        ChunkDecoder chunks = new ChunkDecoder();
+        long payloadBytes = 0;
+        for (int i = 0; i < body.length; i++) {
+            assertFalse(chunks.isDone());
+            payloadBytes += chunks.decode(ByteBuffer.wrap(body, i, 1));
+        }
+
+        assertEquals(41, payloadBytes);
+        assertTrue(chunks.isDone());
+    }
+
+    @Test
+    public void stopsAtTheEndOfTheBody() throws IOException {
+        ChunkDecoder chunks = new ChunkDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap("2\r\nab\r\n0\r\n\r\nHTTP/1.1".getBytes("ISO-8859-1"));
+
+        assertEquals(2, chunks.decode(buffer));
+        assertTrue(chunks.isDone());
+        assertEquals(8, buffer.remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkLongerThanItsSize() throws IOException {
+        new ChunkDecoder().decode(ByteBuffer.wrap("2\r\nabc\r\n".getBytes("ISO-8859-1")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingSize() throws IOException {
+        new ChunkDecoder().decode(ByteBuffer.wrap("\r\nab".getBytes("ISO-8859-1")));
+    }
+}
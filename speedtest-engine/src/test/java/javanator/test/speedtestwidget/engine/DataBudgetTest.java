@@ -0,0 +1,53 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DataBudgetTest {
+
+    private static final long MB = 1000 * 1000L;
+
+    @Test
+    public void downloadGetsItsShareAndUploadTheRest() {
+        DataBudget budget = new DataBudget(50 * MB);
+
+        // Up to float rounding.
+        assertEquals(30 * MB, budget.getPhaseBytes(true, 0), 10);
+        assertEquals(25 * MB, budget.getPhaseBytes(false, 25 * MB));
+
+        // A download past its share leaves the upload nothing, not less.
+        assertEquals(0, budget.getPhaseBytes(false, 60 * MB));
+    }
+
+    @Test
+    public void plainLimitSplitsTheSameWay() {
+        DataBudget budget = new DataBudget(50 * MB);
+
+        assertEquals(budget.getPhaseBytes(true, 0), DataBudget.getPhaseBytes(50 * MB, true, 0));
+        assertEquals(5 * MB, DataBudget.getPhaseBytes(50 * MB, false, 45 * MB));
+    }
+
+    @Test
+    public void streamsPerBytesOfThePhase() {
+        DataBudget budget = new DataBudget(50 * MB);
+
+        assertEquals(1, budget.getMaxStreamCount(MB, 6));
+        assertEquals(3, budget.getMaxStreamCount(3 * DataBudget.MIN_BYTES_PER_STREAM + MB, 6));
+        assertEquals(6, budget.getMaxStreamCount(100 * MB, 6));
+    }
+
+    @Test
+    public void litePolicies() {
+        DataBudget budget = new DataBudget(50 * MB);
+
+        assertSame(DataBudget.LITE_DOWNLOAD_POLICY, budget.getTerminationPolicy(true));
+        assertSame(DataBudget.LITE_UPLOAD_POLICY, budget.getTerminationPolicy(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBudget() {
+        new DataBudget(0);
+    }
+}
@@ -0,0 +1,80 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HpackTest {
+
+    // Static table index of :status 200, the first status.
+    private static final int INDEX_STATUS_200 = 8;
+
+    // Static table index of :status 404.
+    private static final int INDEX_STATUS_404 = 13;
+
+    @Test
+    public void encodesIndexedFieldsAndLiterals() {
+        byte[] block = new Hpack.Encoder()
+                .indexed(Hpack.INDEX_METHOD_GET)
+                .literal(Hpack.INDEX_PATH, "/a")
+                .literal(Hpack.INDEX_RANGE, "b")
+                .toByteArray();
+
+        assertArrayEquals(new byte[]{
+                (byte) 0x82,
+                0x04, 0x02, '/', 'a',
+                // Index 50 past the 4 bit prefix: 15, then 35.
+                0x0f, 0x23, 0x01, 'b'}, block);
+    }
+
+    @Test
+    public void decodesIndexedStatus() throws IOException {
+        byte[] block = new Hpack.Encoder()
+                .literal(Hpack.INDEX_CONTENT_TYPE, "text/plain")
+                .indexed(INDEX_STATUS_404)
+                .toByteArray();
+
+        assertEquals(404, Hpack.decodeStatus(block, 0, block.length));
+    }
+
+    @Test
+    public void decodesLiteralStatus() throws IOException {
+        byte[] block = new Hpack.Encoder()
+                .literal(INDEX_STATUS_200, "206")
+                .literal(Hpack.INDEX_RANGE, "bytes=0-99")
+                .toByteArray();
+
+        assertEquals(206, Hpack.decodeStatus(block, 0, block.length));
+    }
+
+    @Test
+    public void decodesHuffmanCodedStatus() throws IOException {
+        // "200": 00010 00000 00000, padded with a one bit.
+        byte[] block = {0x08, (byte) 0x82, 0x10, 0x01};
+        assertEquals(200, Hpack.decodeStatus(block, 0, block.length));
+
+        // "404": 011010 00000 011010, padded with seven one bits.
+        assertEquals("404", Hpack.decodeHuffmanDigits(new byte[]{0x68, 0x0d, 0x7f}, 0, 3));
+    }
+
+    @Test
+    public void blockWithoutStatus() throws IOException {
+        byte[] block = new Hpack.Encoder().literal(Hpack.INDEX_PATH, "/").toByteArray();
+        assertEquals(-1, Hpack.decodeStatus(block, 0, block.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHuffmanCodedLetters() throws IOException {
+        // "a" is 00011.
+        Hpack.decodeHuffmanDigits(new byte[]{0x1f}, 0, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedBlock() throws IOException {
+        byte[] block = new Hpack.Encoder().literal(INDEX_STATUS_200, "200").toByteArray();
+        Hpack.decodeStatus(block, 0, block.length - 1);
+    }
+}
@@ -0,0 +1,48 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyResultTest {
+
+    @Test
+    public void statisticsOfTheProbesWhichGotAnswers() {
+        // In the order sent, the last slot is unused.
+        long[] rttsNs = {ms(10), ms(30), ms(20), ms(40), ms(50), ms(999)};
+
+        LatencyResult result = LatencyResult.fromSamples(rttsNs, 5, 1);
+
+        assertEquals(10, result.getMinInMs(), 0.001f);
+        assertEquals(30, result.getMedianInMs(), 0.001f);
+        assertEquals(50, result.getP95InMs(), 0.001f);
+        // |30-10| + |20-30| + |40-20| + |50-40| over 4.
+        assertEquals(15, result.getJitterInMs(), 0.001f);
+        assertEquals(5, result.getSampleCount());
+        assertEquals(1, result.getLostCount());
+        assertEquals(1 / 6f, result.getLoss(), 0.0001f);
+    }
+
+    @Test
+    public void singleProbeHasNoJitter() {
+        LatencyResult result = LatencyResult.fromSamples(new long[]{ms(25)}, 1, 0);
+
+        assertEquals(25, result.getMedianInMs(), 0.001f);
+        assertEquals(0, result.getJitterInMs(), 0.001f);
+        assertEquals(0, result.getLoss(), 0.0001f);
+    }
+
+    @Test
+    public void allProbesLost() {
+        LatencyResult result = LatencyResult.fromSamples(new long[4], 0, 4);
+
+        assertTrue(Float.isNaN(result.getMedianInMs()));
+        assertTrue(Float.isNaN(result.getJitterInMs()));
+        assertEquals(1, result.getLoss(), 0.0001f);
+    }
+
+    private static long ms(long ms) {
+        return ms * 1000000L;
+    }
+}
@@ -0,0 +1,71 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResultRecordTest {
+
+    private static final long MB = 1000 * 1000L;
+
+    private static final long SECOND_IN_NS = 1000 * 1000000L;
+
+    @Test
+    public void measuredPhasesKeepTheirSpeed() {
+        ResultRecord record = ResultRecord.fromResult(newResult(
+                newPhase(PhaseResult.StopReason.CONVERGED, 8 * SECOND_IN_NS),
+                newPhase(PhaseResult.StopReason.BUDGET_EXHAUSTED, 4 * SECOND_IN_NS)),
+                ResultRecord.NETWORK_WIFI);
+
+        assertEquals(10, record.getDownloadSpeedInMbps(), 0);
+        assertEquals(10, record.getUploadSpeedInMbps(), 0);
+    }
+
+    @Test
+    public void failedAndCancelledPhasesHaveNoSpeed() {
+        ResultRecord record = ResultRecord.fromResult(newResult(
+                newPhase(PhaseResult.StopReason.FAILED, 2 * SECOND_IN_NS),
+                newPhase(PhaseResult.StopReason.CANCELLED, 2 * SECOND_IN_NS)),
+                ResultRecord.NETWORK_WIFI);
+
+        assertTrue(Float.isNaN(record.getDownloadSpeedInMbps()));
+        assertTrue(Float.isNaN(record.getUploadSpeedInMbps()));
+        assertEquals(PhaseResult.StopReason.FAILED, record.getDownloadStopReason());
+    }
+
+    @Test
+    public void skippedPhaseHasNoSpeed() {
+        ResultRecord record = ResultRecord.fromResult(newResult(
+                newPhase(PhaseResult.StopReason.CONVERGED, 8 * SECOND_IN_NS),
+                newPhase(PhaseResult.StopReason.BUDGET_EXHAUSTED, 0)),
+                ResultRecord.NETWORK_WIFI);
+
+        assertEquals(10, record.getDownloadSpeedInMbps(), 0);
+        assertTrue(Float.isNaN(record.getUploadSpeedInMbps()));
+    }
+
+    private static SpeedTestResult newResult(PhaseResult download, PhaseResult upload) {
+        return new SpeedTestResult(0,
+                Collections.singletonList(TestServer.DEFAULT), null, null, download, upload, false);
+    }
+
+    private static PhaseResult newPhase(PhaseResult.StopReason stopReason, long durationNs) {
+        // What a phase failing or skipped right away reports.
+        float speedInMbps = durationNs > 0 && stopReason != PhaseResult.StopReason.FAILED ? 10 : 0;
+
+        return new PhaseResult(speedInMbps,
+                stopReason,
+                10 * MB,
+                durationNs,
+                4,
+                0.01f,
+                LatencyResult.fromSamples(new long[0], 0, 0),
+                null,
+                Collections.singletonList(new ServerThroughput(TestServer.DEFAULT, speedInMbps, 10 * MB, 4)),
+                new ThroughputTimeline(1, 1),
+                null);
+    }
+}
@@ -0,0 +1,168 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultStoreTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long DAY_IN_MS = 24 * 60 * 60 * 1000L;
+
+    // Midnight UTC of some day.
+    private static final long DAY_START_MS = 1500 * DAY_IN_MS;
+
+    private static final long HOUR_IN_MS = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsSurviveReopening() throws Exception {
+        File file = mFolder.newFile();
+
+        ResultStore store = new ResultStore(file, UTC);
+        store.append(newRecord(DAY_START_MS, 10));
+        store.append(newRecord(DAY_START_MS + HOUR_IN_MS, 20));
+        store.flush();
+        store.close();
+
+        store = new ResultStore(file, UTC);
+        assertEquals(2, store.getRecordCount());
+
+        List<ResultRecord> records = store.query(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2, records.size());
+        assertEquals(DAY_START_MS, records.get(0).getStartTimeMs());
+        assertEquals("server", records.get(0).getServerName());
+        assertEquals(10, records.get(0).getDownloadSpeedInMbps(), 0);
+        assertEquals(20, records.get(1).getDownloadSpeedInMbps(), 0);
+        store.close();
+    }
+
+    @Test
+    public void partialRecordGetsDropped() throws Exception {
+        File file = mFolder.newFile();
+
+        ResultStore store = new ResultStore(file, UTC);
+        store.append(newRecord(DAY_START_MS, 10));
+        store.flush();
+        store.close();
+        long length = file.length();
+
+        // What an append cut short by a crash leaves behind.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[ResultRecord.SIZE_IN_BYTES / 2]);
+        out.close();
+
+        store = new ResultStore(file, UTC);
+        assertEquals(1, store.getRecordCount());
+        assertEquals(length, file.length());
+
+        store.append(newRecord(DAY_START_MS + HOUR_IN_MS, 20));
+        store.flush();
+        assertEquals(20, store.query(Long.MIN_VALUE, Long.MAX_VALUE).get(1).getDownloadSpeedInMbps(), 0);
+        store.close();
+    }
+
+    @Test
+    public void queryReturnsTheRecordsStartedInTheRange() throws Exception {
+        ResultStore store = new ResultStore(mFolder.newFile(), UTC);
+        for (int i = 0; i < 10; i++) {
+            store.append(newRecord(DAY_START_MS + i * HOUR_IN_MS, i));
+        }
+        store.flush();
+
+        List<ResultRecord> records = store.query(DAY_START_MS + 3 * HOUR_IN_MS, DAY_START_MS + 6 * HOUR_IN_MS);
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(0).getDownloadSpeedInMbps(), 0);
+        assertEquals(5, records.get(2).getDownloadSpeedInMbps(), 0);
+
+        assertEquals(0, store.query(DAY_START_MS + 20 * HOUR_IN_MS, DAY_START_MS + DAY_IN_MS).size());
+        store.close();
+    }
+
+    @Test
+    public void recordFromBeforeTheLastKeepsTheOrder() throws Exception {
+        ResultStore store = new ResultStore(mFolder.newFile(), UTC);
+        store.append(newRecord(DAY_START_MS + HOUR_IN_MS, 10));
+        store.append(newRecord(DAY_START_MS, 20));
+        store.flush();
+
+        List<ResultRecord> records = store.query(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(DAY_START_MS + HOUR_IN_MS, records.get(1).getStartTimeMs());
+        store.close();
+    }
+
+    @Test
+    public void dailyAggregatesPerDay() throws Exception {
+        ResultStore store = new ResultStore(mFolder.newFile(), UTC);
+
+        // Ten tests the first day, none the second, two the third.
+        for (int i = 1; i <= 10; i++) {
+            store.append(newRecord(DAY_START_MS + i * HOUR_IN_MS, i * 10));
+        }
+        store.append(newRecord(DAY_START_MS + 2 * DAY_IN_MS, 5));
+        store.append(newRecord(DAY_START_MS + 2 * DAY_IN_MS + HOUR_IN_MS, Float.NaN));
+        store.flush();
+
+        List<DailyAggregate> aggregates = store.getDailyAggregates(DAY_START_MS, DAY_START_MS + 3 * DAY_IN_MS,
+                DailyAggregate.Metric.DOWNLOAD_SPEED);
+        assertEquals(2, aggregates.size());
+
+        DailyAggregate first = aggregates.get(0);
+        assertEquals(DAY_START_MS, first.getDayStartMs());
+        assertEquals(10, first.getCount());
+        assertEquals(10, first.getP10(), 0);
+        assertEquals(50, first.getMedian(), 0);
+        assertEquals(90, first.getP90(), 0);
+
+        // The test without a download leaves no value.
+        DailyAggregate third = aggregates.get(1);
+        assertEquals(DAY_START_MS + 2 * DAY_IN_MS, third.getDayStartMs());
+        assertEquals(1, third.getCount());
+        assertEquals(5, third.getMedian(), 0);
+
+        // The same again, out of the cache for the first day.
+        aggregates = store.getDailyAggregates(DAY_START_MS, DAY_START_MS + 3 * DAY_IN_MS,
+                DailyAggregate.Metric.DOWNLOAD_SPEED);
+        assertEquals(50, aggregates.get(0).getMedian(), 0);
+        store.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+
+        new ResultStore(file, UTC);
+    }
+
+    private static ResultRecord newRecord(long startTimeMs, float downloadSpeedInMbps) {
+        return new ResultRecord(startTimeMs,
+                "server",
+                downloadSpeedInMbps,
+                5,
+                20,
+                2,
+                0,
+                40,
+                60,
+                1000,
+                500,
+                ResultRecord.NETWORK_WIFI,
+                PhaseResult.StopReason.CONVERGED,
+                PhaseResult.StopReason.CONVERGED,
+                false);
+    }
+}
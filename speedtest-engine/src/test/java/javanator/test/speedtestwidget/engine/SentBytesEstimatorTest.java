@@ -0,0 +1,128 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SentBytesEstimatorTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void fillIsLeftOut() {
+        CountedEngine engine = new CountedEngine(Collections.singletonList(TestServer.DEFAULT), 1);
+        SentBytesEstimator estimator = new SentBytesEstimator(engine);
+
+        // The send buffer fills within the first 20 ms.
+        sample(estimator, engine, 0, 100);
+        sample(estimator, engine, 10, 200);
+        assertEquals(0, estimator.getBytes());
+
+        // Held up till the kernel frees room.
+        sample(estimator, engine, 50, 200);
+        assertEquals(0, estimator.getBytes());
+        assertFalse(estimator.isSettled());
+
+        sample(estimator, engine, 100, 300);
+        assertEquals(100, estimator.getBytes());
+        assertTrue(estimator.isSettled());
+    }
+
+    @Test
+    public void growsAtTheRateOfThePreviousCycleBetweenBursts() {
+        CountedEngine engine = new CountedEngine(Collections.singletonList(TestServer.DEFAULT), 1);
+        SentBytesEstimator estimator = new SentBytesEstimator(engine);
+
+        sample(estimator, engine, 0, 200);
+        for (long ms = 10; ms < 100; ms += 10) {
+            sample(estimator, engine, ms, 200);
+        }
+        // A cycle of 100 bytes over 80 ms, since the last sample of the fill.
+        sample(estimator, engine, 100, 300);
+        assertEquals(100, estimator.getBytes());
+
+        sample(estimator, engine, 140, 300);
+        assertEquals(150, estimator.getBytes());
+
+        // By no more than the cycle's bytes.
+        sample(estimator, engine, 250, 300);
+        assertEquals(200, estimator.getBytes());
+
+        // A burst short of the estimate takes nothing back.
+        sample(estimator, engine, 260, 350);
+        assertEquals(200, estimator.getBytes());
+    }
+
+    @Test
+    public void streamCountingOnEverySampleIsTakenAsItIs() {
+        CountedEngine engine = new CountedEngine(Collections.singletonList(TestServer.DEFAULT), 1);
+        SentBytesEstimator estimator = new SentBytesEstimator(engine);
+
+        for (long ms = 0; ms <= 100; ms += 10) {
+            sample(estimator, engine, ms, 1000 + ms * 10);
+        }
+        // 1200 bytes of fill by 20 ms.
+        assertEquals(800, estimator.getBytes());
+        assertTrue(estimator.isSettled());
+    }
+
+    @Test
+    public void stalledStreamSettlesAfterAWhile() {
+        CountedEngine engine = new CountedEngine(Collections.singletonList(TestServer.DEFAULT), 2);
+        SentBytesEstimator estimator = new SentBytesEstimator(engine);
+
+        sample(estimator, engine, 0, 100, 100);
+        sample(estimator, engine, 100, 200, 100);
+        assertFalse(estimator.isSettled());
+
+        sample(estimator, engine, 3100, 300, 100);
+        assertTrue(estimator.isSettled());
+    }
+
+    @Test
+    public void bytesOfEachServer() {
+        CountedEngine engine = new CountedEngine(Arrays.asList(TestServer.DEFAULT, TestServer.DEFAULT), 3);
+        SentBytesEstimator estimator = new SentBytesEstimator(engine);
+
+        // Streams 0 and 2 go to the first server, 1 to the second.
+        sample(estimator, engine, 0, 10, 10, 10);
+        sample(estimator, engine, 10, 20, 20, 20);
+        sample(estimator, engine, 100, 30, 40, 50);
+
+        assertEquals(10 + 30, estimator.getBytes(0));
+        assertEquals(20, estimator.getBytes(1));
+        assertEquals(60, estimator.getBytes());
+    }
+
+    private static void sample(SentBytesEstimator estimator, CountedEngine engine, long ms, long... bytes) {
+        engine.mStreamBytes = bytes;
+        estimator.addSample(ms * MS);
+    }
+
+    // Engine whose stream counters get set by the test, no stream ever runs.
+    private static class CountedEngine extends TransferEngine {
+
+        private long[] mStreamBytes;
+
+        CountedEngine(List<TestServer> servers, int streamCount) {
+            super(servers, null, streamCount, streamCount);
+            mStreamBytes = new long[streamCount];
+        }
+
+        @Override
+        public long getStreamBytesTransferred(int streamIndex) {
+            return mStreamBytes[streamIndex];
+        }
+
+        @Override
+        protected TransferStream newStream(int index, int serverIndex) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TerminationPolicyTest {
+
+    private static final long SAMPLE_INTERVAL_IN_NS = 10 * 1000000L;
+
+    @Test
+    public void steadyRateConverges() {
+        TerminationPolicy policy = new TerminationPolicy(3000, 15000, 0.05f);
+
+        Stop stop = run(policy, new long[]{10});
+
+        assertEquals(PhaseResult.StopReason.CONVERGED, stop.mReason);
+        assertTrue(stop.mElapsedNs >= 3000 * 1000000L);
+        assertTrue(stop.mElapsedNs < 5000 * 1000000L);
+        assertEquals(0, stop.mDeviation, 0.01f);
+    }
+
+    @Test
+    public void unsteadyRateRunsToTheMaxDuration() {
+        TerminationPolicy policy = new TerminationPolicy(3000, 15000, 0.05f);
+
+        // 10 Mbps and 30 Mbps a second each, never inside the band.
+        long[] rates = new long[200];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = i < 100 ? 10 : 30;
+        }
+        Stop stop = run(policy, rates);
+
+        assertEquals(PhaseResult.StopReason.MAX_DURATION, stop.mReason);
+        assertEquals(15000 * 1000000L, stop.mElapsedNs);
+        assertTrue(stop.mDeviation > 0.05f);
+    }
+
+    @Test
+    public void steadyRateRunsTheMinDuration() {
+        TerminationPolicy policy = new TerminationPolicy(8000, 15000, 0.05f);
+
+        Stop stop = run(policy, new long[]{10});
+
+        assertEquals(PhaseResult.StopReason.CONVERGED, stop.mReason);
+        assertTrue(stop.mElapsedNs >= 8000 * 1000000L);
+        assertTrue(stop.mElapsedNs < 8500 * 1000000L);
+    }
+
+    // Feeds samples at the given rates in Mbps, one per sample interval and
+    // round and round, till the monitor stops the phase.
+    private static Stop run(TerminationPolicy policy, long[] ratesInMbps) {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        TerminationPolicy.Monitor monitor = policy.newMonitor();
+
+        long elapsedNs = 0;
+        long bytes = 0;
+        estimator.addSample(elapsedNs, bytes);
+        for (int i = 0; ; i++) {
+            elapsedNs += SAMPLE_INTERVAL_IN_NS;
+            bytes += ratesInMbps[i % ratesInMbps.length] * 1000000L / 8 / 100;
+            estimator.addSample(elapsedNs, bytes);
+
+            PhaseResult.StopReason reason = monitor.check(elapsedNs, estimator);
+            if (reason != null) {
+                return new Stop(reason, elapsedNs, monitor.getDeviation());
+            }
+        }
+    }
+
+    private static class Stop {
+
+        private final PhaseResult.StopReason mReason;
+
+        private final long mElapsedNs;
+
+        private final float mDeviation;
+
+        Stop(PhaseResult.StopReason reason, long elapsedNs, float deviation) {
+            mReason = reason;
+            mElapsedNs = elapsedNs;
+            mDeviation = deviation;
+        }
+    }
+}
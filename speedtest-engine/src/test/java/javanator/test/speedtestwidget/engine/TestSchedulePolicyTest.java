@@ -0,0 +1,118 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSchedulePolicyTest {
+
+    private static final long HOUR_IN_MS = 60 * 60 * 1000L;
+
+    private static final long MB = 1000 * 1000L;
+
+    // Hourly, 15 minutes apart at least, 30% battery, unmetered, 50 MB a day.
+    private final TestSchedulePolicy mPolicy =
+            new TestSchedulePolicy(HOUR_IN_MS, HOUR_IN_MS / 4, 0.3f, false, false, 50 * MB);
+
+    @Test
+    public void runsOnAGoodConnection() {
+        assertEquals(TestSchedulePolicy.Verdict.RUN,
+                mPolicy.decide(newState(false, false, 0.8f, false, 0), false));
+    }
+
+    @Test
+    public void skipsWithoutNetwork() {
+        TestSchedulePolicy.DeviceState state =
+                new TestSchedulePolicy.DeviceState(false, false, false, 1, true, 0, HOUR_IN_MS);
+        assertEquals(TestSchedulePolicy.Verdict.NO_NETWORK, mPolicy.decide(state, false));
+    }
+
+    @Test
+    public void networkChangeRightAfterATest() {
+        TestSchedulePolicy.DeviceState state =
+                new TestSchedulePolicy.DeviceState(true, false, false, 1, true, 0, HOUR_IN_MS / 8);
+
+        assertEquals(TestSchedulePolicy.Verdict.TOO_SOON, mPolicy.decide(state, true));
+        // The timer does not wait for the gap.
+        assertEquals(TestSchedulePolicy.Verdict.RUN, mPolicy.decide(state, false));
+    }
+
+    @Test
+    public void lowBatteryWaitsForTheCharger() {
+        assertEquals(TestSchedulePolicy.Verdict.LOW_BATTERY,
+                mPolicy.decide(newState(false, false, 0.2f, false, 0), false));
+        assertEquals(TestSchedulePolicy.Verdict.RUN,
+                mPolicy.decide(newState(false, false, 0.2f, true, 0), false));
+    }
+
+    @Test
+    public void meteredAndRoamingOnlyIfAllowed() {
+        assertEquals(TestSchedulePolicy.Verdict.METERED,
+                mPolicy.decide(newState(true, false, 1, false, 0), false));
+        assertEquals(TestSchedulePolicy.Verdict.ROAMING,
+                mPolicy.decide(newState(true, true, 1, false, 0), false));
+
+        TestSchedulePolicy permissive = new TestSchedulePolicy(HOUR_IN_MS, 0, 0.3f, true, true, 50 * MB);
+        assertEquals(TestSchedulePolicy.Verdict.RUN,
+                permissive.decide(newState(true, true, 1, false, 0), false));
+    }
+
+    @Test
+    public void dailyCap() {
+        assertEquals(TestSchedulePolicy.Verdict.RUN,
+                mPolicy.decide(newState(false, false, 1, false, 50 * MB - 1), false));
+        assertEquals(TestSchedulePolicy.Verdict.DAILY_CAP_REACHED,
+                mPolicy.decide(newState(false, false, 1, false, 50 * MB), false));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMax() {
+        assertEquals(HOUR_IN_MS, mPolicy.getNextDelayInMs(0));
+        assertEquals(2 * HOUR_IN_MS, mPolicy.getNextDelayInMs(1));
+        assertEquals(8 * HOUR_IN_MS, mPolicy.getNextDelayInMs(3));
+        assertEquals(TestSchedulePolicy.MAX_BACKOFF_IN_MS, mPolicy.getNextDelayInMs(5));
+        assertEquals(TestSchedulePolicy.MAX_BACKOFF_IN_MS, mPolicy.getNextDelayInMs(100));
+    }
+
+    @Test
+    public void cancelledOrEmptyTestIsAFailure() {
+        assertTrue(TestSchedulePolicy.isFailure(new SpeedTestResult(0,
+                Collections.singletonList(TestServer.DEFAULT), null, null, null, null, true)));
+        assertTrue(TestSchedulePolicy.isFailure(new SpeedTestResult(0,
+                Collections.singletonList(TestServer.DEFAULT), null, null, null, null, false)));
+        assertFalse(TestSchedulePolicy.isFailure(new SpeedTestResult(0,
+                Collections.singletonList(TestServer.DEFAULT), null, null, newPhase(), null, false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroInterval() {
+        new TestSchedulePolicy(0, 0, 0.3f, false, false, 50 * MB);
+    }
+
+    private static TestSchedulePolicy.DeviceState newState(boolean metered,
+                                                           boolean roaming,
+                                                           float batteryLevel,
+                                                           boolean charging,
+                                                           long bytesToday) {
+        return new TestSchedulePolicy.DeviceState(true, metered, roaming, batteryLevel, charging,
+                bytesToday, HOUR_IN_MS);
+    }
+
+    private static PhaseResult newPhase() {
+        return new PhaseResult(10,
+                PhaseResult.StopReason.CONVERGED,
+                10 * MB,
+                8000 * 1000000L,
+                4,
+                0.01f,
+                LatencyResult.fromSamples(new long[0], 0, 0),
+                null,
+                Collections.singletonList(new ServerThroughput(TestServer.DEFAULT, 10, 10 * MB, 4)),
+                new ThroughputTimeline(1, 1),
+                null);
+    }
+}
@@ -0,0 +1,83 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputEstimatorTest {
+
+    private static final long SAMPLE_INTERVAL_IN_NS = 10 * 1000000L;
+
+    @Test
+    public void windowRateCoversOnlyTheWindow() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+
+        // 1s at 10 Mbps, then 1s at 40 Mbps.
+        long timeNs = 0;
+        long bytes = 0;
+        estimator.addSample(timeNs, bytes);
+        for (int i = 0; i < 200; i++) {
+            timeNs += SAMPLE_INTERVAL_IN_NS;
+            bytes += i < 100 ? bytesAt(10) : bytesAt(40);
+            estimator.addSample(timeNs, bytes);
+        }
+
+        assertEquals(40, estimator.getSpeedInMbps(500 * 1000000L), 0.01f);
+        assertEquals(40, estimator.getInstantaneousSpeedInMbps(), 0.01f);
+    }
+
+    @Test
+    public void rampUpEndsOnceTheRateStopsGrowing() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+
+        // Doubles every 250ms up to 80 Mbps, then stays there.
+        long timeNs = 0;
+        long bytes = 0;
+        estimator.addSample(timeNs, bytes);
+        for (int i = 0; i < 300; i++) {
+            timeNs += SAMPLE_INTERVAL_IN_NS;
+            bytes += bytesAt(Math.min(10 << (i / 25), 80));
+            estimator.addSample(timeNs, bytes);
+
+            if (i < 75) {
+                assertFalse("Ramp-up over at sample " + i, estimator.isRampUpComplete());
+            }
+        }
+
+        assertTrue(estimator.isRampUpComplete());
+        assertTrue(estimator.getRampUpTimeNs() <= 1250 * 1000000L);
+
+        // The slow start is left out of the average.
+        assertEquals(80, estimator.getAverageSpeedInMbps(), 0.01f);
+        assertEquals(80, estimator.getEwmaSpeedInMbps(), 0.5f);
+    }
+
+    @Test
+    public void rampUpEndsAtTheMaxRampUpTime() {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+
+        // Grows by half every 250ms, always past the growth threshold.
+        long timeNs = 0;
+        long bytes = 0;
+        double rateInMbps = 1;
+        estimator.addSample(timeNs, bytes);
+        for (int i = 0; i < 400; i++) {
+            timeNs += SAMPLE_INTERVAL_IN_NS;
+            if (i % 25 == 0) {
+                rateInMbps *= 1.5;
+            }
+            bytes += (long) (rateInMbps * 1000000 / 8 / 100);
+            estimator.addSample(timeNs, bytes);
+        }
+
+        assertTrue(estimator.isRampUpComplete());
+        assertEquals(3000 * 1000000L, estimator.getRampUpTimeNs());
+    }
+
+    // Bytes in one sample interval at the given rate.
+    private static long bytesAt(int rateInMbps) {
+        return rateInMbps * 1000000L / 8 / 100;
+    }
+}
@@ -0,0 +1,84 @@
+package javanator.test.speedtestwidget.engine;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputTimelineTest {
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        byte[] binary = newBinary();
+
+        ThroughputTimeline timeline = ThroughputTimeline.readBinary(new ByteArrayInputStream(binary));
+        assertEquals(3, timeline.getSampleCount());
+        assertEquals(2, timeline.getStreamCount());
+        assertTrue(timeline.isTruncated());
+        assertEquals(20 * 1000000L, timeline.getTimeNs(1));
+        assertEquals(50, timeline.getBytes(1, 1));
+        assertEquals(370, timeline.getBytes(2));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        timeline.writeBinary(out);
+        assertArrayEquals(binary, out.toByteArray());
+    }
+
+    @Test
+    public void csvOfABinaryTimeline() throws IOException {
+        ThroughputTimeline timeline = ThroughputTimeline.readBinary(new ByteArrayInputStream(newBinary()));
+
+        StringWriter csv = new StringWriter();
+        timeline.writeCsv(csv);
+        assertEquals("time_ms,stream_0,stream_1,total\n" +
+                "10.000,100,0,100\n" +
+                "20.000,200,50,250\n" +
+                "30.500,300,70,370\n", csv.toString());
+    }
+
+    @Test
+    public void emptyTimelineRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ThroughputTimeline(4, 16).writeBinary(out);
+
+        ThroughputTimeline timeline = ThroughputTimeline.readBinary(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(0, timeline.getSampleCount());
+        assertEquals(0, timeline.getStreamCount());
+
+        StringWriter csv = new StringWriter();
+        timeline.writeCsv(csv);
+        assertEquals("time_ms,total\n", csv.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        ThroughputTimeline.readBinary(new ByteArrayInputStream(new byte[32]));
+    }
+
+    // Two streams over three samples, truncated.
+    private static byte[] newBinary() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(0x5354544C);
+        data.writeInt(1);
+        data.writeInt(2);
+        data.writeInt(3);
+        data.writeBoolean(true);
+
+        int[][] samples = {{10000, 100, 0}, {20000, 200, 50}, {30500, 300, 70}};
+        for (int[] sample : samples) {
+            for (int value : sample) {
+                data.writeInt(value);
+            }
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+}
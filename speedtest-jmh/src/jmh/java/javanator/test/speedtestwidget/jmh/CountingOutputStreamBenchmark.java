@@ -0,0 +1,67 @@
+package javanator.test.speedtestwidget.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javanator.test.speedtestwidget.CustomMultiPartEntity;
+
+/**
+ * Per chunk cost of {@link CustomMultiPartEntity.CountingOutputStream#write},
+ * writing into a stream which drops everything, and per byte cost of its
+ * single byte path, which reports in batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CountingOutputStreamBenchmark {
+
+    @Param({"4096", "65536"})
+    public int chunkSize;
+
+    private byte[] mChunk;
+
+    private CustomMultiPartEntity.CountingOutputStream mStream;
+
+    private long mTransferred;
+
+    @Setup
+    public void setUp() {
+        mChunk = new byte[chunkSize];
+        mStream = new CustomMultiPartEntity.CountingOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new CustomMultiPartEntity.ProgressListener() {
+            @Override
+            public void transferred(long num, long timeElapsed) {
+                mTransferred = num;
+            }
+        });
+    }
+
+    @Benchmark
+    public long writeChunk() throws IOException {
+        mStream.write(mChunk, 0, mChunk.length);
+        return mTransferred;
+    }
+
+    @Benchmark
+    public long writeByte() throws IOException {
+        mStream.write(1);
+        return mTransferred;
+    }
+}
@@ -0,0 +1,70 @@
+package javanator.test.speedtestwidget.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import javanator.test.speedtestwidget.GaugeScale;
+import javanator.test.speedtestwidget.LinearGaugeScale;
+import javanator.test.speedtestwidget.LogGaugeScale;
+import javanator.test.speedtestwidget.PiecewiseGaugeScale;
+
+/**
+ * Speed to arc position mapping, run for every published rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GaugeScaleBenchmark {
+
+    /*
+     * Same marks as the widget draws.
+     */
+    private static final int[] SPEED_INDICATING_VALUES_IN_MB = {0, 1, 2, 3, 4, 5, 10, 20, 50, 100};
+
+    /*
+     * Speeds cycled through, spread over the whole arc and past its end.
+     */
+    private static final int SPEED_COUNT = 64;
+
+    @Param({"piecewise", "linear", "log"})
+    public String scale;
+
+    private GaugeScale mScale;
+
+    private final float[] mSpeedsInMbps = new float[SPEED_COUNT];
+
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        switch (scale) {
+            case "linear":
+                mScale = new LinearGaugeScale(SPEED_INDICATING_VALUES_IN_MB);
+                break;
+            case "log":
+                mScale = new LogGaugeScale(SPEED_INDICATING_VALUES_IN_MB);
+                break;
+            default:
+                mScale = new PiecewiseGaugeScale(SPEED_INDICATING_VALUES_IN_MB);
+                break;
+        }
+
+        for (int i = 0; i < SPEED_COUNT; i++) {
+            mSpeedsInMbps[i] = i * 120f / SPEED_COUNT;
+        }
+    }
+
+    @Benchmark
+    public float getPosition() {
+        mIndex = (mIndex + 1) & (SPEED_COUNT - 1);
+        return mScale.getPosition(mSpeedsInMbps[mIndex]);
+    }
+}
@@ -0,0 +1,101 @@
+package javanator.test.speedtestwidget.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javanator.test.speedtestwidget.engine.DailyAggregate;
+import javanator.test.speedtestwidget.engine.PhaseResult;
+import javanator.test.speedtestwidget.engine.ResultRecord;
+import javanator.test.speedtestwidget.engine.ResultStore;
+
+/**
+ * History queries over a store of the given size, one test a minute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResultStoreBenchmark {
+
+    private static final long TEST_INTERVAL_IN_MS = 60 * 1000;
+
+    private static final long DAY_IN_MS = 24 * 60 * 60 * 1000;
+
+    private static final long FIRST_START_TIME_MS = 1420070400000L;
+
+    @Param({"10000", "300000"})
+    public int recordCount;
+
+    private File mFile;
+
+    private ResultStore mStore;
+
+    private long mLastStartTimeMs;
+
+    private final Random mRandom = new Random(0);
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        mFile = File.createTempFile("results", ".bin");
+        mFile.delete();
+        mStore = new ResultStore(mFile, TimeZone.getTimeZone("UTC"));
+
+        for (int i = 0; i < recordCount; i++) {
+            mLastStartTimeMs = FIRST_START_TIME_MS + i * TEST_INTERVAL_IN_MS;
+            mStore.append(new ResultRecord(mLastStartTimeMs,
+                    "local",
+                    10 + mRandom.nextFloat() * 90,
+                    5 + mRandom.nextFloat() * 20,
+                    10 + mRandom.nextFloat() * 40,
+                    1,
+                    0,
+                    80,
+                    120,
+                    5000,
+                    2000,
+                    ResultRecord.NETWORK_WIFI,
+                    PhaseResult.StopReason.CONVERGED,
+                    PhaseResult.StopReason.CONVERGED,
+                    false));
+        }
+        mStore.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        mStore.flush();
+        mStore.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public List<ResultRecord> queryRandomDay() throws IOException {
+        long fromMs = FIRST_START_TIME_MS + (long) (mRandom.nextDouble() * (mLastStartTimeMs - FIRST_START_TIME_MS));
+        return mStore.query(fromMs, fromMs + DAY_IN_MS);
+    }
+
+    @Benchmark
+    public List<DailyAggregate> dailyAggregatesLastMonth() throws IOException {
+        return mStore.getDailyAggregates(mLastStartTimeMs - 30 * DAY_IN_MS, Long.MAX_VALUE,
+                DailyAggregate.Metric.DOWNLOAD_SPEED);
+    }
+
+    @Benchmark
+    public List<DailyAggregate> dailyAggregatesAllTime() throws IOException {
+        return mStore.getDailyAggregates(Long.MIN_VALUE, Long.MAX_VALUE,
+                DailyAggregate.Metric.DOWNLOAD_SPEED);
+    }
+}
@@ -0,0 +1,44 @@
+package javanator.test.speedtestwidget.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+import javanator.test.speedtestwidget.SweepAngleSlots;
+
+/**
+ * Hand-off of sweep angles from the engine's thread to the rendering
+ * thread: a set and consume round trip, and two producers setting the
+ * same slot with nobody consuming, where every set coalesces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SweepAngleSlotsBenchmark {
+
+    private static final float SWEEP_ANGLE = 200.5f;
+
+    private final SweepAngleSlots mSlots = new SweepAngleSlots();
+
+    @Benchmark
+    @Threads(1)
+    public float setAndConsume() {
+        mSlots.setDownloadSweepAngle(SWEEP_ANGLE);
+        mSlots.beginConsume();
+        float sweepAngle = mSlots.getDownloadSweepAngle();
+        mSlots.endConsume();
+        return sweepAngle;
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean contendedSet() {
+        return mSlots.setDownloadSweepAngle(SWEEP_ANGLE);
+    }
+}
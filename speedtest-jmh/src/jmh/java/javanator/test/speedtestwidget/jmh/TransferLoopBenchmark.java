@@ -0,0 +1,129 @@
+package javanator.test.speedtestwidget.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javanator.test.speedtestwidget.bench.LocalTestServer;
+import javanator.test.speedtestwidget.engine.HttpUrlConnectionTransport;
+import javanator.test.speedtestwidget.engine.NioSocketTransport;
+import javanator.test.speedtestwidget.engine.Transport;
+import javanator.test.speedtestwidget.engine.UploadPayload;
+
+/**
+ * Read/count loop of the download streams and write loop of the upload
+ * streams, against an unthrottled {@link LocalTestServer}. Every op moves
+ * {@link #BYTES_PER_OP}, so ops/s times 8 is the most Mbps one stream can
+ * measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferLoopBenchmark {
+
+    private static final int BYTES_PER_OP = 1024 * 1024;
+
+    private static final long OBJECT_SIZE_IN_BYTES = 1000L * 1000 * 1000;
+
+    @Param({"http", "nio"})
+    public String transport;
+
+    private LocalTestServer mServer;
+
+    private Transport mTransport;
+
+    private URL mDownloadUrl;
+
+    private URL mUploadUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = new LocalTestServer(OBJECT_SIZE_IN_BYTES, 0, 0, 0);
+        mServer.start();
+
+        mTransport = "nio".equals(transport) ? new NioSocketTransport() : new HttpUrlConnectionTransport();
+        mDownloadUrl = new URL(mServer.getDownloadUrl());
+        mUploadUrl = new URL(mServer.getUploadUrl());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        CountingContext context = new CountingContext(BYTES_PER_OP);
+        mTransport.download(mDownloadUrl, 0, BYTES_PER_OP - 1, context);
+        return context.getBytes();
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        CountingContext context = new CountingContext(BYTES_PER_OP);
+        try {
+            mTransport.upload(mUploadUrl, UploadPayload.getInstance(), context);
+        } finally {
+            // The request got left mid body, the way a stopped stream leaves it.
+            context.abort();
+        }
+        return context.getBytes();
+    }
+
+    /**
+     * Counts into a shared counter like the engine's streams do, and stops
+     * once the limit is through.
+     */
+    private static class CountingContext implements Transport.StreamContext {
+
+        private static final AtomicLong sBytesTransferred = new AtomicLong();
+
+        private final long mLimit;
+
+        private long mBytes;
+
+        private Closeable mAbortHandle;
+
+        CountingContext(long limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return mBytes < mLimit;
+        }
+
+        @Override
+        public void countBytes(int bytes) {
+            mBytes += bytes;
+            sBytesTransferred.addAndGet(bytes);
+        }
+
+        @Override
+        public void setAbortHandle(Closeable abortHandle) {
+            mAbortHandle = abortHandle;
+        }
+
+        long getBytes() {
+            return mBytes;
+        }
+
+        void abort() throws IOException {
+            if (mAbortHandle != null) {
+                mAbortHandle.close();
+            }
+        }
+    }
+}